@@ -0,0 +1,255 @@
+package com.plasmoxy.cvfxbase;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging which never blocks the caller - renderer, grab and process threads can log on every frame.
+ * A message is put into a lock-free ring buffer with its timestamp ( plain System.currentTimeMillis, nothing
+ * is formatted or allocated by the caller ), a background thread takes messages out, formats and prints them :
+ * <pre>
+ * 14:02:31.254 [CVFXController] Camera 0 opened : 1280x720 MJPG 30 fps
+ * </pre>
+ *
+ * <p>
+ * Repeated messages are rate limited - the same message ( source and text ) is printed at most 5 times per second,
+ * the rest is counted and summed up when the second ends :
+ * <pre>
+ * 14:02:32.001 [CVFXController] [CV] Error during image processing. ( repeated 57 more times in 1 s )
+ * </pre>
+ * When the buffer is full ( an error storm faster than the console ), new messages are dropped and counted,
+ * the count is printed with the repeat counts. Messages left in the buffer are printed when the JVM exits,
+ * call flush to print them earlier ( before reading output of a run ... ).
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public final class AsyncLog {
+
+    private static final int CAPACITY = 1024; // power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_KEYS = 1024; // distinct messages tracked by the rate limit
+
+    // FIELDS -- RING -- ( Vyukov bounded queue, many producers and the drain thread as the only consumer )
+
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final String[] sources = new String[CAPACITY], texts = new String[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0; // written by the drain thread only
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // FIELDS -- DRAIN --
+
+    private static volatile PrintStream out = System.out;
+    private static volatile int limit = 5;
+    private static volatile long windowMillis = 1000;
+    private static volatile boolean summaryRequested = false;
+    private static TimeZone zone = TimeZone.getDefault(); // drain thread only, getDefault clones the zone
+    private static final Thread drainer;
+
+    /**
+     * Rate limit state of one message.
+     */
+    private static final class Repeats {
+        final String source, text;
+        long windowStart, lastTime;
+        int printed, suppressed;
+
+        Repeats(String source, String text) {
+            this.source = source;
+            this.text = text;
+        }
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) sequences.set(i, i);
+        drainer = new Thread(AsyncLog::drain, "CVFX log");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::flush, "CVFX log flush"));
+    }
+
+    private AsyncLog() {}
+
+    // METHODS -- LOGGING --
+
+    /**
+     * Logs a message, never blocks. Build the text only when it is logged ( check logging activity first ).
+     * @param source name shown in brackets, usually the class
+     * @param text message
+     * @return false if the buffer was full and the message was dropped
+     */
+    public static boolean log(String source, String text) {
+        long time = System.currentTimeMillis();
+        long pos = tail.get();
+        while (true) {
+            int i = (int)pos & MASK;
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    sources[i] = source;
+                    texts[i] = text;
+                    times[i] = time;
+                    sequences.lazySet(i, pos + 1); // publishes the slot
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.incrementAndGet(); // full, the drain thread is a whole buffer behind
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Waits until messages logged so far are printed, with pending repeat counts ( at most 1 s ).
+     */
+    public static void flush() {
+        long target = tail.get();
+        summaryRequested = true;
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while ((head < target || summaryRequested) && System.nanoTime() < deadline && drainer.isAlive()) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    // METHODS -- SETTINGS --
+
+    /**
+     * Sets the rate limit of repeated messages.
+     * @param messages printed occurrences of the same message per window, at least 1
+     * @param window window length in milliseconds
+     */
+    public static void setRateLimit(int messages, long window) {
+        if (messages < 1 || window <= 0) throw new IllegalArgumentException("Rate limit must allow at least 1 message per positive window");
+        limit = messages;
+        windowMillis = window;
+    }
+
+    /**
+     * Sets the stream where messages are printed.
+     * @param stream output, System.out by default
+     */
+    public static void setOutput(PrintStream stream) {
+        if (stream == null) throw new IllegalArgumentException("Output must not be null");
+        out = stream;
+    }
+
+    /** @return messages dropped because the buffer was full, since the start */
+    public static long getDropped() { return dropped.get(); }
+
+    // METHODS -- DRAIN --
+
+    /**
+     * Drain thread, prints messages in batches and sleeps a little when there are none.
+     */
+    private static void drain() {
+        Map<String, Repeats> repeats = new HashMap<>();
+        StringBuilder sb = new StringBuilder(256);
+        long reportedDrops = 0, lastSweep = 0;
+
+        while (true) {
+            boolean summary = summaryRequested;
+            int batch = 0;
+
+            while (batch < CAPACITY) {
+                long pos = head;
+                int i = (int)pos & MASK;
+                if (sequences.get(i) != pos + 1) break; // empty, or the producer is still writing the slot
+                String source = sources[i], text = texts[i];
+                long time = times[i];
+                sources[i] = null;
+                texts[i] = null;
+                sequences.lazySet(i, pos + CAPACITY); // slot is free for the next round
+                head = pos + 1;
+                batch++;
+
+                accept(repeats, sb, source, text, time);
+            }
+
+            // end of windows of repeated messages, and forgetting of quiet ones
+            long now = System.currentTimeMillis();
+            if (summary || now - lastSweep >= 100 || repeats.size() > MAX_KEYS) {
+                lastSweep = now;
+                zone = TimeZone.getDefault(); // follows changes of the default zone
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    line(sb, now, "AsyncLog", (drops - reportedDrops) + " messages dropped, log buffer was full", 0, 0);
+                    reportedDrops = drops;
+                }
+                long window = windowMillis;
+                for (Iterator<Repeats> it = repeats.values().iterator(); it.hasNext(); ) {
+                    Repeats r = it.next();
+                    if (summary || now - r.windowStart >= window) {
+                        if (r.suppressed > 0) line(sb, r.lastTime, r.source, r.text, r.suppressed, now - r.windowStart);
+                        r.suppressed = 0;
+                        r.printed = 0;
+                        r.windowStart = now;
+                        if (now - r.lastTime >= window || repeats.size() > MAX_KEYS) it.remove();
+                    }
+                }
+            }
+
+            if (sb.length() > 0) {
+                out.print(sb);
+                out.flush();
+                sb.setLength(0);
+            }
+            if (summary && head >= tail.get()) summaryRequested = false;
+            if (batch == 0) LockSupport.parkNanos(5_000_000);
+        }
+    }
+
+    /**
+     * Prints a message or counts it when its rate limit is reached.
+     */
+    private static void accept(Map<String, Repeats> repeats, StringBuilder sb, String source, String text, long time) {
+        String key = source + '\n' + text;
+        Repeats r = repeats.get(key);
+        if (r == null) {
+            r = new Repeats(source, text);
+            r.windowStart = time;
+            repeats.put(key, r);
+        }
+        r.lastTime = time;
+        if (r.printed < limit) {
+            r.printed++;
+            line(sb, time, source, text, 0, 0);
+        } else {
+            r.suppressed++;
+        }
+    }
+
+    /**
+     * Appends "HH:mm:ss.SSS [source] text" in local time, with the repeat count when there is one.
+     */
+    private static void line(StringBuilder sb, long time, String source, String text, int suppressed, long span) {
+        long local = time + zone.getOffset(time);
+        long ms = Math.floorMod(local, 86_400_000L);
+        pad(sb, ms / 3_600_000, 2).append(':');
+        pad(sb, ms / 60_000 % 60, 2).append(':');
+        pad(sb, ms / 1000 % 60, 2).append('.');
+        pad(sb, ms % 1000, 3);
+        sb.append(" [").append(source).append("] ").append(text);
+        if (suppressed > 0) {
+            sb.append(" ( repeated ").append(suppressed).append(" more times in ");
+            Hud.appendFixed(sb, span / 1000.0, 1);
+            sb.append(" s )");
+        }
+        sb.append(System.lineSeparator());
+    }
+
+    private static StringBuilder pad(StringBuilder sb, long v, int digits) {
+        for (long p = digits == 3 ? 100 : 10; p > 1 && v < p; p /= 10) sb.append('0');
+        return sb.append(v);
+    }
+}
@@ -0,0 +1,278 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batch runner, streams every image of a directory or every frame of a video through process method
+ * of a controller, without gui and as fast as all cores allow.
+ *
+ * <p>
+ * Every worker thread has its own controller instance ( initialized with initHeadless ),
+ * so process doesn't have to be thread safe, but frames are spread over the workers -
+ * state which a controller keeps between frames sees only part of the sequence.
+ * Outputs are written asynchronously by a writer pool, the queue is bounded so a slow disk slows
+ * the workers down instead of filling the memory.
+ *
+ * <p>
+ * Command line :
+ * <pre>
+ * BatchRunner controllerClass input outputDir [-threads n] [-views main,alpha,beta] [-format png]
+ * </pre>
+ * Outputs are named like "name_main.png" for images and "frame_000042_alpha.png" for video frames.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class BatchRunner {
+
+    // FIELDS -- CONFIG --
+
+    private final Class<? extends CVFXController> controllerClass;
+    private final File input, outputDir;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private String format = "png";
+    private boolean writeMain = true, writeAlpha = true, writeBeta = true;
+
+    // FIELDS -- RUN --
+
+    private final AtomicLong processed = new AtomicLong(), failed = new AtomicLong();
+
+    /**
+     * One frame for a worker, either a file to read or already decoded video frame.
+     */
+    private static class Job {
+        final String name;
+        final File file;
+        final Mat frame;
+
+        Job(String name, File file, Mat frame) {
+            this.name = name;
+            this.file = file;
+            this.frame = frame;
+        }
+    }
+
+    /** Marks the end of the queue for a worker */
+    private static final Job END = new Job(null, null, null);
+
+    /**
+     * Creates a runner.
+     * @param controllerClass controller with the process method
+     * @param input image directory or video file
+     * @param outputDir directory for outputs
+     */
+    public BatchRunner(Class<? extends CVFXController> controllerClass, File input, File outputDir) {
+        this.controllerClass = controllerClass;
+        this.input = input;
+        this.outputDir = outputDir;
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @param threads number of worker threads ( one controller each ), default is number of cores */
+    public void setThreads(int threads) { this.threads = Math.max(1, threads); }
+
+    /** @param format output image extension, default png */
+    public void setFormat(String format) { this.format = format; }
+
+    /**
+     * Selects which outputs are written.
+     * @param main write Main output
+     * @param alpha write Alpha output
+     * @param beta write Beta output
+     */
+    public void setViews(boolean main, boolean alpha, boolean beta) {
+        writeMain = main;
+        writeAlpha = alpha;
+        writeBeta = beta;
+    }
+
+    /** @return frames processed by the last run */
+    public long getProcessed() { return processed.get(); }
+
+    /** @return frames which failed to read or process in the last run */
+    public long getFailed() { return failed.get(); }
+
+    // METHODS -- BATCH --
+
+    /**
+     * Runs the batch and blocks until all outputs are written.
+     * @return processed frames per second
+     * @throws IOException if input cannot be opened or output directory created
+     * @throws InterruptedException if interrupted while waiting for workers
+     */
+    public double run() throws IOException, InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) throw new IOException("Cannot create output directory " + outputDir);
+        processed.set(0);
+        failed.set(0);
+
+        BlockingQueue<Job> jobs = new ArrayBlockingQueue<>(threads * 2);
+        ThreadPoolExecutor writer = new ThreadPoolExecutor(
+                Math.max(1, threads / 2), Math.max(1, threads / 2), 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long start = System.nanoTime();
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> work(jobs, writer), "BatchRunner worker " + i);
+            t.start();
+            workers.add(t);
+        }
+
+        try {
+            if (input.isDirectory()) {
+                for (File f : FrameSequence.listImages(input)) jobs.put(new Job(stripExtension(f.getName()), f, null));
+            } else {
+                VideoCapture video = new VideoCapture(input.getPath());
+                if (!video.isOpened()) throw new IOException("Cannot open video " + input);
+                int index = 0;
+                while (true) {
+                    Mat frame = new Mat();
+                    if (!video.read(frame) || frame.empty()) break;
+                    jobs.put(new Job(String.format("frame_%06d", index++), null, frame));
+                }
+                video.release();
+            }
+        } finally {
+            for (int i = 0; i < threads; i++) jobs.put(END);
+            for (Thread t : workers) t.join();
+            writer.shutdown();
+            writer.awaitTermination(1, TimeUnit.HOURS);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return processed.get() / seconds;
+    }
+
+    /**
+     * Worker loop, takes jobs until END.
+     */
+    private void work(BlockingQueue<Job> jobs, ThreadPoolExecutor writer) {
+        CVFXController controller;
+        try {
+            controller = controllerClass.getDeclaredConstructor().newInstance();
+            controller.initHeadlessController();
+        } catch (ReflectiveOperationException | RuntimeException | Error e) { // init failing too, or run would wait for the jobs forever
+            System.out.println("[BatchRunner] FATAL ERROR : cannot instantiate " + controllerClass.getName());
+            e.printStackTrace();
+            drain(jobs);
+            return;
+        }
+
+        while (true) {
+            Job job;
+            try {
+                job = jobs.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == END) return;
+
+            Mat mainframe = job.frame != null ? job.frame : Imgcodecs.imread(job.file.getPath());
+            Mat alphaframe = new Mat(), betaframe = new Mat();
+            if (mainframe.empty()) {
+                AsyncLog.log("BatchRunner", "ERROR : cannot read " + job.file);
+                failed.incrementAndGet();
+                continue;
+            }
+
+            try {
+                controller.runProcessing(mainframe, alphaframe, betaframe, true, true, true);
+                controller.burnOverlays(mainframe, alphaframe, betaframe);
+                processed.incrementAndGet();
+            } catch (RuntimeException | Error e) { // StackOverflowError ... too, the thread must live to take its END
+                AsyncLog.log("BatchRunner", "ERROR : process failed on " + job.name + " : " + e);
+                failed.incrementAndGet();
+                mainframe.release();
+                alphaframe.release();
+                betaframe.release();
+                continue;
+            }
+
+            write(writer, job.name, "main", mainframe, writeMain);
+            write(writer, job.name, "alpha", alphaframe, writeAlpha);
+            write(writer, job.name, "beta", betaframe, writeBeta);
+        }
+    }
+
+    /**
+     * Queues an output for writing, the Mat is released after it is written.
+     */
+    private void write(ThreadPoolExecutor writer, String name, String view, Mat mat, boolean active) {
+        if (!active || mat.empty()) {
+            mat.release();
+            return;
+        }
+        File out = new File(outputDir, name + "_" + view + "." + format);
+        writer.execute(() -> {
+            if (!Imgcodecs.imwrite(out.getPath(), mat)) AsyncLog.log("BatchRunner", "ERROR : cannot write " + out);
+            mat.release();
+        });
+    }
+
+    /**
+     * Takes jobs until END without processing ( worker without controller ), so the producer doesn't block.
+     */
+    private void drain(BlockingQueue<Job> jobs) {
+        try {
+            Job job;
+            while ((job = jobs.take()) != END) {
+                failed.incrementAndGet();
+                if (job.frame != null) job.frame.release();
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    // METHODS -- COMMAND LINE --
+
+    /**
+     * Command line entry, see class description for arguments.
+     * @param args arguments
+     * @throws Exception on bad arguments or unreadable input
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage : BatchRunner controllerClass input outputDir [-threads n] [-views main,alpha,beta] [-format png]");
+            System.exit(2);
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        BatchRunner runner = new BatchRunner(Class.forName(args[0]).asSubclass(CVFXController.class), new File(args[1]), new File(args[2]));
+        for (int i = 3; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads": runner.setThreads(Integer.parseInt(args[++i])); break;
+                case "-format": runner.setFormat(args[++i]); break;
+                case "-views":
+                    String views = args[++i];
+                    runner.setViews(views.contains("main"), views.contains("alpha"), views.contains("beta"));
+                    break;
+                default:
+                    System.out.println("ERROR : unknown argument " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        double rate = runner.run();
+        AsyncLog.flush(); // errors of the run before the summary
+        System.out.println("[BatchRunner] " + runner.getProcessed() + " images processed, " + runner.getFailed() + " failed, "
+                + Math.round(rate * 10) / 10.0 + " images/s on " + runner.threads + " threads");
+    }
+}
@@ -170,30 +170,61 @@ public abstract class CVFXApp extends Application {
     
         log("Loaded controller : " + controller.getClass().getCanonicalName());
         
+        guiroot = showController(stg, fxmlloader, controller, annotatedTitle);
+        mainscene = stg.getScene();
+        
+        onAppStarted();
+        
+        log("CVFXApp launched");
+        
+    }
+    
+    /**
+     * Opens another window with its own controller, for example a second view of the same camera
+     * ( call setSharedCapture(true) in init of the controllers, so the camera is opened once ).
+     * Every window renders on its own thread. Call this on FX thread, in onAppStarted for example.
+     * @param controllerClass controller of the new window
+     * @param title window title
+     * @return the controller
+     * @throws IOException If there is a problem loading fxml
+     * @throws ReflectiveOperationException If the controller cannot be instantiated
+     */
+    protected CVFXController openWindow(Class<? extends CVFXController> controllerClass, String title)
+            throws IOException, ReflectiveOperationException {
+        CVFXController windowController = controllerClass.getDeclaredConstructor().newInstance();
+        log("Opening window with controller : " + controllerClass.getCanonicalName());
+        showController(new Stage(), new FXMLLoader(fxmlLocation), windowController, title);
+        return windowController;
+    }
+    
+    /**
+     * Loads gui of a controller into a stage, initializes the controller and shows the stage.
+     * @return root of the gui
+     */
+    private Parent showController(Stage stg, FXMLLoader loader, CVFXController c, String title) throws IOException {
         // set this controller instance as controller for the fxml
-        fxmlloader.setController(controller);
+        loader.setController(c);
 
         // link stage in controller
-        controller.appstage = appstage;
+        c.appstage = stg;
         
         // load fxml and setup gui
         
-        guiroot = fxmlloader.load();
-        mainscene = new Scene(guiroot);
+        Parent root = loader.load();
         
-        stg.setScene(mainscene);
+        stg.setScene(new Scene(root));
         stg.sizeToScene();
-        stg.setTitle(annotatedTitle + " [ CVFXBase " + VERSION + " ]");
+        stg.setTitle(title + " [ CVFXBase " + VERSION + " ]");
 
         stg.getIcons().add(new Image(CVFXApp.class.getResourceAsStream("cvfxicon.png"))); // load icon
         
         stg.setOnCloseRequest(event ->
         {
             log("Received close signal, calling closeController on controller");
-            controller.closeController();
+            c.closeController();
         });
         
-        controller.initController(); // tell the controller to initialize itself now
+        c.initController(); // tell the controller to initialize itself now
         stg.show(); // render the stage
         
         // after rendering, fix the minimal size of it ( by the time this executes, the window is still in normal size )
@@ -201,12 +232,8 @@ public abstract class CVFXApp extends Application {
         stg.setMinWidth(stg.getWidth());
         
         // now after everything is rendered, call optional controller init
-        controller.initAfterShow();
-        
-        onAppStarted();
-        
-        log("CVFXApp launched");
-        
+        c.initAfterShow();
+        return root;
     }
     
     /**
@@ -225,10 +252,10 @@ public abstract class CVFXApp extends Application {
     // METHODS -- Other --
     
     /**
-     * Check logging activity and logs stuff internally.
+     * Check logging activity and logs stuff internally, without blocking ( see AsyncLog ).
      * @param text String to log.
      */
     protected void log(String text) {
-        if (loggingActive) System.out.println("[CVFXApp] " + text);
+        if (loggingActive) AsyncLog.log("CVFXApp", text);
     }
 }
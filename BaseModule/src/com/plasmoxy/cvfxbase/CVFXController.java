@@ -3,24 +3,40 @@ package com.plasmoxy.cvfxbase;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
+import javafx.geometry.Bounds;
 import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.Slider;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.TransferMode;
 import javafx.scene.paint.Paint;
 import javafx.stage.Stage;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.videoio.VideoCapture;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Abstract controller class with all the logic of OpenCV and stuff.
@@ -68,6 +84,11 @@ public abstract class CVFXController {
      *  FXML Image views for the 3 OpenCV Mats
      */
     @FXML protected ImageView imageViewMain, imageViewAlpha, imageViewBeta;
+
+    /**
+     * FXML Canvases layered over the views, overlays are drawn on them
+     */
+    @FXML protected Canvas overlayMain, overlayAlpha, overlayBeta;
     
     // SECTION buttons
     /**
@@ -120,11 +141,47 @@ public abstract class CVFXController {
      */
     private List<String> infoText = new ArrayList<>(); // list with some strings which get concatenated in infoLabel
 
+    /**
+     * Typed status fields of the info label. The first change since the last rebuild schedules one
+     * rebuild of the label into the reused infoBuilder, nothing runs while nothing changes.
+     */
+    private final Hud hud = new Hud(() -> {
+        if (infoLabel != null) Platform.runLater(this::rebuildInfoLabel); // not before initController, not headless
+    });
+    private final StringBuilder infoBuilder = new StringBuilder(256);
+
     // FIELDS -- CV --
     
-    private VideoCapture videoCapture;
-    private boolean cameraActive = false;
+    private volatile VideoCapture videoCapture;
+    private volatile boolean cameraActive = false;
     private int cameraID = 0; // ID OF THE CAMERA
+
+    /**
+     * Devices are opened and released on this thread, so FX thread never waits for a device.
+     * Opened device for camera switching waits in pendingCapture until the renderer swaps it in between frames.
+     */
+    private final ExecutorService deviceExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "CVFX device");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicReference<VideoCapture> pendingCapture = new AtomicReference<>();
+    private final AtomicInteger switchTarget = new AtomicInteger(-1);
+
+    /**
+     * Shared capture mode - camera frames come from SharedCapture consumer instead of own device
+     * ( pendingConsumer is the target of a camera switch, like pendingCapture )
+     */
+    private boolean sharedCapture = false;
+    private volatile SharedCapture.Consumer sharedConsumer;
+    private final AtomicReference<SharedCapture.Consumer> pendingConsumer = new AtomicReference<>();
+
+    /**
+     * Requested capture configuration and the values negotiated with the device when it was opened
+     */
+    private CaptureSettings captureSettings = new CaptureSettings();
+    private volatile CaptureSettings negotiatedCapture;
+    private volatile long drainedFrames;
     
     /**
      * Flags for rendering, these get updated by action methods for the three rendering toggle buttons.
@@ -132,6 +189,87 @@ public abstract class CVFXController {
      */
     private boolean renderMainActive = true, renderAlphaActive, renderBetaActive;
 
+    /**
+     * Incremental presentation mode, views are updated only in changed regions ( see DirtyRegionPresenter )
+     */
+    private boolean incrementalPresentation = false;
+    private DirtyRegionPresenter[] presenters = {new DirtyRegionPresenter(), new DirtyRegionPresenter(), new DirtyRegionPresenter()};
+    private volatile long lastFrameBytesSaved;
+
+    /**
+     * Latency measurement - every frame gets a FrameStamp, presented frames are recorded in the histogram
+     */
+    private long frameSequence = 0;
+    private volatile FrameStamp lastFrameStamp;
+    private final TimeHistogram latencyHistogram = new TimeHistogram();
+    private boolean latencyInfoActive = false;
+
+    /**
+     * Optional graph of processing stages, evaluated before process only for visible views
+     */
+    private volatile StageGraph stageGraph;
+
+    /**
+     * Context of the frame which is being processed, with memoised derived images
+     */
+    private final FrameContext frameContext = new FrameContext();
+    private long processedFrames = 0;
+
+    /**
+     * Time and allocation accounting of renderer stages, emits JFR events when recording
+     */
+    private final FrameProfiler frameProfiler = new FrameProfiler();
+
+    /**
+     * Optional motion gate, frames of a static scene are not processed
+     */
+    private volatile MotionGate motionGate;
+
+    /**
+     * Optional quality governor and per-view refresh divisors ( view is refreshed every n-th frame )
+     */
+    private volatile QualityGovernor qualityGovernor;
+    private final int[] viewRefreshDivisors = {1, 1, 1};
+
+    /**
+     * Still image mode - source image ( null when not in still mode ), its processing thread, generation of inputs
+     * ( every input makes the running computation stale ) and the generation which is shown
+     */
+    private volatile Mat stillImage;
+    private final ExecutorService stillExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "CVFX still");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong stillGeneration = new AtomicLong();
+    private final AtomicBoolean stillScheduled = new AtomicBoolean(false);
+    private volatile long stillComputing = -1, stillShown = -1;
+    private volatile long staleComputations = 0;
+    private volatile ScheduledExecutorService stoppingTimer; // renderer of the last stop, still passes wait for its frame
+
+    /**
+     * Pool of worker processes which run process instead of this controller, null processes locally
+     */
+    private volatile WorkerPool workerPool;
+
+    /**
+     * Frame streams - captured frames ( before processing ) and processed frames of every view
+     */
+    private final FramePublisher capturedPublisher = new FramePublisher("captured");
+    private final FramePublisher[] framePublishers = {
+            new FramePublisher("main"), new FramePublisher("alpha"), new FramePublisher("beta")
+    };
+
+    /**
+     * Vector overlays - overlays begun in current process call, latest published overlays and
+     * the ones drawn on canvases ( FX thread only )
+     */
+    private final Overlay[] beganOverlays = new Overlay[3];
+    private final AtomicReferenceArray<Overlay> publishedOverlays = new AtomicReferenceArray<>(3);
+    private final Overlay[] drawnOverlays = new Overlay[3];
+    private final AtomicBoolean overlayDrawScheduled = new AtomicBoolean(false);
+    private final int[][] overlayFrameSizes = new int[3][2];
+
     // FIELDS -- Render --
 
     /**
@@ -139,30 +277,53 @@ public abstract class CVFXController {
      */
     private ScheduledExecutorService timer;
     private Runnable frameRenderer = () -> {
-        Mat frame = grabFrame(), frameAlpha = new Mat(), frameBeta = new Mat(); // grab frame from camera
-
-        // if there is a frame to process&show
-        if (!frame.empty()) {
-            
-            // process frames and update views
-            process(frame, frameAlpha, frameBeta);
-            if (renderMainActive) CVUtility.setProperty(imageViewMain.imageProperty(), CVUtility.mat2Image(frame));
+        swapPendingCapture(); // camera switch happens only between frames
 
-            // update alpha and beta views
-            if (renderAlphaActive && !frameAlpha.empty())
-                CVUtility.setProperty(imageViewAlpha.imageProperty(), CVUtility.mat2Image(frameAlpha));
+        frameProfiler.beginFrame();
+        Mat frame = grabFrame(), frameAlpha = new Mat(), frameBeta = new Mat(); // grab frame from camera
+        long grabbed = System.nanoTime();
+        frameProfiler.end(FrameProfiler.Stage.GRAB, frameSequence + 1, frame);
+        MotionGate gate = motionGate;
+        WorkerPool pool = workerPool;
 
-            if (renderBetaActive && !frameBeta.empty())
-                CVUtility.setProperty(imageViewBeta.imageProperty(), CVUtility.mat2Image(frameBeta));
+        // if there is a frame to process&show ( and it changed enough when gate is set )
+        boolean gated = !frame.empty() && gate != null && !gate.shouldProcess(frame);
+        if (gated) frameProfiler.skipFrame(frameSequence + 1, frame);
+        else if (!frame.empty()) {
+            FrameStamp stamp = new FrameStamp(++frameSequence);
+            stamp.grabbed = grabbed;
 
+            // views which are shown this frame ( active and due by their refresh divisor )
+            boolean main = renderMainActive && refreshDue(CVFXView.MAIN),
+                    alpha = renderAlphaActive && refreshDue(CVFXView.ALPHA),
+                    beta = renderBetaActive && refreshDue(CVFXView.BETA);
+            
+            if (pool != null) {
+                // processed by worker processes, results come back later ( numbered as frames processed locally ),
+                // their frame events are emitted when the results are taken
+                long sequence = ++processedFrames;
+                capturedPublisher.publish(sequence, frame);
+                pool.submit(sequence, frame, main, alpha, beta);
+            } else {
+                // process frames and update views
+                frameProfiler.begin(FrameProfiler.Stage.PROCESS);
+                runProcessing(frame, frameAlpha, frameBeta, main, alpha, beta);
+                stamp.processed = System.nanoTime();
+                frameProfiler.end(FrameProfiler.Stage.PROCESS, stamp.getSequence(), frame);
+                presentFrame(stamp, frame, frameAlpha, frameBeta, main, alpha, beta);
+                frameProfiler.endFrame(stamp.getSequence(), frame);
+            }
         }
 
-
+        if (pool != null) presentWorkerResults(pool);
     };
     
     // FIELDS -- SPECIFIC --
     
     private boolean loggingActive = true;
+
+    /** True when the controller is driven without gui ( replay, batch ... ), FXML nodes are null then */
+    private boolean headless = false;
     
     // METHODS -- CONSTRUCTORS --
     
@@ -190,7 +351,13 @@ public abstract class CVFXController {
     public boolean isLoggingActive() {return loggingActive;}
     
     /**
-     *  Returns the OpenCV capture object
+     * Determines whether the controller runs without gui ( FXML nodes are null ).
+     * @return headless
+     */
+    public boolean isHeadless() { return headless; }
+    
+    /**
+     *  Returns the OpenCV capture object ( null in shared capture mode, see getSharedConsumer )
      * @return videoCapture
      */
     public VideoCapture getVideoCapture() { return videoCapture; }
@@ -237,6 +404,335 @@ public abstract class CVFXController {
      */
     public void setRenderBetaActive(boolean active) { renderBetaActive = active; }
     
+    /**
+     * Sets the incremental presentation mode.
+     * When active, views keep their image and only changed regions are written into it,
+     * regions are declared with markDirty or detected with a block diff.
+     * @param active incrementalPresentation
+     */
+    public void setIncrementalPresentation(boolean active) {
+        if (active && !incrementalPresentation) {
+            for (DirtyRegionPresenter p : presenters) p.reset();
+        }
+        incrementalPresentation = active;
+    }
+
+    /**
+     * Determines whether the incremental presentation mode is active.
+     * @return incrementalPresentation
+     */
+    public boolean isIncrementalPresentation() { return incrementalPresentation; }
+
+    /**
+     * Gets the incremental presenter of a view, for block size and statistics.
+     * @param view the view
+     * @return presenter of the view
+     */
+    public DirtyRegionPresenter getPresenter(CVFXView view) { return presenters[view.ordinal()]; }
+
+    /**
+     * Declares a changed region of a view for the current frame ( call this in process method ).
+     * When a view has declared regions, only these are written in incremental mode.
+     * @param view the view
+     * @param region changed rectangle
+     */
+    public void markDirty(CVFXView view, Rect region) { presenters[view.ordinal()].markDirty(region); }
+
+    /**
+     * Bytes saved on the last frame by incremental presentation ( sum of all rendered views ).
+     * @return saved bytes
+     */
+    public long getBytesSaved() { return lastFrameBytesSaved; }
+
+    /**
+     * Sets the stage graph which is evaluated on every frame before process method.
+     * Only stages feeding visible views ( and required stages ) are computed, see StageGraph.
+     * @param graph stage graph, null turns it off
+     */
+    public void setStageGraph(StageGraph graph) { stageGraph = graph; }
+
+    /**
+     * Gets the stage graph.
+     * @return stageGraph or null
+     */
+    public StageGraph getStageGraph() { return stageGraph; }
+
+    /**
+     * Gets the context of the frame which is being processed ( use it in process method ).
+     * It caches derived images like grey or half scale for the rest of the frame, see FrameContext.
+     * @return frameContext
+     */
+    public FrameContext getFrameContext() { return frameContext; }
+
+    /**
+     * Sets the motion gate - frames which don't differ from the last processed one are skipped,
+     * views keep the last outputs. User input always lets the next frame through. See MotionGate.
+     * @param gate motion gate, null turns it off
+     */
+    public void setMotionGate(MotionGate gate) {
+        if (gate != null) gate.reset();
+        motionGate = gate;
+    }
+
+    /**
+     * Gets the motion gate.
+     * @return motionGate or null
+     */
+    public MotionGate getMotionGate() { return motionGate; }
+
+    /**
+     * Sets the quality governor, it steps the knobs down when frames overrun its budget and back up
+     * when there is headroom. See QualityGovernor.
+     * @param governor quality governor, null turns it off
+     */
+    public void setQualityGovernor(QualityGovernor governor) { qualityGovernor = governor; }
+
+    /**
+     * Gets the quality governor.
+     * @return qualityGovernor or null
+     */
+    public QualityGovernor getQualityGovernor() { return qualityGovernor; }
+
+    /**
+     * Gets the stream of captured frames, published before processing. See FramePublisher.
+     * @return publisher of captured frames
+     */
+    public FramePublisher getCapturedPublisher() { return capturedPublisher; }
+
+    /**
+     * Gets the stream of processed frames of a view, published when the view is computed. See FramePublisher.
+     * @param view the view
+     * @return publisher of the view frames
+     */
+    public FramePublisher getFramePublisher(CVFXView view) { return framePublishers[view.ordinal()]; }
+
+    /**
+     * Starts exporting a view into a shared memory ring buffer file for other local processes, see SharedFrameExport.
+     * Export writes on its own thread and always takes the newest frame, close it to stop.
+     * @param view the view
+     * @param file ring buffer file ( for example /dev/shm/cvfx_main on linux )
+     * @param slots frames in the ring
+     * @param capacity maximum frame size in bytes
+     * @return the running export
+     * @throws IOException if the file cannot be created
+     */
+    public SharedFrameExport exportSharedMemory(CVFXView view, File file, int slots, int capacity) throws IOException {
+        SharedFrameExport export = new SharedFrameExport(file, slots, capacity);
+        getFramePublisher(view).subscribe(export, null, 1, FramePublisher.Overflow.DROP_OLDEST);
+        return export;
+    }
+
+    /**
+     * Starts recording a view into a compressed instant replay history, see ReplayHistory.
+     * Frames are encoded on their own thread, close the history to stop recording.
+     * @param view the view
+     * @param arenaBytes off-heap memory for compressed frames
+     * @param seconds history length
+     * @return the recording history
+     */
+    public ReplayHistory startReplayHistory(CVFXView view, int arenaBytes, double seconds) {
+        ReplayHistory history = new ReplayHistory(arenaBytes, seconds);
+        getFramePublisher(view).subscribe(history, null, 8, FramePublisher.Overflow.DROP_OLDEST);
+        return history;
+    }
+
+    /**
+     * Sets a pool of worker processes, frames are then processed out of this process and the local process method
+     * isn't called. User input is forwarded to the workers. See WorkerPool.
+     * @param pool started worker pool, null goes back to local processing ( pool isn't closed )
+     */
+    public void setWorkerPool(WorkerPool pool) { workerPool = pool; }
+
+    /**
+     * Gets the worker pool.
+     * @return workerPool or null
+     */
+    public WorkerPool getWorkerPool() { return workerPool; }
+
+    /**
+     * Opens an image file in still image mode, see setStillImage.
+     * @param file image file
+     * @return false if the image cannot be read
+     */
+    public boolean openStillImage(File file) {
+        Mat image = Imgcodecs.imread(file.getPath());
+        if (image.empty()) {
+            log("ERROR : cannot read still image " + file);
+            return false;
+        }
+        setStillImage(image);
+        log("Still image mode - " + file.getName());
+        return true;
+    }
+
+    /**
+     * Sets still image mode - instead of camera frames, the image is processed once and then again only when
+     * user input changes ( slider, toggle, button, view toggle ). Fast slider drags are coalesced, only the latest
+     * value is processed and a computation made stale by newer input is thrown away ( process can stop early, see isStale ).
+     * Camera is stopped, starting the camera leaves still mode. Call on FX thread.
+     * @param image still image ( it is copied ), null leaves still mode
+     */
+    public void setStillImage(Mat image) {
+        if (image != null && cameraActive) {
+            stopRendering();
+            if (cameraButton != null) cameraButton.setTextFill(Paint.valueOf("#00ffd0")); // set button to cyan start color
+            updateStartButtonText();
+        }
+        stillImage = image == null ? null : image.clone();
+        stillGeneration.incrementAndGet();
+        requestStillProcessing();
+    }
+
+    /**
+     * Returns boolean whether the controller is in still image mode.
+     * @return true in still image mode
+     */
+    public boolean isStillMode() { return stillImage != null; }
+
+    /**
+     * Processes the still image again ( when parameters changed without user input, for example by code ).
+     */
+    public void refreshStill() {
+        stillGeneration.incrementAndGet();
+        requestStillProcessing();
+    }
+
+    /**
+     * Checks if the current computation is stale - in still image mode, newer input arrived and the result
+     * will be thrown away. Long process methods can check it between steps and return early.
+     * Always false when processing camera frames.
+     * @return true if the result of current process call isn't needed anymore
+     */
+    protected boolean isStale() {
+        return stillImage != null && stillComputing != stillGeneration.get();
+    }
+
+    /**
+     * Gets the number of still image computations thrown away because of newer input.
+     * @return stale computations
+     */
+    public long getStaleComputations() { return staleComputations; }
+
+    /**
+     * Sets how often a view is refreshed, 1 is every frame, 2 every second frame...
+     * Frames in between don't present the view and stage graph doesn't compute it.
+     * @param view the view
+     * @param divisor refresh divisor ( at least 1 )
+     */
+    public void setViewRefreshDivisor(CVFXView view, int divisor) { viewRefreshDivisors[view.ordinal()] = Math.max(1, divisor); }
+
+    /**
+     * Gets the refresh divisor of a view.
+     * @param view the view
+     * @return refresh divisor
+     */
+    public int getViewRefreshDivisor(CVFXView view) { return viewRefreshDivisors[view.ordinal()]; }
+
+    /**
+     * Starts a new overlay of a view for the current frame ( use it in process method ).
+     * It replaces the shown overlay after process returns. If it isn't called in a frame,
+     * the last overlay stays shown, so annotations can be refreshed less often than frames.
+     * @param view the view
+     * @return empty overlay to fill
+     */
+    protected Overlay beginOverlay(CVFXView view) {
+        Overlay o = new Overlay();
+        beganOverlays[view.ordinal()] = o;
+        return o;
+    }
+
+    /**
+     * Publishes an overlay of a view right now, from any thread ( for example from a detector thread ).
+     * The overlay is copied, so it can be reused. Without frame size, size of the last frame of the view is used.
+     * @param view the view
+     * @param overlay overlay to show
+     */
+    public void publishOverlay(CVFXView view, Overlay overlay) {
+        int v = view.ordinal();
+        Overlay copy = overlay.copy();
+        if (copy.getFrameWidth() <= 0) copy.setFrameSize(overlayFrameSizes[v][0], overlayFrameSizes[v][1]);
+        publishedOverlays.set(v, copy);
+        scheduleOverlayDraw();
+    }
+
+    /**
+     * Removes the overlay of a view.
+     * @param view the view
+     */
+    public void clearOverlay(CVFXView view) { publishOverlay(view, new Overlay()); }
+
+    /**
+     * Gets the overlay which is shown over a view ( for recorders - see Overlay.drawInto ).
+     * @param view the view
+     * @return last published overlay or null
+     */
+    public Overlay getLastOverlay(CVFXView view) { return publishedOverlays.get(view.ordinal()); }
+
+    /**
+     * Gets the overlay canvas of a view.
+     * @param view the view
+     * @return Canvas node
+     */
+    public Canvas getOverlayCanvas(CVFXView view) {
+        switch (view) {
+            case ALPHA: return overlayAlpha;
+            case BETA: return overlayBeta;
+            default: return overlayMain;
+        }
+    }
+
+    /**
+     * Sets the latency deadline, presented frames with longer capture to display latency are counted as late.
+     * @param millis deadline in milliseconds ( 0 turns it off )
+     */
+    public void setLatencyDeadline(double millis) { latencyHistogram.setDeadline((long)(millis * 1_000_000)); }
+
+    /**
+     * Gets the histogram of capture to display latencies of presented frames.
+     * @return latency histogram
+     */
+    public TimeHistogram getLatencyHistogram() { return latencyHistogram; }
+
+    /**
+     * Gets the stamp of the last processed frame ( its presented time is set later by FX thread ).
+     * @return last frame stamp or null if no frame was processed yet
+     */
+    public FrameStamp getLastFrameStamp() { return lastFrameStamp; }
+
+    /**
+     * Gets the profiler of renderer stages - time and Java heap allocated by grab, process, convert and present.
+     * @return frame profiler
+     */
+    public FrameProfiler getFrameProfiler() { return frameProfiler; }
+
+    /**
+     * Sets whether latency summary is shown at the end of the info label ( refreshed every 30 presented frames ).
+     * @param active latencyInfoActive
+     */
+    public void setLatencyInfoActive(boolean active) {
+        latencyInfoActive = active;
+        updateInfoLabel();
+    }
+
+    /**
+     * Determines whether latency summary is shown in info label.
+     * @return latencyInfoActive
+     */
+    public boolean isLatencyInfoActive() { return latencyInfoActive; }
+
+    /**
+     * Gets the FX image view of a view.
+     * @param view the view
+     * @return ImageView node
+     */
+    public ImageView getImageView(CVFXView view) {
+        switch (view) {
+            case ALPHA: return imageViewAlpha;
+            case BETA: return imageViewBeta;
+            default: return imageViewMain;
+        }
+    }
+
     /**
      *  Sets the camera id ( cannot be lower than zero ). Use this only in init method !
      * @param id Camera id.
@@ -246,12 +742,65 @@ public abstract class CVFXController {
         updateStartButtonText();
     }
     
+    /**
+     * Sets the capture configuration ( resolution, fps, fourcc, buffer size, low latency mode ).
+     * It is applied when the camera is opened, so use this in init method or before starting the camera.
+     * @param settings capture settings
+     */
+    public void setCaptureSettings(CaptureSettings settings) { captureSettings = settings == null ? new CaptureSettings() : settings; }
+
+    /**
+     * Gets the requested capture configuration.
+     * @return captureSettings
+     */
+    public CaptureSettings getCaptureSettings() { return captureSettings; }
+
+    /**
+     * Sets shared capture mode. The camera is opened through SharedCapture, so more controllers in this JVM
+     * ( more windows, see CVFXApp.openWindow ) show the same camera decoded once, each at its own pace.
+     * Use this in init method or before starting the camera. Capture settings of the first controller
+     * which opens the camera are used.
+     * @param shared true to share the camera
+     */
+    public void setSharedCapture(boolean shared) { sharedCapture = shared; }
+
+    /**
+     * Determines whether the camera is shared.
+     * @return shared capture mode
+     */
+    public boolean isSharedCapture() { return sharedCapture; }
+
+    /**
+     * Gets the consumer of the shared camera.
+     * @return consumer or null when not rendering in shared capture mode
+     */
+    public SharedCapture.Consumer getSharedConsumer() { return sharedConsumer; }
+
+    /**
+     * Gets the configuration the device actually accepted when it was last opened.
+     * @return negotiated settings or null if camera wasn't opened yet
+     */
+    public CaptureSettings getNegotiatedCapture() { return negotiatedCapture; }
+
+    /**
+     * Number of stale frames thrown away by low latency mode since the camera was opened.
+     * @return drained frames
+     */
+    public long getDrainedFrames() { return drainedFrames; }
+
     /**
      * Gets the camera id.
      * @return cameraID
      */
     public int getCameraID() { return cameraID;}
     
+    /**
+     * Gets the HUD with typed status fields ( counters, gauges, texts ) shown in the info label.
+     * Its updates are cheap enough for every frame, see Hud.
+     * @return the HUD
+     */
+    public Hud getHud() { return hud; }
+
     /**
      * Sets a String text in infoText List and updates the info label with updateInfoLabel() method
      * @param position The text field number/position
@@ -304,13 +853,24 @@ public abstract class CVFXController {
         imageViewBeta.setPreserveRatio(true);
         
         // add listeners to sliders
-        sliderA.valueProperty().addListener((observableValue, old_val, new_val) -> sliderAChanged(old_val, new_val));
-        sliderB.valueProperty().addListener((observableValue, old_val, new_val) -> sliderBChanged(old_val, new_val));
-        sliderC.valueProperty().addListener((observableValue, old_val, new_val) -> sliderCChanged(old_val, new_val));
-        sliderD.valueProperty().addListener((observableValue, old_val, new_val) -> sliderDChanged(old_val, new_val));
-        sliderE.valueProperty().addListener((observableValue, old_val, new_val) -> sliderEChanged(old_val, new_val));
-        sliderF.valueProperty().addListener((observableValue, old_val, new_val) -> sliderFChanged(old_val, new_val));
-        sliderG.valueProperty().addListener((observableValue, old_val, new_val) -> sliderGChanged(old_val, new_val));
+        sliderA.valueProperty().addListener((observableValue, old_val, new_val) -> { inputChanged("sliderA", String.valueOf(new_val.doubleValue())); sliderAChanged(old_val, new_val); });
+        sliderB.valueProperty().addListener((observableValue, old_val, new_val) -> { inputChanged("sliderB", String.valueOf(new_val.doubleValue())); sliderBChanged(old_val, new_val); });
+        sliderC.valueProperty().addListener((observableValue, old_val, new_val) -> { inputChanged("sliderC", String.valueOf(new_val.doubleValue())); sliderCChanged(old_val, new_val); });
+        sliderD.valueProperty().addListener((observableValue, old_val, new_val) -> { inputChanged("sliderD", String.valueOf(new_val.doubleValue())); sliderDChanged(old_val, new_val); });
+        sliderE.valueProperty().addListener((observableValue, old_val, new_val) -> { inputChanged("sliderE", String.valueOf(new_val.doubleValue())); sliderEChanged(old_val, new_val); });
+        sliderF.valueProperty().addListener((observableValue, old_val, new_val) -> { inputChanged("sliderF", String.valueOf(new_val.doubleValue())); sliderFChanged(old_val, new_val); });
+        sliderG.valueProperty().addListener((observableValue, old_val, new_val) -> { inputChanged("sliderG", String.valueOf(new_val.doubleValue())); sliderGChanged(old_val, new_val); });
+        
+        // drop an image file on the main view to open it in still image mode
+        imageViewMain.getParent().setOnDragOver(e -> {
+            if (e.getDragboard().hasFiles()) e.acceptTransferModes(TransferMode.COPY);
+            e.consume();
+        });
+        imageViewMain.getParent().setOnDragDropped(e -> {
+            List<File> files = e.getDragboard().hasFiles() ? e.getDragboard().getFiles() : null;
+            e.setDropCompleted(files != null && !files.isEmpty() && openStillImage(files.get(0)));
+            e.consume();
+        });
         
         // load node references which should be hidden using java reflection
         // this code works with annotations and is quite complicated
@@ -335,6 +895,9 @@ public abstract class CVFXController {
         }
         
 
+        hud.takeDirty(); // changes before init scheduled nothing, schedule the first label now
+        hud.markDirty();
+
         init();
     }
     
@@ -347,6 +910,26 @@ public abstract class CVFXController {
      */
     protected abstract void init();
     
+    /**
+     * Initializes the controller for use without gui.
+     * Used by headless runners ( ReplayHarness etc. ) instead of initController, init isn't called.
+     *
+     * This method is used only in package and mustn't be overridden.
+     */
+    void initHeadlessController() { // only in package
+        headless = true;
+        log("Initializing headless controller");
+        initHeadless();
+    }
+    
+    /**
+     * Initialization method for headless runs ( ReplayHarness and other runners without gui ).
+     * It is called instead of init, so load everything process needs here ( classifiers etc. ),
+     * but don't touch FXML nodes, they are null.
+     * This method isn't mandatory.
+     */
+    protected void initHeadless() {}
+    
     /**
      * This is an another initialization method.
      * It is called when the JavaFX Stage is shown (resp. rendered).
@@ -360,6 +943,21 @@ public abstract class CVFXController {
      */
     protected void closeController() { // external
         stopRendering();
+
+        // subscribers get onComplete after their buffered frames
+        capturedPublisher.close();
+        for (FramePublisher p : framePublishers) p.close();
+
+        stillImage = null;
+        stillExecutor.shutdown();
+
+        // let the device thread finish the release before the app exits
+        deviceExecutor.shutdown();
+        try {
+            deviceExecutor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 
     // METHODS -- GUI --
@@ -368,16 +966,32 @@ public abstract class CVFXController {
      * Updates the start button text ( dependent on cameraID )
      */
     private void updateStartButtonText() {
-        cameraButton.setText("Start Camera " + String.valueOf(cameraID));
+        if (cameraButton == null) return; // headless
+        cameraButton.setText((cameraActive ? "Stop Camera " : "Start Camera ") + String.valueOf(cameraID));
     }
     
     /**
-     * Updates the info label ( concatenates the Strings in infoText field )
+     * Updates the info label ( concatenates the Strings in infoText field and the HUD fields ).
+     * It only marks the label dirty, so it can be called any time - the label is rebuilt
+     * on FX thread once for all changes since the last rebuild.
      */
     public void updateInfoLabel() {
-        StringBuilder temp = new StringBuilder();
-        for (String s : infoText) temp.append(s);
-        Platform.runLater(() -> infoLabel.setText( (cameraActive ? "[ Rendering Active ] " : "[ Rendering stopped ] ") + temp.toString()));
+        hud.markDirty();
+    }
+
+    /**
+     * Rebuilds the info label when something changed, scheduled by the first change since the last rebuild ( FX thread ).
+     */
+    private void rebuildInfoLabel() {
+        if (!hud.takeDirty() || infoLabel == null) return; // changes from now on schedule another rebuild
+        StringBuilder sb = infoBuilder;
+        sb.setLength(0);
+        sb.append(cameraActive ? "[ Rendering Active ] " : "[ Rendering stopped ] ");
+        for (String s : infoText) sb.append(s);
+        hud.appendTo(sb);
+        if (latencyInfoActive) sb.append(" [ latency ").append(latencyHistogram.summary()).append(" ]");
+        String shown = infoLabel.getText();
+        if (shown == null || !shown.contentEquals(sb)) infoLabel.setText(sb.toString()); // unchanged text isn't laid out again
     }
     
     /**
@@ -386,6 +1000,7 @@ public abstract class CVFXController {
      * @param visible visible
      */
     private void setVisibleDetected(Node n, boolean visible) {
+        if (n == null) return; // headless
         if ( Slider.class.isAssignableFrom(n.getClass())) {
             n.setVisible(visible);
             try {
@@ -491,24 +1106,54 @@ public abstract class CVFXController {
     /** Executes when buttonF is pressed */
     @FXML protected void buttonFPressed() {}
     
+    /** Internal button action */
+    @FXML private void buttonAAction() { inputChanged("buttonA", null); buttonAPressed(); }
+    /** Internal button action */
+    @FXML private void buttonBAction() { inputChanged("buttonB", null); buttonBPressed(); }
+    /** Internal button action */
+    @FXML private void buttonCAction() { inputChanged("buttonC", null); buttonCPressed(); }
+    /** Internal button action */
+    @FXML private void buttonDAction() { inputChanged("buttonD", null); buttonDPressed(); }
+    /** Internal button action */
+    @FXML private void buttonEAction() { inputChanged("buttonE", null); buttonEPressed(); }
+    /** Internal button action */
+    @FXML private void buttonFAction() { inputChanged("buttonF", null); buttonFPressed(); }
+    
     /**
      * Starts the videoCapture and starts rendering.
+     * The device is opened on the device thread, rendering starts on FX thread when it's ready.
      */
     @FXML
     private void startCamera() {
         if (!cameraActive) {
-            videoCapture.open(cameraID);
+            stillImage = null; // leave still image mode
+            stillGeneration.incrementAndGet();
+            final int id = cameraID;
+            cameraButton.setDisable(true);
+            cameraButton.setText("Opening " + id);
 
-            if (videoCapture.isOpened()) {
-                cameraActive = true;
-                startRendering();
-				cameraButton.setTextFill(Paint.valueOf("#faff00")); // set button to purple stop color
-                cameraButton.setText("Stop Camera");
-            } else {
-                log("CANNOT OPEN CAMERA " + cameraID);
-                cameraButton.setTextFill(Paint.valueOf("#F44336")); // set button to red error color
-                cameraButton.setText("ERROR");
-            }
+            deviceExecutor.execute(() -> {
+                awaitStill(); // renderer starts only after the last still pass
+                final boolean shared = sharedCapture;
+                VideoCapture capture = shared ? null : openDevice(id);
+                SharedCapture.Consumer consumer = shared ? SharedCapture.open(id, captureSettings) : null;
+                Platform.runLater(() -> {
+                    cameraButton.setDisable(false);
+                    if (capture != null || consumer != null) {
+                        videoCapture = capture;
+                        sharedConsumer = consumer;
+                        negotiatedCapture = shared ? consumer.getCapture().getNegotiated() : captureSettings.negotiate(capture);
+                        drainedFrames = 0;
+                        cameraActive = true;
+                        startRendering();
+                        cameraButton.setTextFill(Paint.valueOf("#faff00")); // set button to purple stop color
+                        updateStartButtonText();
+                    } else {
+                        cameraButton.setTextFill(Paint.valueOf("#F44336")); // set button to red error color
+                        cameraButton.setText("ERROR");
+                    }
+                });
+            });
 
         } else {
             stopRendering();
@@ -518,23 +1163,32 @@ public abstract class CVFXController {
     }
     
     /**
-     * Increases camera ID.
+     * Increases camera ID, switches to the camera when rendering.
      */
     @FXML
     private void increaseCamera() {
-        if (cameraActive) stopRendering();
-        cameraID++;
-        updateStartButtonText();
+        if (cameraActive) {
+            int to = switchTarget.get();
+            switchCamera((to >= 0 ? to : cameraID) + 1);
+        }
+        else {
+            cameraID++;
+            updateStartButtonText();
+        }
     }
     
     /**
-     * Decreases camera ID.
+     * Decreases camera ID, switches to the camera when rendering.
      */
     @FXML
     private void decreaseCamera() {
-        if (cameraActive) stopRendering();
-        if (cameraID>0) cameraID--;
-        updateStartButtonText();
+        if (cameraActive) {
+            int to = switchTarget.get(), from = to >= 0 ? to : cameraID;
+            if (from > 0) switchCamera(from - 1);
+        } else {
+            if (cameraID>0) cameraID--;
+            updateStartButtonText();
+        }
     }
     
     // SECTION toggle button handling
@@ -545,6 +1199,7 @@ public abstract class CVFXController {
      */
     @FXML private void renderMainAction(ActionEvent e) {
         renderMainActive = ((ToggleButton)e.getSource()).isSelected();
+        inputChanged(null, null); // view flags go with every frame
     }
     
     /**
@@ -553,6 +1208,7 @@ public abstract class CVFXController {
      */
     @FXML private void renderAlphaAction(ActionEvent e) {
         renderAlphaActive = ((ToggleButton)e.getSource()).isSelected();
+        inputChanged(null, null); // view flags go with every frame
     }
     
     /**
@@ -561,24 +1217,25 @@ public abstract class CVFXController {
      */
     @FXML private void renderBetaAction(ActionEvent e) {
         renderBetaActive = ((ToggleButton)e.getSource()).isSelected();
+        inputChanged(null, null); // view flags go with every frame
     }
     
     /** Internal toggle action */
-    @FXML private void toggleAAction() {toggleAChanged(toggleA.isSelected());}
+    @FXML private void toggleAAction() { inputChanged("toggleA", String.valueOf(toggleA.isSelected())); toggleAChanged(toggleA.isSelected()); }
     /** Internal toggle action */
-    @FXML private void toggleBAction() {toggleBChanged(toggleB.isSelected());}
+    @FXML private void toggleBAction() { inputChanged("toggleB", String.valueOf(toggleB.isSelected())); toggleBChanged(toggleB.isSelected()); }
     /** Internal toggle action */
-    @FXML private void toggleCAction() {toggleCChanged(toggleC.isSelected());}
+    @FXML private void toggleCAction() { inputChanged("toggleC", String.valueOf(toggleC.isSelected())); toggleCChanged(toggleC.isSelected()); }
     /** Internal toggle action */
-    @FXML private void toggleDAction() {toggleDChanged(toggleD.isSelected());}
+    @FXML private void toggleDAction() { inputChanged("toggleD", String.valueOf(toggleD.isSelected())); toggleDChanged(toggleD.isSelected()); }
     /** Internal toggle action */
-    @FXML private void toggleEAction() {toggleEChanged(toggleE.isSelected());}
+    @FXML private void toggleEAction() { inputChanged("toggleE", String.valueOf(toggleE.isSelected())); toggleEChanged(toggleE.isSelected()); }
     /** Internal toggle action */
-    @FXML private void toggleFAction() {toggleFChanged(toggleF.isSelected());}
+    @FXML private void toggleFAction() { inputChanged("toggleF", String.valueOf(toggleF.isSelected())); toggleFChanged(toggleF.isSelected()); }
     /** Internal toggle action */
-    @FXML private void toggleGAction() {toggleGChanged(toggleG.isSelected());}
+    @FXML private void toggleGAction() { inputChanged("toggleG", String.valueOf(toggleG.isSelected())); toggleGChanged(toggleG.isSelected()); }
     /** Internal toggle action */
-    @FXML private void toggleHAction() {toggleHChanged(toggleH.isSelected());}
+    @FXML private void toggleHAction() { inputChanged("toggleH", String.valueOf(toggleH.isSelected())); toggleHChanged(toggleH.isSelected()); }
     
     /**
      * Executes when toggleA changes.
@@ -629,9 +1286,21 @@ public abstract class CVFXController {
      */
     private Mat grabFrame() {
         Mat frame = new Mat(); // empty mat
-        if (videoCapture.isOpened()) {
+        SharedCapture.Consumer consumer = sharedConsumer;
+        if (consumer != null) {
+            // own copy of the shared frame, process can change it
+            try {
+                SharedCapture.Frame shared = consumer.take(100, TimeUnit.MILLISECONDS);
+                if (shared != null) {
+                    shared.getMat().copyTo(frame);
+                    shared.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (videoCapture != null && videoCapture.isOpened()) {
             try {
-                videoCapture.read(frame);
+                drainedFrames += captureSettings.read(videoCapture, frame);
             } catch (Exception ex) {
                 log("[CV] Error during image processing.");
             }
@@ -639,10 +1308,330 @@ public abstract class CVFXController {
         return frame;
     }
     
+    /**
+     * Schedules drawing of overlays on FX thread, more publishes before the draw are coalesced into one.
+     */
+    private void scheduleOverlayDraw() {
+        if (headless || overlayMain == null) return;
+        if (overlayDrawScheduled.compareAndSet(false, true)) Platform.runLater(this::drawOverlays);
+    }
+
+    /**
+     * Draws changed overlays on their canvases, canvas is sized to the shown image. FX thread only.
+     */
+    private void drawOverlays() {
+        overlayDrawScheduled.set(false);
+        for (CVFXView view : CVFXView.values()) {
+            int v = view.ordinal();
+            Overlay o = publishedOverlays.get(v);
+            Canvas canvas = getOverlayCanvas(view);
+            Bounds bounds = getImageView(view).getLayoutBounds();
+
+            boolean resized = canvas.getWidth() != bounds.getWidth() || canvas.getHeight() != bounds.getHeight();
+            if (o == drawnOverlays[v] && !resized) continue;
+
+            canvas.setWidth(bounds.getWidth());
+            canvas.setHeight(bounds.getHeight());
+            GraphicsContext gc = canvas.getGraphicsContext2D();
+            gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            if (o != null && o.getFrameWidth() > 0 && o.getFrameHeight() > 0) {
+                o.draw(gc, canvas.getWidth() / o.getFrameWidth(), canvas.getHeight() / o.getFrameHeight());
+            }
+            drawnOverlays[v] = o;
+        }
+    }
+
+    /**
+     * Checks if a view should be refreshed on the current frame by its refresh divisor.
+     * @param view the view
+     * @return true if the view is due
+     */
+    private boolean refreshDue(CVFXView view) {
+        return frameSequence % viewRefreshDivisors[view.ordinal()] == 0;
+    }
+
+    /**
+     * Called on every user input ( slider, toggle, button, view toggle ) before the handler.
+     * Lets the next frame through the motion gate and forwards the input to worker processes.
+     * @param control control name like sliderA, null for view toggles
+     * @param value slider value, toggle state or null for buttons
+     */
+    private void inputChanged(String control, String value) {
+        MotionGate gate = motionGate;
+        if (gate != null) gate.trigger();
+        WorkerPool pool = workerPool;
+        if (pool != null && control != null) pool.sendControl(control, value);
+
+        // still image mode, new generation only after the handler changed the parameters ( runLater runs after it ),
+        // a pass started before that can't take the new generation with old parameters
+        if (stillImage != null) Platform.runLater(() -> {
+            stillGeneration.incrementAndGet(); // running computation is stale now
+            requestStillProcessing();
+        });
+    }
+
+    /**
+     * Schedules processing of the still image, requests while a computation waits are merged into it.
+     */
+    private void requestStillProcessing() {
+        if (stillImage == null || stillExecutor.isShutdown()) return;
+        if (stillScheduled.compareAndSet(false, true)) stillExecutor.execute(this::processStill);
+    }
+
+    /**
+     * Processes the still image with the latest inputs and presents it, unless newer input made it stale.
+     * Runs on the still thread.
+     */
+    private void processStill() {
+        stillScheduled.set(false); // inputs from now on schedule another pass
+        Mat source = stillImage;
+        long generation = stillGeneration.get();
+        if (source == null || generation == stillShown) return;
+        if (!awaitRenderer()) return;
+        stillComputing = generation;
+
+        FrameStamp stamp = new FrameStamp(++frameSequence);
+        stamp.grabbed = System.nanoTime();
+        Mat frame = source.clone(), frameAlpha = new Mat(), frameBeta = new Mat();
+        boolean main = renderMainActive, alpha = renderAlphaActive, beta = renderBetaActive;
+
+        frameProfiler.begin(FrameProfiler.Stage.PROCESS);
+        runProcessing(frame, frameAlpha, frameBeta, main, alpha, beta);
+        stamp.processed = System.nanoTime();
+        frameProfiler.end(FrameProfiler.Stage.PROCESS, stamp.getSequence(), frame);
+
+        if (stillGeneration.get() != generation || stillImage != source) {
+            staleComputations++; // newer input, its pass is already scheduled
+        } else {
+            presentFrame(stamp, frame, frameAlpha, frameBeta, main, alpha, beta);
+            stillShown = generation;
+        }
+        frame.release();
+        frameAlpha.release();
+        frameBeta.release();
+    }
+
+    /**
+     * Waits until the frame of stopped rendering is finished, the controller never processes on two threads.
+     * @return false if interrupted
+     */
+    private boolean awaitRenderer() {
+        ScheduledExecutorService stopped = stoppingTimer;
+        if (stopped == null) return true;
+        try {
+            while (!stopped.awaitTermination(2, TimeUnit.SECONDS)) log("ERROR : frame still running after 2 s, still image waits");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the running still pass is finished ( still mode was left before ), called on the device thread.
+     */
+    private void awaitStill() {
+        try {
+            stillExecutor.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException ignored) {} // closing
+    }
+
+    /**
+     * Opens and configures a capture device, called on the device thread.
+     * @param id camera id
+     * @return opened capture or null if it cannot be opened
+     */
+    private VideoCapture openDevice(int id) {
+        VideoCapture capture = new VideoCapture();
+        capture.open(id);
+        if (!capture.isOpened()) {
+            log("CANNOT OPEN CAMERA " + id);
+            return null;
+        }
+        captureSettings.apply(capture);
+        log("Camera " + id + " opened : " + captureSettings.negotiate(capture));
+        return capture;
+    }
+
+    /**
+     * Releases a device or closes a shared camera consumer, called on the device thread.
+     * @param capture capture to release, can be null ( headless, shared mode )
+     * @param consumer consumer to close, can be null
+     */
+    private void releaseDevice(VideoCapture capture, SharedCapture.Consumer consumer) {
+        if (capture != null && capture.isOpened()) capture.release();
+        if (consumer != null) consumer.close();
+    }
+
+    /**
+     * Switches the rendering to another camera without stopping.
+     * The target is opened on the device thread while the current camera keeps streaming,
+     * then the renderer swaps it in between two frames. If the target cannot be opened, current camera stays.
+     * When another switch is requested in the meantime, the older target is released as soon as it opens.
+     * @param id target camera id
+     */
+    private void switchCamera(final int id) {
+        switchTarget.set(id);
+        cameraButton.setText("Switching to " + id);
+
+        deviceExecutor.execute(() -> {
+            if (switchTarget.get() != id || !cameraActive) return; // already superseded
+            final boolean shared = sharedConsumer != null;
+            VideoCapture capture = shared ? null : openDevice(id);
+            SharedCapture.Consumer consumer = shared ? SharedCapture.open(id, captureSettings) : null;
+
+            if (switchTarget.get() != id || !cameraActive) {
+                releaseDevice(capture, consumer);
+                return;
+            }
+            if (capture == null && consumer == null) {
+                switchTarget.compareAndSet(id, -1); // a newer request stays
+                Platform.runLater(this::updateStartButtonText);
+                return;
+            }
+
+            if (shared) releaseDevice(null, pendingConsumer.getAndSet(consumer));
+            else releaseDevice(pendingCapture.getAndSet(capture), null);
+            switchTarget.compareAndSet(id, -1); // a newer request stays
+            Platform.runLater(() -> {
+                cameraID = id;
+                updateStartButtonText();
+            });
+        });
+    }
+
+    /**
+     * Swaps in the pending capture of a camera switch, called by renderer between frames.
+     * The old device is released on the device thread, no frame uses it anymore.
+     */
+    private void swapPendingCapture() {
+        SharedCapture.Consumer nextConsumer = pendingConsumer.getAndSet(null);
+        if (nextConsumer != null) {
+            final SharedCapture.Consumer old = sharedConsumer;
+            sharedConsumer = nextConsumer;
+            MotionGate gate = motionGate;
+            if (gate != null) gate.reset();
+            negotiatedCapture = nextConsumer.getCapture().getNegotiated();
+            deviceExecutor.execute(() -> releaseDevice(null, old));
+            log("Rendering switched to the new shared camera");
+            return;
+        }
+
+        VideoCapture next = pendingCapture.getAndSet(null);
+        if (next == null) return;
+
+        final VideoCapture old = videoCapture;
+        videoCapture = next;
+        MotionGate gate = motionGate;
+        if (gate != null) gate.reset();
+        negotiatedCapture = captureSettings.negotiate(next);
+        drainedFrames = 0;
+        deviceExecutor.execute(() -> {
+            if (old.isOpened()) old.release();
+        });
+        log("Rendering switched to the new camera");
+    }
+
+    /**
+     * Puts a frame to a view, either incrementally or as a new converted image.
+     * @param view target view
+     * @param mat frame to show
+     * @return bytes saved by incremental presentation
+     */
+    private long presentView(CVFXView view, Mat mat) {
+        if (headless) return 0;
+        if (incrementalPresentation) return presenters[view.ordinal()].present(mat, getImageView(view));
+        CVUtility.setProperty(getImageView(view).imageProperty(), CVUtility.mat2Image(mat));
+        return 0;
+    }
+
+    /**
+     * Presents processed views of a frame and records its timing.
+     * @param stamp stamp of the frame, grabbed and processed are set
+     */
+    private void presentFrame(FrameStamp stamp, Mat frame, Mat frameAlpha, Mat frameBeta, boolean main, boolean alpha, boolean beta) {
+        frameProfiler.begin(FrameProfiler.Stage.CONVERT);
+        long saved = 0;
+        if (main) saved += presentView(CVFXView.MAIN, frame);
+
+        // update alpha and beta views
+        if (alpha && !frameAlpha.empty())
+            saved += presentView(CVFXView.ALPHA, frameAlpha);
+
+        if (beta && !frameBeta.empty())
+            saved += presentView(CVFXView.BETA, frameBeta);
+
+        lastFrameBytesSaved = saved;
+        stamp.converted = System.nanoTime();
+        lastFrameStamp = stamp;
+        frameProfiler.end(FrameProfiler.Stage.CONVERT, stamp.getSequence(), frame);
+
+        // runLater is ordered, so this runs after the views got their images
+        if ((main || alpha || beta) && !headless) {
+            Object presentEvent = frameProfiler.beginPresent(frame); // frame may be released before FX thread runs
+            Platform.runLater(() -> framePresented(stamp, presentEvent));
+        }
+
+        QualityGovernor governor = qualityGovernor;
+        if (governor != null) {
+            String change = governor.record(stamp.converted - stamp.grabbed);
+            if (change != null) log(change);
+        }
+    }
+
+    /**
+     * Takes finished results of worker processes in order, publishes all of them and presents the newest.
+     * @param pool the worker pool
+     */
+    private void presentWorkerResults(WorkerPool pool) {
+        WorkerPool.Result r, newest = null;
+        long taken = System.nanoTime();
+        while ((r = pool.poll()) != null) {
+            if (r.isFailed()) {
+                frameProfiler.workerFrame(r.getSequence(), r.getMain(), taken - r.getSubmitted(), false);
+                r.release();
+                continue;
+            }
+            Mat[] mats = {r.getMain(), r.getAlpha(), r.getBeta()};
+            for (int v = 0; v < mats.length; v++) framePublishers[v].publish(r.getSequence(), mats[v]);
+            if (newest != null) {
+                frameProfiler.workerFrame(newest.getSequence(), newest.getMain(), taken - newest.getSubmitted(), false);
+                newest.release();
+            }
+            newest = r;
+        }
+        if (newest == null) return;
+
+        FrameStamp stamp = new FrameStamp(newest.getSequence());
+        stamp.grabbed = newest.getSubmitted();
+        stamp.processed = taken;
+        presentFrame(stamp, newest.getMain(), newest.getAlpha(), newest.getBeta(),
+                renderMainActive, renderAlphaActive, renderBetaActive);
+        frameProfiler.workerFrame(newest.getSequence(), newest.getMain(), taken - newest.getSubmitted(), true);
+        newest.release();
+    }
+
+    /**
+     * Called on FX thread after the views of a frame were set, records the latency.
+     * @param stamp stamp of the presented frame
+     * @param presentEvent present stage event of the profiler, can be null
+     */
+    private void framePresented(FrameStamp stamp, Object presentEvent) {
+        stamp.presented = System.nanoTime();
+        frameProfiler.presented(presentEvent, stamp);
+        latencyHistogram.record(stamp.getEndToEnd());
+        if (latencyInfoActive && stamp.getSequence() % 30 == 0) updateInfoLabel();
+    }
+
     /**
      * Starts rendering.
      */
     private void startRendering() {
+        for (DirtyRegionPresenter p : presenters) p.reset();
+        MotionGate gate = motionGate;
+        if (gate != null) gate.reset();
         timer = Executors.newSingleThreadScheduledExecutor();
         timer.scheduleAtFixedRate(frameRenderer, 0, 33, TimeUnit.MILLISECONDS);
         
@@ -652,24 +1641,34 @@ public abstract class CVFXController {
     
     /**
      * Stops rendering and releases the video capture device.
+     * The release waits on the device thread until the frame in flight is finished,
+     * so the device is never released under a running read.
      */
     private void stopRendering() {
         cameraActive = false;
+        switchTarget.set(-1);
 
-        if (timer != null && !timer.isShutdown()) {
+        final ScheduledExecutorService stoppedTimer = timer;
+        stoppingTimer = stoppedTimer;
+        if (stoppedTimer != null) stoppedTimer.shutdown();
+
+        deviceExecutor.execute(() -> {
             try {
-                timer.shutdown();
-                timer.awaitTermination(33, TimeUnit.MILLISECONDS);
+                if (stoppedTimer != null && !stoppedTimer.awaitTermination(2, TimeUnit.SECONDS)) {
+                    log("ERROR : frame still running after 2 s, releasing camera anyway");
+                }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
-        }
+            // renderer is stopped, it can't swap a pending device in between these reads anymore
+            releaseDevice(videoCapture, sharedConsumer);
+            releaseDevice(pendingCapture.getAndSet(null), pendingConsumer.getAndSet(null));
+            sharedConsumer = null;
+        });
         
         updateInfoLabel();
         
         log("Rendering stopped - camera " + cameraID);
-
-        if (videoCapture.isOpened()) videoCapture.release();
     }
     
     // METHODS -- SPECIFIC --
@@ -684,15 +1683,67 @@ public abstract class CVFXController {
     protected abstract void process(Mat mainframe, Mat alphaframe, Mat betaframe);
     
     
+    /**
+     * Runs the processing of one frame - stage graph ( if set ) and then process method.
+     * Used by renderer and headless runners.
+     * @param mainframe frame for MAIN view, holds the captured frame
+     * @param alphaframe frame for ALPHA view
+     * @param betaframe frame for BETA view
+     * @param main Main view is visible
+     * @param alpha Alpha view is visible
+     * @param beta Beta view is visible
+     */
+    void runProcessing(Mat mainframe, Mat alphaframe, Mat betaframe, boolean main, boolean alpha, boolean beta) {
+        frameContext.begin(mainframe, ++processedFrames);
+        capturedPublisher.publish(processedFrames, mainframe); // copies only when somebody listens
+        StageGraph graph = stageGraph;
+        if (graph != null) {
+            graph.evaluate(mainframe, main, alpha, beta);
+            graph.copySinks(mainframe, alphaframe, betaframe, main, alpha, beta);
+        }
+        if (isStale()) return; // newer still image input, result would be thrown away
+        process(mainframe, alphaframe, betaframe);
+
+        // publish overlays begun in process, sized by their frames ( main size for empty ones )
+        Mat[] mats = {mainframe, alphaframe, betaframe};
+        boolean[] computed = {main, alpha, beta};
+        for (CVFXView view : CVFXView.values()) {
+            int v = view.ordinal();
+            Mat m = mats[v].empty() ? mainframe : mats[v];
+            overlayFrameSizes[v][0] = m.cols();
+            overlayFrameSizes[v][1] = m.rows();
+            if (beganOverlays[v] != null) {
+                publishOverlay(view, beganOverlays[v]);
+                beganOverlays[v] = null;
+            }
+            if (computed[v]) framePublishers[v].publish(processedFrames, mats[v]);
+        }
+    }
+
+    /**
+     * Burns the shown overlays into the view Mats, used by headless runners so their outputs contain annotations.
+     * @param mainframe frame of MAIN view
+     * @param alphaframe frame of ALPHA view
+     * @param betaframe frame of BETA view
+     */
+    void burnOverlays(Mat mainframe, Mat alphaframe, Mat betaframe) {
+        Mat[] mats = {mainframe, alphaframe, betaframe};
+        for (int v = 0; v < mats.length; v++) {
+            Overlay o = publishedOverlays.get(v);
+            if (o != null && !mats[v].empty()) o.drawInto(mats[v]);
+        }
+    }
+    
     // METHODS -- OTHER --
     
     /**
      * This method is used internally for logging and you can use it too.
      * It checks if logging is active and then prints stuff.
+     * It never blocks, messages are printed by a background thread and repeated ones are rate limited ( see AsyncLog ).
      * @param text text to log
      */
     protected void log(String text) {
-        if (loggingActive) System.out.println("[CVFXController] " + text);
+        if (loggingActive) AsyncLog.log("CVFXController", text);
     }
 
 }
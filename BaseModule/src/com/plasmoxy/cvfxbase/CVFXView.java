@@ -0,0 +1,16 @@
+package com.plasmoxy.cvfxbase;
+
+/**
+ * The three image views of CVFXBase gui.
+ * Used by controller methods which work with a single view.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public enum CVFXView {
+    /** The big view, shows mainframe */
+    MAIN,
+    /** Upper small view, shows alphaframe */
+    ALPHA,
+    /** Lower small view, shows betaframe */
+    BETA
+}
@@ -4,10 +4,13 @@ import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
 
 /**
  * Useful methods for OpenCV.
@@ -47,26 +50,89 @@ public final class CVUtility {
         });
     }
     
+    /**
+     * Converts nanoseconds to milliseconds rounded to 2 decimal places ( for printing ).
+     * @param nanos time in nanoseconds
+     * @return time in milliseconds
+     */
+    public static double nanosToMillis(long nanos) {
+        return Math.round(nanos / 10_000.0) / 100.0;
+    }
+    
+    /**
+     * Zero-copy view of pixels of a Mat as a direct ByteBuffer ( and MemorySegment, see MatView ).
+     * Close the view before the Mat is released or reallocated, see MatView for lifetime rules.
+     * Needs --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED.
+     *
+     * @param mat continuous Mat with data
+     * @return open view, close it when done
+     * @throws UnsupportedOperationException when jdk.incubator.foreign isn't available
+     */
+    public static MatView viewOf(Mat mat) {
+        return MatView.of(mat);
+    }
+    
+    /**
+     * Wraps an existing direct buffer as a Mat, without copying. The buffer owns the memory, keep the view
+     * as long as the Mat is used, see MatView for lifetime rules.
+     *
+     * @param buffer direct buffer, pixels from index 0
+     * @param rows rows
+     * @param cols columns
+     * @param type OpenCV type
+     * @return view with the Mat, closing it releases the Mat
+     */
+    public static MatView wrapDirect(ByteBuffer buffer, int rows, int cols, int type) {
+        return MatView.wrap(buffer, rows, cols, type);
+    }
+    
+    /**
+     * Allocates a Mat in a new direct buffer, so its pixels are readable and writable through the buffer
+     * without copying. See MatView for lifetime rules.
+     *
+     * @param rows rows
+     * @param cols columns
+     * @param type OpenCV type
+     * @return view with the Mat, closing it releases the Mat
+     */
+    public static MatView allocateDirect(int rows, int cols, int type) {
+        return MatView.allocate(rows, cols, type);
+    }
+    
+    /**
+     * Reused BGR copy of 4 channel Mats, per converting thread
+     */
+    private static final ThreadLocal<Mat> bgr = ThreadLocal.withInitial(Mat::new);
+
     /**
      * Effective converter from OpenCV mat to BufferedImage
-     * @param original OpenCV Mat
+     * @param original OpenCV Mat, 8 bit gray, BGR or BGRA ( alpha is dropped )
      * @return converted BufferedImage
+     * @throws IllegalArgumentException for other Mat types, the raster would be filled with garbage
      */
     private static BufferedImage matToBufferedImage(Mat original) {
         // initController
         BufferedImage image = null;
         int width = original.width(), height = original.height(), channels = original.channels();
-        byte[] sourcePixels = new byte[width * height * channels];
-        original.get(0, 0, sourcePixels);
+
+        Mat source = original;
+        if (CvType.depth(original.type()) != CvType.CV_8U || (channels != 1 && channels != 3 && channels != 4)) {
+            throw new IllegalArgumentException("Cannot convert " + original + " to an image, 8 bit gray, BGR or BGRA expected");
+        }
+        if (channels == 4) {
+            source = bgr.get();
+            Imgproc.cvtColor(original, source, Imgproc.COLOR_BGRA2BGR);
+        }
 
         image = new BufferedImage(
                 width,
                 height,
-                original.channels() > 1 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_BYTE_GRAY
+                channels > 1 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_BYTE_GRAY
         );
 
+        // copy straight into the image raster, no intermediate array
         final byte[] targetPixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-        System.arraycopy(sourcePixels, 0, targetPixels, 0, sourcePixels.length);
+        source.get(0, 0, targetPixels);
 
         return image;
     }
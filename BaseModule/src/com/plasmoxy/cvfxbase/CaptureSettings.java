@@ -0,0 +1,182 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.VideoWriter;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Capture device configuration - resolution, FPS, FOURCC and internal buffer size.
+ * Zero ( or null fourcc ) means "leave the device default".
+ * Set it on controller with setCaptureSettings in init method, it is applied every time the camera is opened.
+ *
+ * <p>
+ * Many USB cameras open in uncompressed YUY2 at low FPS and buffer several frames,
+ * so for example this gives 720p at full rate with small lag on most of them :
+ * <pre>
+ * CaptureSettings s = new CaptureSettings();
+ * s.setResolution(1280, 720);
+ * s.setFps(30);
+ * s.setFourcc("MJPG");
+ * s.setBufferSize(1);
+ * s.setLowLatency(true);
+ * setCaptureSettings(s);
+ * </pre>
+ *
+ * <p>
+ * Low latency mode drains frames which are already queued in the device ( grab returns immediately for them )
+ * and retrieves only the newest one, so process always works with the freshest frame.
+ *
+ * <p>
+ * Devices don't have to accept the requested values, use negotiate to read back what was actually set.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class CaptureSettings {
+
+    private int width, height, bufferSize;
+    private double fps;
+    private String fourcc;
+    private boolean lowLatency = false;
+
+    /**
+     * Grab faster than this is a frame which was waiting in the queue ( nanoseconds ).
+     */
+    private long queuedGrabNanos = 4_000_000;
+
+    /** Limit of drained frames per one read, so a device which never blocks can't hang the renderer */
+    private int maxDrain = 8;
+
+    // METHODS -- ACCESSORS --
+
+    /**
+     * Sets requested resolution.
+     * @param width frame width
+     * @param height frame height
+     */
+    public void setResolution(int width, int height) {
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+    }
+
+    /** @return requested/negotiated frame width, 0 is default */
+    public int getWidth() { return width; }
+
+    /** @return requested/negotiated frame height, 0 is default */
+    public int getHeight() { return height; }
+
+    /** @param fps requested frames per second */
+    public void setFps(double fps) { this.fps = Math.max(0, fps); }
+
+    /** @return requested/negotiated frames per second, 0 is default */
+    public double getFps() { return fps; }
+
+    /**
+     * Sets requested pixel format.
+     * @param fourcc four character code like "MJPG" or "YUYV", null is default
+     */
+    public void setFourcc(String fourcc) {
+        if (fourcc != null && fourcc.length() != 4) throw new IllegalArgumentException("FOURCC must have 4 characters : " + fourcc);
+        this.fourcc = fourcc;
+    }
+
+    /** @return requested/negotiated four character code, null is default */
+    public String getFourcc() { return fourcc; }
+
+    /** @param frames requested size of the internal device buffer ( not all backends support it ) */
+    public void setBufferSize(int frames) { bufferSize = Math.max(0, frames); }
+
+    /** @return requested/negotiated buffer size, 0 is default */
+    public int getBufferSize() { return bufferSize; }
+
+    /** @param active low latency mode, drain queued frames and process the newest one */
+    public void setLowLatency(boolean active) { lowLatency = active; }
+
+    /** @return low latency mode */
+    public boolean isLowLatency() { return lowLatency; }
+
+    /** @param millis grabs faster than this are counted as already queued frames ( default 4 ms ) */
+    public void setQueuedGrabThreshold(double millis) { queuedGrabNanos = (long)(millis * 1_000_000); }
+
+    /** @param frames limit of drained frames per read ( default 8 ) */
+    public void setMaxDrain(int frames) { maxDrain = Math.max(0, frames); }
+
+    // METHODS -- CAPTURE --
+
+    /**
+     * Applies the settings on an opened capture.
+     * FOURCC goes first, because some backends ( V4L2 ) reset the resolution when the format changes.
+     * @param capture opened capture
+     */
+    public void apply(VideoCapture capture) {
+        if (fourcc != null) capture.set(Videoio.CAP_PROP_FOURCC, VideoWriter.fourcc(fourcc.charAt(0), fourcc.charAt(1), fourcc.charAt(2), fourcc.charAt(3)));
+        if (width > 0) capture.set(Videoio.CAP_PROP_FRAME_WIDTH, width);
+        if (height > 0) capture.set(Videoio.CAP_PROP_FRAME_HEIGHT, height);
+        if (fps > 0) capture.set(Videoio.CAP_PROP_FPS, fps);
+        if (bufferSize > 0) capture.set(Videoio.CAP_PROP_BUFFERSIZE, bufferSize);
+    }
+
+    /**
+     * Reads back the values the device actually uses.
+     * @param capture opened capture
+     * @return negotiated settings ( low latency options are copied from this )
+     */
+    public CaptureSettings negotiate(VideoCapture capture) {
+        CaptureSettings n = new CaptureSettings();
+        n.width = (int)capture.get(Videoio.CAP_PROP_FRAME_WIDTH);
+        n.height = (int)capture.get(Videoio.CAP_PROP_FRAME_HEIGHT);
+        n.fps = capture.get(Videoio.CAP_PROP_FPS);
+        n.bufferSize = (int)capture.get(Videoio.CAP_PROP_BUFFERSIZE);
+        n.fourcc = decodeFourcc((int)capture.get(Videoio.CAP_PROP_FOURCC));
+        n.lowLatency = lowLatency;
+        n.queuedGrabNanos = queuedGrabNanos;
+        n.maxDrain = maxDrain;
+        return n;
+    }
+
+    /**
+     * Reads a frame, in low latency mode the queued frames are drained first.
+     * @param capture opened capture
+     * @param frame Mat which receives the frame
+     * @return number of dropped stale frames
+     */
+    public int read(VideoCapture capture, Mat frame) {
+        if (!lowLatency) {
+            capture.read(frame);
+            return 0;
+        }
+
+        int drained = 0;
+        long start = System.nanoTime();
+        if (!capture.grab()) return 0;
+        // a grab which returns immediately took a frame waiting in the queue, so there may be a newer one
+        while (drained < maxDrain && System.nanoTime() - start < queuedGrabNanos) {
+            start = System.nanoTime();
+            if (!capture.grab()) break;
+            drained++;
+        }
+        capture.retrieve(frame);
+        return drained;
+    }
+
+    /**
+     * Decodes FOURCC integer to a String.
+     * @param code fourcc code
+     * @return four characters or null for 0
+     */
+    private static String decodeFourcc(int code) {
+        if (code == 0) return null;
+        char[] c = new char[4];
+        for (int i = 0; i < 4; i++) c[i] = (char)((code >> (8 * i)) & 0xFF);
+        return new String(c);
+    }
+
+    @Override
+    public String toString() {
+        return (width > 0 ? width + "x" + height : "default size")
+                + ", " + (fps > 0 ? fps + " fps" : "default fps")
+                + ", " + (fourcc != null ? fourcc : "default format")
+                + ", buffer " + (bufferSize > 0 ? String.valueOf(bufferSize) : "default")
+                + (lowLatency ? ", low latency" : "");
+    }
+}
@@ -0,0 +1,301 @@
+package com.plasmoxy.cvfxbase;
+
+import javafx.application.Platform;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental presenter of one image view.
+ * Instead of converting the whole Mat to a new Image on every frame ( like CVUtility.mat2Image ),
+ * it keeps a single WritableImage and writes only the changed rectangles into it.
+ *
+ * <p>
+ * Changed rectangles are either declared by the user with markDirty ( then only these are written )
+ * or detected with a cheap block diff against the pixels which are currently shown.
+ * A block is changed when any of its pixels differs, even by one level in one channel, so the view never
+ * stays stale. Only written blocks are remembered as shown.
+ *
+ * <p>
+ * Used internally by CVFXController when incremental presentation is active,
+ * present method has to be called from the render thread.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class DirtyRegionPresenter {
+
+    // FIELDS -- CV --
+
+    /** Frame converted to BGRA ( format of the FX pixel writer ) */
+    private Mat bgra = new Mat();
+
+    /** Copy of what is currently written in the image */
+    private Mat shown = new Mat();
+
+    /** Diff buffers, reused every frame */
+    private Mat diff = new Mat(), padded = new Mat(), blocks = new Mat(), kernel = new Mat();
+    private int kernelSize = 0;
+    private byte[] blockBytes = new byte[0];
+
+    /** Size of the diff block in pixels */
+    private int blockSize = 16;
+
+    /** Regions declared by user for the next frame */
+    private final List<Rect> declared = new ArrayList<>();
+
+    // FIELDS -- FX --
+
+    /** The image which is shown in the view */
+    private WritableImage image;
+
+    // FIELDS -- STATS --
+
+    private volatile long lastBytesWritten, lastBytesSaved, totalBytesSaved;
+    private volatile int lastRegionCount;
+
+    // METHODS -- ACCESSORS --
+
+    /**
+     * Sets the size of blocks which are compared by the block diff.
+     * Smaller blocks mean tighter regions but a bit more work.
+     * @param size block size in pixels ( at least 1 )
+     */
+    public void setBlockSize(int size) { blockSize = size < 1 ? 1 : size; }
+
+    /**
+     * Gets the block diff size.
+     * @return blockSize
+     */
+    public int getBlockSize() { return blockSize; }
+
+    /**
+     * Bytes written into the image on the last presented frame.
+     * @return written bytes
+     */
+    public long getLastBytesWritten() { return lastBytesWritten; }
+
+    /**
+     * Bytes which were not written on the last presented frame compared to a full frame upload.
+     * @return saved bytes
+     */
+    public long getLastBytesSaved() { return lastBytesSaved; }
+
+    /**
+     * Sum of saved bytes since creation or reset.
+     * @return saved bytes
+     */
+    public long getTotalBytesSaved() { return totalBytesSaved; }
+
+    /**
+     * Number of rectangles written on the last presented frame.
+     * @return region count
+     */
+    public int getLastRegionCount() { return lastRegionCount; }
+
+    // METHODS -- PRESENTER --
+
+    /**
+     * Declares a changed region for the next presented frame.
+     * If any region is declared, block diff is skipped for that frame and only declared regions are written.
+     * @param region changed rectangle in frame coordinates
+     */
+    public void markDirty(Rect region) {
+        synchronized (declared) {
+            declared.add(region.clone());
+        }
+    }
+
+    /**
+     * Forgets the image, next presented frame is written whole into a new image.
+     * Call this when the view could show another image in the meantime.
+     */
+    public void reset() {
+        image = null;
+        synchronized (declared) {
+            declared.clear();
+        }
+        totalBytesSaved = 0;
+    }
+
+    /**
+     * Writes changed parts of the frame into the image of the view.
+     * The pixels are copied here, the actual write happens on the FX thread.
+     * @param frame frame to present ( 8 bit, 1, 3 or 4 channels )
+     * @param view view which shows the image
+     * @return bytes saved by this frame compared to full upload
+     */
+    public long present(Mat frame, ImageView view) {
+        if (frame.empty()) return 0;
+        toBGRA(frame);
+
+        int w = bgra.cols(), h = bgra.rows();
+        long fullBytes = (long)w * h * 4;
+        final boolean fresh = image == null || (int)image.getWidth() != w || (int)image.getHeight() != h;
+
+        List<Rect> regions;
+        if (fresh) {
+            image = new WritableImage(w, h);
+            regions = new ArrayList<>();
+            regions.add(new Rect(0, 0, w, h));
+            synchronized (declared) {
+                declared.clear();
+            }
+        } else {
+            regions = takeDeclared(w, h);
+            if (regions.isEmpty()) regions = detectChanges(w, h);
+        }
+
+        // when most of the frame changed, one big write is cheaper than many small ones
+        long area = 0;
+        for (Rect r : regions) area += (long)r.width * r.height;
+        if (!fresh && area * 4 > fullBytes * 3) {
+            regions.clear();
+            regions.add(new Rect(0, 0, w, h));
+            area = (long)w * h;
+        }
+
+        // copy regions out of the Mat, they are written on FX thread later
+        final Rect[] rects = regions.toArray(new Rect[0]);
+        final byte[][] buffers = new byte[rects.length][];
+        for (int i = 0; i < rects.length; i++) {
+            Rect r = rects[i];
+            Mat src = bgra.submat(r), dst = shown.submat(r);
+            buffers[i] = new byte[r.width * r.height * 4];
+            src.get(0, 0, buffers[i]);
+            src.copyTo(dst);
+            src.release();
+            dst.release();
+        }
+
+        lastRegionCount = rects.length;
+        lastBytesWritten = area * 4;
+        lastBytesSaved = fullBytes - lastBytesWritten;
+        totalBytesSaved += lastBytesSaved;
+
+        if (rects.length == 0) return lastBytesSaved;
+
+        final WritableImage target = image;
+        Platform.runLater(() -> {
+            PixelWriter writer = target.getPixelWriter();
+            for (int i = 0; i < rects.length; i++) {
+                Rect r = rects[i];
+                writer.setPixels(r.x, r.y, r.width, r.height, PixelFormat.getByteBgraInstance(), buffers[i], 0, r.width * 4);
+            }
+            if (view.getImage() != target) view.setImage(target);
+        });
+
+        return lastBytesSaved;
+    }
+
+    /**
+     * Converts the frame into the bgra field and makes sure the shown Mat has the same size.
+     * @param frame source frame
+     */
+    private void toBGRA(Mat frame) {
+        switch (frame.channels()) {
+            case 1: Imgproc.cvtColor(frame, bgra, Imgproc.COLOR_GRAY2BGRA); break;
+            case 3: Imgproc.cvtColor(frame, bgra, Imgproc.COLOR_BGR2BGRA); break;
+            default: frame.copyTo(bgra);
+        }
+        if (shown.cols() != bgra.cols() || shown.rows() != bgra.rows()) {
+            shown.create(bgra.rows(), bgra.cols(), bgra.type());
+        }
+    }
+
+    /**
+     * Takes the declared regions clipped to the frame.
+     * @return declared regions ( empty if none )
+     */
+    private List<Rect> takeDeclared(int w, int h) {
+        List<Rect> result = new ArrayList<>();
+        synchronized (declared) {
+            for (Rect r : declared) {
+                int x0 = Math.max(r.x, 0), y0 = Math.max(r.y, 0);
+                int x1 = Math.min(r.x + r.width, w), y1 = Math.min(r.y + r.height, h);
+                if (x1 > x0 && y1 > y0) result.add(new Rect(x0, y0, x1 - x0, y1 - y0));
+            }
+            declared.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Cheap block diff between the frame and the shown pixels.
+     * The absolute difference is padded to whole blocks and reduced to the maximum of every block
+     * ( dilated over the block, then the top left pixel of each block is sampled ), every block with non zero maximum is changed.
+     * Changed blocks are merged into horizontal runs and runs with the same span in following rows are merged too.
+     * @return changed regions
+     */
+    private List<Rect> detectChanges(int w, int h) {
+        int size = blockSize;
+        int cols = (w + size - 1) / size, rows = (h + size - 1) / size;
+        if (kernelSize != size) {
+            kernel.release();
+            kernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(size, size));
+            kernelSize = size;
+        }
+
+        Core.absdiff(bgra, shown, diff);
+        // grid of whole blocks, so blocks sampled here are exactly the rects built below
+        Core.copyMakeBorder(diff, padded, 0, rows * size - h, 0, cols * size - w, Core.BORDER_CONSTANT, Scalar.all(0));
+        Imgproc.dilate(padded, padded, kernel, new Point(0, 0), 1); // pixel gets the maximum of the block starting at it
+        Imgproc.resize(padded, blocks, new Size(cols, rows), 0, 0, Imgproc.INTER_NEAREST);
+
+        int length = cols * rows * 4;
+        if (blockBytes.length != length) blockBytes = new byte[length];
+        blocks.get(0, 0, blockBytes);
+
+        List<Rect> result = new ArrayList<>();
+        List<Rect> previousRow = new ArrayList<>(), currentRow = new ArrayList<>();
+
+        for (int by = 0; by < rows; by++) {
+            int y = by * size, height = Math.min(size, h - y);
+            currentRow.clear();
+
+            int bx = 0;
+            while (bx < cols) {
+                if (!blockChanged(bx, by, cols)) { bx++; continue; }
+                int start = bx;
+                while (bx < cols && blockChanged(bx, by, cols)) bx++;
+
+                int x = start * size, width = Math.min(bx * size, w) - x;
+                Rect run = null;
+                for (Rect above : previousRow) {
+                    // extend a rect from the row above if it has exactly the same span
+                    if (above.x == x && above.width == width) { run = above; break; }
+                }
+                if (run != null) {
+                    run.height += height;
+                } else {
+                    run = new Rect(x, y, width, height);
+                    result.add(run);
+                }
+                currentRow.add(run);
+            }
+
+            List<Rect> swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a block has any non zero channel in the block maximum of the diff.
+     */
+    private boolean blockChanged(int bx, int by, int cols) {
+        int i = (by * cols + bx) * 4;
+        return (blockBytes[i] | blockBytes[i + 1] | blockBytes[i + 2] | blockBytes[i + 3]) != 0;
+    }
+}
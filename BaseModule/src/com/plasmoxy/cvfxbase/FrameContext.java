@@ -0,0 +1,112 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Per-frame context with memoised derived images of the main frame.
+ * Derived images ( grey, equalized grey, half and quarter scale, HSV ) are computed on the first request
+ * and then cached for the rest of the frame, so more pieces of processing code can ask for the same
+ * grey image and it is converted only once. Buffers are kept and reused from frame to frame.
+ *
+ * <p>
+ * Get it with getFrameContext() in process method ( or in stage functions ).
+ * Derived images are computed from the main frame as it is at the time of the first request -
+ * if you modify the main frame in place after that and want fresh derived images, call invalidate().
+ * Returned Mats are shared, don't modify them.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class FrameContext {
+
+    private Mat frame = new Mat();
+    private long sequence;
+
+    private final Mat grey = new Mat(), equalized = new Mat(), half = new Mat(), quarter = new Mat(), hsv = new Mat();
+    private boolean greyValid, equalizedValid, halfValid, quarterValid, hsvValid;
+
+    /**
+     * Starts a new frame, all cached images become invalid.
+     * @param frame main frame
+     * @param sequence frame number
+     */
+    synchronized void begin(Mat frame, long sequence) {
+        this.frame = frame;
+        this.sequence = sequence;
+        invalidate();
+    }
+
+    /**
+     * Forgets cached images of this frame, next requests compute them again.
+     */
+    public synchronized void invalidate() {
+        greyValid = equalizedValid = halfValid = quarterValid = hsvValid = false;
+    }
+
+    /** @return main frame of this context */
+    public synchronized Mat getFrame() { return frame; }
+
+    /** @return frame number */
+    public synchronized long getSequence() { return sequence; }
+
+    /**
+     * Grey version of the frame ( frame itself if it is already single channel ).
+     * @return grey image
+     */
+    public synchronized Mat grey() {
+        if (frame.channels() == 1) return frame;
+        if (!greyValid) {
+            Imgproc.cvtColor(frame, grey, frame.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+            greyValid = true;
+        }
+        return grey;
+    }
+
+    /**
+     * Grey frame with equalized histogram ( usual input of cascade detectors ).
+     * @return equalized grey image
+     */
+    public synchronized Mat equalized() {
+        if (!equalizedValid) {
+            Imgproc.equalizeHist(grey(), equalized);
+            equalizedValid = true;
+        }
+        return equalized;
+    }
+
+    /**
+     * Frame in half resolution ( pyrDown ).
+     * @return half scale image
+     */
+    public synchronized Mat half() {
+        if (!halfValid) {
+            Imgproc.pyrDown(frame, half);
+            halfValid = true;
+        }
+        return half;
+    }
+
+    /**
+     * Frame in quarter resolution ( pyrDown of half ).
+     * @return quarter scale image
+     */
+    public synchronized Mat quarter() {
+        if (!quarterValid) {
+            Imgproc.pyrDown(half(), quarter);
+            quarterValid = true;
+        }
+        return quarter;
+    }
+
+    /**
+     * Frame in HSV color space ( frame has to be BGR ).
+     * @return HSV image
+     */
+    public synchronized Mat hsv() {
+        if (!hsvValid) {
+            Imgproc.cvtColor(frame, hsv, Imgproc.COLOR_BGR2HSV);
+            hsvValid = true;
+        }
+        return hsv;
+    }
+}
@@ -0,0 +1,408 @@
+package com.plasmoxy.cvfxbase;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.opencv.core.Mat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per frame and per stage accounting of the renderer - time and Java heap bytes allocated by every stage
+ * ( grab, process, convert, present ), read from thread allocation counters of the JVM.
+ * Totals are always available through the accessors, and when Java Flight Recorder is recording, every frame
+ * and stage is also emitted as a JFR event ( category CVFX ) with frame number, size and durations,
+ * so slow frames can be matched with GC, JIT and allocation events of the same recording :
+ * <pre>
+ * java -XX:StartFlightRecording=filename=cvfx.jfr,settings=profile ...
+ * jfr print --events com.plasmoxy.cvfxbase.Stage cvfx.jfr
+ * </pre>
+ *
+ * <p>
+ * Grab, process and convert run on the rendering thread, their allocation is exactly what the stage allocated
+ * ( including user process method, stage graph and publishers ). Present runs on FX thread, its time is from
+ * conversion to the moment FX thread has set the images and its allocation is what FX thread allocated since
+ * the previous presented frame ( layout, rendering, info label ... ).
+ *
+ * <p>
+ * Every grabbed frame gets a frame event. Frames which the motion gate didn't let through are flagged skipped,
+ * with zero process and convert time. Frames processed by a worker pool get their frame event when their result
+ * is taken, flagged worker, process time is the time in the pool ( submission to result ) and their allocation
+ * is unknown ( -1 ), it happened in the worker.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class FrameProfiler {
+
+    /**
+     * Stages of a frame in the renderer.
+     */
+    public enum Stage {
+        /** capture read */
+        GRAB,
+        /** stage graph and process method */
+        PROCESS,
+        /** conversion of views for FX */
+        CONVERT,
+        /** FX thread sets the images */
+        PRESENT;
+
+        private final String label = name().toLowerCase();
+
+        @Override
+        public String toString() { return label; }
+    }
+
+    private static final int STAGES = Stage.values().length;
+
+    /** Allocation counters of threads, null when the JVM doesn't support them */
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    /** JFR is in the runtime ( jdk.jfr module ), event classes are loaded only then */
+    private static final boolean JFR = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    private volatile boolean enabled = true;
+
+    // FIELDS -- CURRENT FRAME -- ( rendering thread )
+
+    private final long[] startNanos = new long[STAGES], startAllocated = new long[STAGES];
+    private final long[] frameNanos = new long[STAGES];
+    private final Object[] stageEvents = new Object[STAGES];
+    private long frameStartAllocated;
+    private Object frameEvent;
+    private long fxAllocated = -1; // FX thread counter at the previous present
+
+    // FIELDS -- TOTALS --
+
+    private final AtomicLongArray totalNanos = new AtomicLongArray(STAGES);
+    private final AtomicLongArray totalAllocated = new AtomicLongArray(STAGES);
+    private final AtomicLongArray lastAllocated = new AtomicLongArray(STAGES);
+    private final AtomicLongArray counts = new AtomicLongArray(STAGES);
+
+    // EVENTS
+
+    /**
+     * JFR event of one frame from grab to conversion.
+     */
+    @Name("com.plasmoxy.cvfxbase.Frame")
+    @Label("CVFX Frame")
+    @Category("CVFX")
+    @Description("One frame of the renderer, from capture read to conversion of views")
+    @StackTrace(false)
+    public static final class FrameEvent extends Event {
+        @Label("Frame") long sequence;
+        @Label("Width") int width;
+        @Label("Height") int height;
+        @Label("Frame Size") @DataAmount(DataAmount.BYTES) long frameBytes;
+        @Label("Allocated") @DataAmount(DataAmount.BYTES) long allocated;
+        @Label("Grab Time") @Timespan(Timespan.NANOSECONDS) long grabTime;
+        @Label("Process Time") @Timespan(Timespan.NANOSECONDS) long processTime;
+        @Label("Convert Time") @Timespan(Timespan.NANOSECONDS) long convertTime;
+        @Label("Skipped") @Description("Not processed ( motion gate ) or not presented ( newer worker result )") boolean skipped;
+        @Label("Worker") @Description("Processed by a worker process, process time is the time in the pool") boolean worker;
+    }
+
+    /**
+     * JFR event of one stage of a frame.
+     */
+    @Name("com.plasmoxy.cvfxbase.Stage")
+    @Label("CVFX Stage")
+    @Category("CVFX")
+    @Description("One stage of a frame - grab, process, convert or present")
+    @StackTrace(false)
+    public static final class StageEvent extends Event {
+        @Label("Stage") String stage;
+        @Label("Frame") long sequence;
+        @Label("Width") int width;
+        @Label("Height") int height;
+        @Label("Frame Size") @DataAmount(DataAmount.BYTES) long frameBytes;
+        @Label("Allocated") @Description("Java heap allocated by the thread during the stage, -1 if unknown") @DataAmount(DataAmount.BYTES) long allocated;
+    }
+
+    /**
+     * Checks of recording without creating events, event types are registered on first use.
+     */
+    private static final class Recording {
+        static final EventType FRAME = EventType.getEventType(FrameEvent.class);
+        static final EventType STAGE = EventType.getEventType(StageEvent.class);
+    }
+
+    // METHODS -- SETTINGS --
+
+    /**
+     * Turns the accounting on or off ( it is on by default, it costs two counter reads per stage ).
+     * @param enabled false stops accounting and events
+     */
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+    /** @return true when stages are accounted */
+    public boolean isEnabled() { return enabled; }
+
+    /** @return true if the JVM reports allocated bytes of threads, else allocations are -1 */
+    public static boolean isAllocationSupported() { return THREADS != null; }
+
+    // METHODS -- TOTALS --
+
+    /**
+     * @param stage stage
+     * @return Java heap bytes allocated by the stage since the start ( or reset ), -1 if unsupported
+     */
+    public long getTotalAllocated(Stage stage) { return THREADS == null ? -1 : totalAllocated.get(stage.ordinal()); }
+
+    /**
+     * @param stage stage
+     * @return Java heap bytes allocated by the stage in the last frame, -1 if unsupported
+     */
+    public long getLastAllocated(Stage stage) { return THREADS == null ? -1 : lastAllocated.get(stage.ordinal()); }
+
+    /**
+     * @param stage stage
+     * @return nanoseconds spent in the stage since the start ( or reset )
+     */
+    public long getTotalNanos(Stage stage) { return totalNanos.get(stage.ordinal()); }
+
+    /**
+     * @param stage stage
+     * @return number of times the stage ran since the start ( or reset )
+     */
+    public long getCount(Stage stage) { return counts.get(stage.ordinal()); }
+
+    /**
+     * @param stage stage
+     * @return average Java heap bytes allocated by one run of the stage, -1 if unsupported
+     */
+    public long getAverageAllocated(Stage stage) {
+        long n = getCount(stage);
+        return THREADS == null ? -1 : n == 0 ? 0 : getTotalAllocated(stage) / n;
+    }
+
+    /**
+     * Clears the totals.
+     */
+    public void reset() {
+        for (int i = 0; i < STAGES; i++) {
+            totalNanos.set(i, 0);
+            totalAllocated.set(i, 0);
+            lastAllocated.set(i, 0);
+            counts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FrameProfiler");
+        for (Stage s : Stage.values()) {
+            long n = getCount(s);
+            sb.append(s.ordinal() == 0 ? " : " : ", ").append(s).append(' ')
+                    .append(n == 0 ? 0 : CVUtility.nanosToMillis(getTotalNanos(s) / n)).append(" ms");
+            if (THREADS != null) sb.append(" / ").append(getAverageAllocated(s)).append(" B");
+        }
+        return sb.toString();
+    }
+
+    // METHODS -- ACCOUNTING --
+
+    /**
+     * Starts a frame and its grab stage, rendering thread.
+     */
+    void beginFrame() {
+        if (!enabled) return;
+        frameStartAllocated = allocated();
+        for (int i = 0; i < STAGES; i++) frameNanos[i] = 0;
+        frameEvent = null;
+        if (JFR && Recording.FRAME.isEnabled()) {
+            FrameEvent e = new FrameEvent();
+            e.begin();
+            frameEvent = e;
+        }
+        begin(Stage.GRAB);
+    }
+
+    /**
+     * Starts a stage, rendering thread.
+     * @param stage grab, process or convert
+     */
+    void begin(Stage stage) {
+        if (!enabled) return;
+        int i = stage.ordinal();
+        stageEvents[i] = null;
+        if (JFR && Recording.STAGE.isEnabled()) {
+            StageEvent e = new StageEvent();
+            e.begin();
+            stageEvents[i] = e;
+        }
+        startAllocated[i] = allocated();
+        startNanos[i] = System.nanoTime();
+    }
+
+    /**
+     * Ends a stage, rendering thread.
+     * @param stage grab, process or convert
+     * @param sequence frame sequence number
+     * @param frame frame of the stage, for its size ( can be empty )
+     */
+    void end(Stage stage, long sequence, Mat frame) {
+        if (!enabled) return;
+        long nanos = System.nanoTime();
+        long bytes = allocated();
+        int i = stage.ordinal();
+        nanos -= startNanos[i];
+        bytes = bytes < 0 ? -1 : bytes - startAllocated[i];
+        frameNanos[i] = nanos;
+        record(i, nanos, bytes);
+
+        Object e = stageEvents[i];
+        if (e != null) {
+            stageEvents[i] = null;
+            commitStage((StageEvent)e, stage, sequence, frame, bytes);
+        }
+    }
+
+    /**
+     * Ends a frame after its conversion, rendering thread. Empty grabs and frames given to workers aren't ended.
+     * @param sequence frame sequence number
+     * @param frame main frame, for its size
+     */
+    void endFrame(long sequence, Mat frame) {
+        commitFrame(sequence, frame, false);
+    }
+
+    /**
+     * Ends a frame which wasn't processed ( motion gate ), rendering thread.
+     * @param sequence frame sequence number
+     * @param frame grabbed frame, for its size
+     */
+    void skipFrame(long sequence, Mat frame) {
+        commitFrame(sequence, frame, true);
+    }
+
+    private void commitFrame(long sequence, Mat frame, boolean skipped) {
+        if (!enabled) return;
+        Object o = frameEvent;
+        frameEvent = null;
+        if (o == null) return;
+        FrameEvent e = (FrameEvent)o;
+        e.end();
+        if (!e.shouldCommit()) return;
+        setFrame(e, sequence, frame);
+        long now = allocated();
+        e.allocated = now < 0 ? -1 : now - frameStartAllocated;
+        e.grabTime = frameNanos[Stage.GRAB.ordinal()];
+        e.processTime = frameNanos[Stage.PROCESS.ordinal()];
+        e.convertTime = frameNanos[Stage.CONVERT.ordinal()];
+        e.skipped = skipped;
+        e.commit();
+    }
+
+    /**
+     * Accounts the process stage of a worker result and emits its frame event, rendering thread.
+     * Call after presentation of the result, its convert time is taken from this tick.
+     * @param sequence frame sequence number
+     * @param frame main frame of the result, for its size
+     * @param processNanos time in the pool, from submission to the result
+     * @param presented false for a result which was superseded by a newer one and not converted
+     */
+    void workerFrame(long sequence, Mat frame, long processNanos, boolean presented) {
+        if (!enabled) return;
+        record(Stage.PROCESS.ordinal(), processNanos, 0); // nothing allocated in this JVM
+        if (!JFR || !Recording.FRAME.isEnabled()) return;
+        FrameEvent e = new FrameEvent();
+        e.begin();
+        e.end();
+        if (!e.shouldCommit()) return;
+        setFrame(e, sequence, frame);
+        e.allocated = -1;
+        e.processTime = processNanos;
+        e.convertTime = presented ? frameNanos[Stage.CONVERT.ordinal()] : 0;
+        e.skipped = !presented;
+        e.worker = true;
+        e.commit();
+    }
+
+    private static void setFrame(FrameEvent e, long sequence, Mat frame) {
+        e.sequence = sequence;
+        e.width = frame.cols();
+        e.height = frame.rows();
+        e.frameBytes = frame.total() * frame.elemSize();
+    }
+
+    /**
+     * Starts the present stage after conversion, rendering thread.
+     * @param frame main frame, for its size
+     * @return token for presented, null when JFR doesn't record it
+     */
+    Object beginPresent(Mat frame) {
+        if (!enabled || !JFR || !Recording.STAGE.isEnabled()) return null;
+        StageEvent e = new StageEvent();
+        e.begin();
+        e.width = frame.cols();
+        e.height = frame.rows();
+        e.frameBytes = frame.total() * frame.elemSize();
+        return e;
+    }
+
+    /**
+     * Ends the present stage, FX thread.
+     * @param token token of beginPresent, can be null
+     * @param stamp stamp of the presented frame
+     */
+    void presented(Object token, FrameStamp stamp) {
+        if (!enabled) return;
+        long now = allocated();
+        long bytes = now < 0 || fxAllocated < 0 ? -1 : now - fxAllocated;
+        fxAllocated = now;
+        record(Stage.PRESENT.ordinal(), stamp.getPresented() - stamp.getConverted(), Math.max(bytes, 0));
+        if (token != null) commitStage((StageEvent)token, Stage.PRESENT, stamp.getSequence(), null, bytes);
+    }
+
+    private void record(int stage, long nanos, long bytes) {
+        totalNanos.addAndGet(stage, nanos);
+        counts.incrementAndGet(stage);
+        if (bytes >= 0) {
+            totalAllocated.addAndGet(stage, bytes);
+            lastAllocated.set(stage, bytes);
+        }
+    }
+
+    private static void commitStage(StageEvent e, Stage stage, long sequence, Mat frame, long bytes) {
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.stage = stage.toString();
+        e.sequence = sequence;
+        if (frame != null) { // present has its size from beginPresent
+            e.width = frame.cols();
+            e.height = frame.rows();
+            e.frameBytes = frame.total() * frame.elemSize();
+        }
+        e.allocated = bytes;
+        e.commit();
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, -1 if unsupported
+     */
+    static long allocated() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+            if (!threads.isThreadAllocatedMemorySupported()) return null;
+            if (!threads.isThreadAllocatedMemoryEnabled()) threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            AsyncLog.log("FrameProfiler", "ERROR : thread allocation counters unavailable ( " + e.getMessage() + " )");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive stream of frames ( java.util.concurrent.Flow ), so recorders, streamers and analytics
+ * don't have to be packed into the process method.
+ * Controller has one publisher for captured frames and one for every view, see getCapturedPublisher
+ * and getFramePublisher.
+ *
+ * <p>
+ * Every subscriber runs on its own executor with its own bounded buffer. Publishing never blocks -
+ * when a buffer is full, a frame is dropped by the overflow strategy of that subscriber and counted,
+ * so a slow subscriber never holds up the render path or other subscribers.
+ * Demand is respected, frames are delivered only when requested ( request(Long.MAX_VALUE) for all ).
+ *
+ * <p>
+ * A published frame is one copy shared by all subscribers. Its Mat is valid only during onNext and must not
+ * be modified - clone it to keep it longer. It is released when every subscriber is done with it.
+ * When there are no subscribers, publishing costs nothing ( frame isn't copied ).
+ *
+ * <pre>
+ * getFramePublisher(CVFXView.MAIN).subscribe(recorder, recorderExecutor, 8, FramePublisher.Overflow.DROP_OLDEST);
+ * </pre>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class FramePublisher implements Flow.Publisher<FramePublisher.Frame> {
+
+    /**
+     * What happens when a subscriber buffer is full.
+     */
+    public enum Overflow {
+        /** Oldest buffered frame is dropped, subscriber always gets the newest frames */
+        DROP_OLDEST,
+        /** New frame is dropped, subscriber gets a continuous run of older frames */
+        DROP_NEWEST
+    }
+
+    /**
+     * One published frame.
+     */
+    public static class Frame {
+        private final long sequence, timestamp;
+        private final Mat mat;
+        private final AtomicInteger references;
+
+        private Frame(long sequence, Mat mat, int references) {
+            this.sequence = sequence;
+            this.timestamp = System.nanoTime();
+            this.mat = mat;
+            this.references = new AtomicInteger(references);
+        }
+
+        /** @return frame number */
+        public long getSequence() { return sequence; }
+
+        /** @return System.nanoTime when the frame was published */
+        public long getTimestamp() { return timestamp; }
+
+        /** @return frame image, valid only during onNext, don't modify it */
+        public Mat getMat() { return mat; }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) mat.release();
+        }
+    }
+
+    // FIELDS
+
+    private final String name;
+    private final List<FrameSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscriberThreads = new AtomicInteger();
+    private int defaultBufferSize = 4;
+    private Overflow defaultOverflow = Overflow.DROP_OLDEST;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a publisher.
+     * @param name stream name, used for subscriber thread names
+     */
+    public FramePublisher(String name) {
+        this.name = name;
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @return stream name */
+    public String getName() { return name; }
+
+    /**
+     * Sets buffer size and overflow strategy used by subscribe(Subscriber).
+     * @param bufferSize frames buffered per subscriber, default 4
+     * @param overflow overflow strategy, default DROP_OLDEST
+     */
+    public void setDefaults(int bufferSize, Overflow overflow) {
+        defaultBufferSize = Math.max(1, bufferSize);
+        defaultOverflow = overflow;
+    }
+
+    /** @return true if anybody is subscribed */
+    public boolean hasSubscribers() { return !subscriptions.isEmpty(); }
+
+    /** @return current subscriptions with their statistics */
+    public List<FrameSubscription> getSubscriptions() { return new ArrayList<>(subscriptions); }
+
+    // METHODS -- PUBLISHER --
+
+    /**
+     * Subscribes with default buffer and overflow strategy, subscriber gets its own thread.
+     * @param subscriber the subscriber
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Frame> subscriber) {
+        subscribe(subscriber, null, defaultBufferSize, defaultOverflow);
+    }
+
+    /**
+     * Subscribes with own executor, buffer size and overflow strategy.
+     * @param subscriber the subscriber
+     * @param executor executor for subscriber calls, null for an own thread ( shut down when the subscription ends )
+     * @param bufferSize frames buffered for this subscriber
+     * @param overflow what to drop when the buffer is full
+     * @return the subscription ( same object the subscriber gets in onSubscribe )
+     */
+    public FrameSubscription subscribe(Flow.Subscriber<? super Frame> subscriber, Executor executor, int bufferSize, Overflow overflow) {
+        if (subscriber == null) throw new NullPointerException("subscriber");
+        boolean own = executor == null;
+        if (own) {
+            String threadName = "FramePublisher " + name + " subscriber " + subscriberThreads.incrementAndGet();
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        FrameSubscription s = new FrameSubscription(subscriber, executor, own, Math.max(1, bufferSize), overflow);
+        if (closed) {
+            s.completed = true;
+        } else {
+            subscriptions.add(s);
+            if (closed) s.complete(); // closed meanwhile
+        }
+        s.schedule(); // onSubscribe runs on the subscriber executor
+        return s;
+    }
+
+    /**
+     * Publishes a copy of a frame to all subscribers, never blocks.
+     * @param sequence frame number
+     * @param source frame to copy
+     */
+    public void publish(long sequence, Mat source) {
+        if (closed || subscriptions.isEmpty() || source.empty()) return;
+        List<FrameSubscription> targets = new ArrayList<>(subscriptions);
+        Frame frame = new Frame(sequence, source.clone(), targets.size());
+        for (FrameSubscription s : targets) s.offer(frame);
+    }
+
+    /**
+     * Completes all subscriptions ( after their buffered frames ), later subscribers are completed immediately.
+     */
+    public void close() {
+        closed = true;
+        for (FrameSubscription s : subscriptions) s.complete();
+    }
+
+    // SUBSCRIPTION
+
+    /**
+     * Subscription of one subscriber, with its buffer and delivery statistics.
+     */
+    public class FrameSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super Frame> subscriber;
+        private final Executor executor;
+        private final boolean ownExecutor;
+        private final int bufferSize;
+        private final Overflow overflow;
+
+        private final ArrayDeque<Frame> buffer;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private final AtomicLong delivered = new AtomicLong(), dropped = new AtomicLong();
+
+        private volatile boolean cancelled, completed, terminated;
+        private volatile long badRequest;
+        private boolean subscribed; // executor only
+        private final Runnable drainTask = this::drain;
+
+        private FrameSubscription(Flow.Subscriber<? super Frame> subscriber, Executor executor, boolean ownExecutor, int bufferSize, Overflow overflow) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.ownExecutor = ownExecutor;
+            this.bufferSize = bufferSize;
+            this.overflow = overflow;
+            buffer = new ArrayDeque<>(bufferSize);
+        }
+
+        /** @return frames delivered to onNext */
+        public long getDelivered() { return delivered.get(); }
+
+        /** @return frames dropped because the buffer was full */
+        public long getDropped() { return dropped.get(); }
+
+        /** @return frames waiting in the buffer */
+        public int getBuffered() {
+            synchronized (buffer) {
+                return buffer.size();
+            }
+        }
+
+        /** @return buffer size */
+        public int getBufferSize() { return bufferSize; }
+
+        /** @return overflow strategy */
+        public Overflow getOverflow() { return overflow; }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) badRequest = n;
+            else demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            schedule();
+        }
+
+        /**
+         * Buffers a frame, drops one if the buffer is full. Called by publisher thread.
+         */
+        private void offer(Frame frame) {
+            Frame drop = null;
+            synchronized (buffer) {
+                if (cancelled) {
+                    drop = frame;
+                } else if (buffer.size() < bufferSize) {
+                    buffer.add(frame);
+                } else if (overflow == Overflow.DROP_OLDEST) {
+                    drop = buffer.poll();
+                    buffer.add(frame);
+                } else {
+                    drop = frame;
+                }
+            }
+            if (drop != null) {
+                if (!cancelled) dropped.incrementAndGet();
+                drop.release();
+            }
+            schedule();
+        }
+
+        private void complete() {
+            completed = true;
+            schedule();
+        }
+
+        /**
+         * Makes sure the drain runs on the executor, more schedules while it runs are merged into one more pass.
+         */
+        private void schedule() {
+            if (terminated || work.getAndIncrement() != 0) return;
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                if (!cancelled) AsyncLog.log("FramePublisher", "ERROR : executor of a " + name + " subscriber rejected delivery, cancelling");
+                cancelled = true;
+                subscriptions.remove(this);
+                clearBuffer();
+            }
+        }
+
+        /**
+         * Delivers buffered frames as far as demand allows. Runs on the subscriber executor, never concurrently.
+         */
+        private void drain() {
+            int missed = 1;
+            do {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+
+                while (!cancelled && !terminated) {
+                    if (badRequest != 0) {
+                        terminate();
+                        subscriber.onError(new IllegalArgumentException("non-positive request " + badRequest));
+                        break;
+                    }
+                    if (demand.get() == 0) break;
+
+                    Frame frame;
+                    synchronized (buffer) {
+                        frame = buffer.poll();
+                    }
+                    if (frame == null) break;
+                    if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+
+                    try {
+                        subscriber.onNext(frame);
+                        delivered.incrementAndGet();
+                    } catch (Throwable t) {
+                        AsyncLog.log("FramePublisher", "ERROR : " + name + " subscriber failed, cancelling : " + t);
+                        cancel();
+                    } finally {
+                        frame.release();
+                    }
+                }
+
+                if (cancelled) {
+                    terminate();
+                } else if (completed && !terminated && getBuffered() == 0) {
+                    terminate();
+                    subscriber.onComplete();
+                }
+
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void terminate() {
+            if (terminated) return;
+            terminated = true;
+            cancelled = true;
+            subscriptions.remove(this);
+            clearBuffer(); // offers after this see cancelled and release their frames
+            if (ownExecutor) ((ExecutorService)executor).shutdown();
+        }
+
+        private void clearBuffer() {
+            synchronized (buffer) {
+                Frame f;
+                while ((f = buffer.poll()) != null) f.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Recorded frame sequence - either a directory of images ( read in file name order ) or a video file.
+ * Used by runners which feed controllers without camera ( ReplayHarness ... ).
+ * Frames are read in order, seek jumps anywhere - videos switch to a SeekableVideo on the first seek.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class FrameSequence implements AutoCloseable {
+
+    /** Extensions of files which are read from image directories */
+    public static final List<String> IMAGE_EXTENSIONS = Arrays.asList("png", "jpg", "jpeg", "bmp", "tif", "tiff", "ppm", "pgm");
+
+    private final File source;
+    private final List<File> images;
+    private VideoCapture video;
+    private SeekableVideo seekable; // replaces video after the first seek
+    private int position = 0;
+
+    /**
+     * Opens a frame sequence.
+     * @param source image directory or video file
+     * @throws IOException if the source doesn't exist or the video cannot be opened
+     */
+    public FrameSequence(File source) throws IOException {
+        this.source = source;
+        if (source.isDirectory()) {
+            images = listImages(source);
+        } else if (source.isFile()) {
+            images = null;
+            video = new VideoCapture(source.getPath());
+            if (!video.isOpened()) throw new IOException("Cannot open video " + source);
+        } else {
+            throw new IOException("No such frame source " + source);
+        }
+    }
+
+    /**
+     * Lists images of a directory sorted by name.
+     * @param dir directory
+     * @return image files
+     */
+    public static List<File> listImages(File dir) {
+        File[] files = dir.listFiles(f -> f.isFile() && isImage(f));
+        List<File> result = new ArrayList<>(files == null ? Arrays.asList() : Arrays.asList(files));
+        result.sort(null);
+        return result;
+    }
+
+    /**
+     * Checks the file extension.
+     * @param f file
+     * @return true if the file is a readable image by extension
+     */
+    public static boolean isImage(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /** @return the directory or video file */
+    public File getSource() { return source; }
+
+    /** @return index of the next frame */
+    public int getPosition() { return position; }
+
+    /** @return true if frames are read from a directory */
+    public boolean isImageDirectory() { return images != null; }
+
+    /**
+     * @return number of frames ( images of a directory, frames of the video from its index )
+     * @throws IOException if the video index cannot be built
+     */
+    public int getLength() throws IOException {
+        return images != null ? images.size() : seekable().getFrameCount();
+    }
+
+    /**
+     * Moves to a frame, the next read returns it.
+     * @param frame frame number, from 0
+     * @throws IOException if the video index cannot be built
+     */
+    public void seek(int frame) throws IOException {
+        if (frame < 0) throw new IllegalArgumentException("Negative frame " + frame);
+        if (images == null) seekable();
+        position = frame;
+    }
+
+    /**
+     * Switches the video to random access, the sequential capture is released.
+     * @return seekable video
+     * @throws IOException if the video index cannot be built
+     */
+    private SeekableVideo seekable() throws IOException {
+        if (seekable == null) {
+            seekable = new SeekableVideo(source);
+            video.release();
+            video = null;
+        }
+        return seekable;
+    }
+
+    /**
+     * Reads the next frame.
+     * @param dst Mat which receives the frame
+     * @return false at the end of the sequence
+     */
+    public boolean read(Mat dst) {
+        if (images != null) {
+            while (position < images.size()) {
+                Mat img = Imgcodecs.imread(images.get(position++).getPath());
+                if (!img.empty()) {
+                    img.copyTo(dst);
+                    img.release();
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (seekable != null) {
+            boolean ok = seekable.read(position, dst);
+            if (ok) position++;
+            return ok;
+        }
+        boolean ok = video.read(dst) && !dst.empty();
+        if (ok) position++;
+        return ok;
+    }
+
+    /**
+     * Starts the sequence again from the first frame.
+     */
+    public void rewind() {
+        position = 0;
+        if (video != null) {
+            video.release();
+            video = new VideoCapture(source.getPath());
+        }
+    }
+
+    /**
+     * Releases the video capture.
+     */
+    @Override
+    public void close() {
+        if (video != null) video.release();
+        if (seekable != null) seekable.close();
+    }
+}
@@ -0,0 +1,54 @@
+package com.plasmoxy.cvfxbase;
+
+/**
+ * Sequence number and monotonic timestamps of one frame on its way through the renderer.
+ * All times are System.nanoTime values, zero means the frame didn't reach that point ( yet ).
+ *
+ * <ul>
+ *     <li>grabbed - capture read returned</li>
+ *     <li>processed - process method returned</li>
+ *     <li>converted - all views were converted/copied for FX</li>
+ *     <li>presented - FX thread has set the images of views</li>
+ * </ul>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class FrameStamp {
+
+    private final long sequence;
+    volatile long grabbed, processed, converted, presented;
+
+    /**
+     * Creates a stamp for a frame.
+     * @param sequence frame sequence number
+     */
+    public FrameStamp(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /** @return frame sequence number, counted from 1 since the controller was created */
+    public long getSequence() { return sequence; }
+
+    /** @return time when capture read returned */
+    public long getGrabbed() { return grabbed; }
+
+    /** @return time when process method returned */
+    public long getProcessed() { return processed; }
+
+    /** @return time when views were converted */
+    public long getConverted() { return converted; }
+
+    /** @return time when FX thread presented the frame */
+    public long getPresented() { return presented; }
+
+    /** @return nanoseconds between grab and presentation ( capture to display latency ), -1 if not presented */
+    public long getEndToEnd() { return presented == 0 ? -1 : presented - grabbed; }
+
+    @Override
+    public String toString() {
+        return "#" + sequence
+                + " process " + CVUtility.nanosToMillis(processed - grabbed) + " ms"
+                + ", convert " + CVUtility.nanosToMillis(converted - processed) + " ms"
+                + ", present " + (presented == 0 ? "-" : CVUtility.nanosToMillis(presented - converted) + " ms");
+    }
+}
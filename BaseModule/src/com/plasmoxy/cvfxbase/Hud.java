@@ -0,0 +1,249 @@
+package com.plasmoxy.cvfxbase;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Status fields shown in the info label of a controller - counters, gauges and texts.
+ * Create fields once ( in init method ), then update them from any thread as often as needed :
+ * an update only stores the value and marks the HUD dirty, it doesn't allocate. The first change after a rebuild
+ * schedules one rebuild of the label on FX thread, later changes are taken by it - nothing runs while nothing changes.
+ *
+ * <pre>
+ * Hud.Counter faces = getHud().counter("faces");
+ * Hud.Gauge blur = getHud().gauge("blur", 1, " ms");
+ * ...
+ * faces.set(detected.size());
+ * blur.set(elapsed / 1e6);
+ * </pre>
+ * Fields are shown in the order of creation, after the texts of setInfoText.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class Hud {
+
+    private static final long[] POW10 = {1, 10, 100, 1000, 10_000, 100_000, 1_000_000};
+
+    private final List<Field> fields = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final Runnable rebuild;
+
+    /**
+     * Creates a HUD which is only marked dirty, for use outside a controller.
+     */
+    public Hud() { this(null); }
+
+    /**
+     * Creates a HUD of a controller.
+     * @param rebuild schedules the rebuild of the label, called once per dirty period
+     */
+    Hud(Runnable rebuild) {
+        this.rebuild = rebuild;
+    }
+
+    /**
+     * Base of HUD fields, a label and visibility.
+     */
+    public abstract class Field {
+        private final String label;
+        private volatile boolean visible = true;
+
+        private Field(String label) {
+            this.label = label;
+        }
+
+        /** @return label shown before the value */
+        public String getLabel() { return label; }
+
+        /** @param visible false hides the field */
+        public void setVisible(boolean visible) {
+            this.visible = visible;
+            markDirty();
+        }
+
+        /** @return true when the field is shown */
+        public boolean isVisible() { return visible; }
+
+        /** Appends the value, FX thread */
+        abstract void appendValue(StringBuilder sb);
+    }
+
+    /**
+     * Whole number - frames, detections, errors ...
+     */
+    public final class Counter extends Field {
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String label) { super(label); }
+
+        /** Adds one */
+        public void increment() { add(1); }
+
+        /** @param delta value to add */
+        public void add(long delta) {
+            value.addAndGet(delta);
+            markDirty();
+        }
+
+        /** @param v new value */
+        public void set(long v) {
+            if (value.getAndSet(v) != v) markDirty();
+        }
+
+        /** @return current value */
+        public long get() { return value.get(); }
+
+        @Override
+        void appendValue(StringBuilder sb) { sb.append(value.get()); }
+    }
+
+    /**
+     * Decimal value with fixed decimals and a unit - times, rates, sizes ...
+     */
+    public final class Gauge extends Field {
+        private final int decimals;
+        private final String unit;
+        private volatile double value;
+
+        private Gauge(String label, int decimals, String unit) {
+            super(label);
+            this.decimals = decimals;
+            this.unit = unit;
+        }
+
+        /** @param v new value */
+        public void set(double v) {
+            if (value != v) {
+                value = v;
+                markDirty();
+            }
+        }
+
+        /** @return current value */
+        public double get() { return value; }
+
+        @Override
+        void appendValue(StringBuilder sb) {
+            appendFixed(sb, value, decimals);
+            sb.append(unit);
+        }
+    }
+
+    /**
+     * Free text - modes, states, names ...
+     */
+    public final class Text extends Field {
+        private volatile String value = "";
+
+        private Text(String label) { super(label); }
+
+        /** @param v new text */
+        public void set(String v) {
+            if (v == null) v = "";
+            if (!v.equals(value)) {
+                value = v;
+                markDirty();
+            }
+        }
+
+        /** @return current text */
+        public String get() { return value; }
+
+        @Override
+        void appendValue(StringBuilder sb) { sb.append(value); }
+    }
+
+    // METHODS -- FIELDS --
+
+    /**
+     * Adds a counter.
+     * @param label label shown before the value
+     * @return the counter
+     */
+    public Counter counter(String label) { return add(new Counter(label)); }
+
+    /**
+     * Adds a gauge.
+     * @param label label shown before the value
+     * @param decimals decimals shown, 0 - 6
+     * @param unit text after the value, can be empty
+     * @return the gauge
+     */
+    public Gauge gauge(String label, int decimals, String unit) {
+        if (decimals < 0 || decimals >= POW10.length) throw new IllegalArgumentException("Gauge decimals must be 0 - 6, got " + decimals);
+        return add(new Gauge(label, decimals, unit == null ? "" : unit));
+    }
+
+    /**
+     * Adds a text field.
+     * @param label label shown before the text
+     * @return the text field
+     */
+    public Text text(String label) { return add(new Text(label)); }
+
+    /**
+     * Removes a field.
+     * @param field field of this HUD
+     */
+    public void remove(Field field) {
+        if (fields.remove(field)) markDirty();
+    }
+
+    private <F extends Field> F add(F field) {
+        fields.add(field);
+        markDirty();
+        return field;
+    }
+
+    // METHODS -- RENDERING --
+
+    /**
+     * Marks the HUD changed, the first change after a rebuild schedules the next one.
+     */
+    public void markDirty() {
+        // read first, so hot updates don't write the shared flag every time
+        if (!dirty.get() && dirty.compareAndSet(false, true) && rebuild != null) rebuild.run();
+    }
+
+    /**
+     * @return true if something changed since the last call, clears the flag
+     */
+    boolean takeDirty() {
+        return dirty.get() && dirty.getAndSet(false);
+    }
+
+    /**
+     * Appends visible fields as "label value", separated by two spaces.
+     * @param sb target builder
+     */
+    void appendTo(StringBuilder sb) {
+        for (Field f : fields) {
+            if (!f.isVisible()) continue;
+            if (sb.length() > 0) sb.append("  ");
+            sb.append(f.label).append(' ');
+            f.appendValue(sb);
+        }
+    }
+
+    /**
+     * Appends a number with fixed decimals without temporary objects.
+     */
+    static void appendFixed(StringBuilder sb, double v, int decimals) {
+        long scale = POW10[decimals];
+        if (Double.isNaN(v) || Math.abs(v) * scale >= Long.MAX_VALUE) {
+            sb.append(v); // NaN, infinity or huge, rare
+            return;
+        }
+        long r = Math.round(Math.abs(v) * scale);
+        if (v < 0 && r != 0) sb.append('-');
+        sb.append(r / scale);
+        if (decimals > 0) {
+            long fraction = r % scale;
+            sb.append('.');
+            for (long p = scale / 10; p > 1 && fraction < p; p /= 10) sb.append('0'); // leading zeros
+            sb.append(fraction);
+        }
+    }
+}
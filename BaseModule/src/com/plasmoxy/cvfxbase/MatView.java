@@ -0,0 +1,193 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Zero-copy view of Mat pixels as a direct ByteBuffer, or a Mat over a direct ByteBuffer. Get one from CVUtility :
+ * viewOf(mat), wrapDirect(buffer, rows, cols, type) or allocateDirect(rows, cols, type).
+ * Pixels are continuous, row after row, channels interleaved, so pixel (row, col) starts at
+ * ( row * cols + col ) * elemSize.
+ *
+ * <p>
+ * Lifetime rules :
+ * <ul>
+ * <li>viewOf - the buffer points into memory owned by the Mat. Close the view before the Mat is released
+ * or reallocated ( release(), create() with another shape, reading a frame of another size into it ... ).
+ * The view keeps the Mat reachable, so it isn't freed by the garbage collector meanwhile.
+ * After close the buffer throws IllegalStateException on access instead of touching freed memory.
+ * buffer() also checks that the Mat still has the same data and throws IllegalStateException if it doesn't.
+ * Closing the view doesn't release the Mat, it still belongs to the caller.</li>
+ * <li>wrapDirect / allocateDirect - the Mat is a header over memory owned by the buffer. The view keeps the buffer
+ * reachable, keep the view as long as the Mat is used. Close releases the Mat header, the buffer is freed by the garbage
+ * collector later. An OpenCV call which reallocates the Mat ( other shape or type ) silently moves it out of the buffer,
+ * isValid() tells it.</li>
+ * </ul>
+ *
+ * <p>
+ * viewOf needs jdk.incubator.foreign - run with --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED
+ * ( the optional com.plasmoxy.cvfxbase.foreign package is loaded then ). The other two work everywhere, a frame
+ * allocated by allocateDirect and filled by capture.read ( same size ) is readable through the buffer without copies.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class MatView implements AutoCloseable {
+
+    /**
+     * Maps native memory into a ByteBuffer, implemented with jdk.incubator.foreign.
+     */
+    public interface Mapper {
+        /**
+         * @param address native address
+         * @param length bytes
+         * @return mapped region
+         */
+        Region map(long address, int length);
+    }
+
+    /**
+     * Mapped native memory, access fails after close.
+     */
+    public interface Region extends AutoCloseable {
+        /** @return buffer over the region */
+        ByteBuffer buffer();
+
+        @Override
+        void close();
+    }
+
+    private static Mapper mapper;
+    private static boolean mapperLoaded = false;
+
+    private final Mat mat;
+    private final ByteBuffer buffer;
+    private final Region region; // null when the buffer owns the memory
+    private final long address;
+    private final int rows, cols, type;
+    private volatile boolean closed = false;
+
+    private MatView(Mat mat, ByteBuffer buffer, Region region) {
+        this.mat = mat;
+        this.buffer = buffer.duplicate().order(ByteOrder.nativeOrder()); // caller's buffer keeps its order
+        this.region = region;
+        address = mat.dataAddr();
+        rows = mat.rows();
+        cols = mat.cols();
+        type = mat.type();
+    }
+
+    // METHODS -- CREATION --
+
+    /**
+     * View of pixels of a Mat, see CVUtility.viewOf.
+     */
+    static MatView of(Mat mat) {
+        if (mat.empty()) throw new IllegalArgumentException("Cannot view an empty Mat");
+        if (!mat.isContinuous()) throw new IllegalArgumentException("Cannot view a Mat which isn't continuous ( submat ? ), clone it first");
+        long length = mat.total() * mat.elemSize();
+        if (length > Integer.MAX_VALUE) throw new IllegalArgumentException("Mat is too big for a ByteBuffer : " + length + " bytes");
+
+        Mapper m = getMapper();
+        if (m == null) throw new UnsupportedOperationException(
+                "Views of Mat data need --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED, or use allocateDirect");
+        Region region;
+        try {
+            region = m.map(mat.dataAddr(), (int)length);
+        } catch (IllegalCallerException e) {
+            throw new UnsupportedOperationException("Views of Mat data need --enable-native-access=ALL-UNNAMED", e);
+        }
+        return new MatView(mat, region.buffer(), region);
+    }
+
+    /**
+     * Mat over a direct buffer, see CVUtility.wrapDirect.
+     */
+    static MatView wrap(ByteBuffer buffer, int rows, int cols, int type) {
+        if (!buffer.isDirect()) throw new IllegalArgumentException("Only direct buffers can be wrapped");
+        long length = (long)rows * cols * CvType.ELEM_SIZE(type);
+        if (rows <= 0 || cols <= 0 || buffer.capacity() < length)
+            throw new IllegalArgumentException("Buffer of " + buffer.capacity() + " bytes is too small for " + rows + "x" + cols + " " + CvType.typeToString(type));
+        return new MatView(new Mat(rows, cols, type, buffer), buffer, null);
+    }
+
+    /**
+     * New direct buffer with a Mat over it, see CVUtility.allocateDirect.
+     */
+    static MatView allocate(int rows, int cols, int type) {
+        long length = (long)rows * cols * CvType.ELEM_SIZE(type);
+        if (rows <= 0 || cols <= 0 || length > Integer.MAX_VALUE) throw new IllegalArgumentException("Bad size " + rows + "x" + cols);
+        return wrap(ByteBuffer.allocateDirect((int)length), rows, cols, type);
+    }
+
+    /**
+     * Loads the jdk.incubator.foreign mapper once, null when the module is missing.
+     */
+    private static synchronized Mapper getMapper() {
+        if (!mapperLoaded) {
+            mapperLoaded = true;
+            if (ModuleLayer.boot().findModule("jdk.incubator.foreign").isPresent()) {
+                try {
+                    mapper = (Mapper)Class.forName("com.plasmoxy.cvfxbase.foreign.SegmentMapper").getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    AsyncLog.log("MatView", "ERROR : cannot load foreign mapper ( " + e + " )");
+                }
+            }
+        }
+        return mapper;
+    }
+
+    // METHODS -- ACCESS --
+
+    /**
+     * @return the Mat
+     */
+    public Mat mat() { return mat; }
+
+    /**
+     * Buffer over the pixels, native byte order. Position and limit are free to use, the buffer is shared by all calls.
+     * @return the buffer
+     * @throws IllegalStateException if the view is closed or the Mat was reallocated
+     */
+    public ByteBuffer buffer() {
+        if (!isValid()) throw new IllegalStateException(closed ? "View is closed" : "Mat was reallocated, view is stale");
+        return buffer;
+    }
+
+    /**
+     * @return region of the view over a Mat ( for the foreign package ), null for Mats over buffers
+     */
+    public Region region() { return region; }
+
+    /**
+     * @return true when the view is open and the Mat still uses the same memory and shape
+     */
+    public boolean isValid() {
+        return !closed && mat.dataAddr() == address && mat.rows() == rows && mat.cols() == cols && mat.type() == type;
+    }
+
+    /** @return byte offset of a pixel in the buffer */
+    public int offset(int row, int col) { return (row * cols + col) * CvType.ELEM_SIZE(type); }
+
+    /** @return rows */
+    public int rows() { return rows; }
+
+    /** @return columns */
+    public int cols() { return cols; }
+
+    /** @return OpenCV type */
+    public int type() { return type; }
+
+    /**
+     * Closes the view. Views over a Mat stop working, Mats over a buffer are released.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (region != null) region.close();
+        else mat.release();
+    }
+}
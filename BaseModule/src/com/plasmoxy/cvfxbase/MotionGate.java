@@ -0,0 +1,120 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Motion gate for static scenes.
+ * Every captured frame is shrunk to a tiny signature ( 32x24 by default ) and compared with the signature
+ * of the last processed frame. When the mean absolute difference is below threshold, the frame is skipped -
+ * process and view conversion don't run and views keep showing the last outputs.
+ * Comparing with the last processed frame ( not the previous one ) means slow changes accumulate
+ * and get processed eventually.
+ *
+ * <p>
+ * User input ( sliders, toggles, buttons ) triggers processing of the next frame, so parameter changes
+ * are visible even on a static scene. Optionally a frame is processed at least every maxSkip milliseconds.
+ *
+ * <p>
+ * Set it on controller with setMotionGate, for example in init method.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class MotionGate {
+
+    private final Size signatureSize;
+    private final Mat signature = new Mat(), reference = new Mat();
+    private double threshold = 2.0;
+    private long maxSkipNanos = 0;
+
+    private volatile boolean triggered = true;
+    private long lastProcessed;
+    private volatile double lastChange;
+    private volatile long skipped, passed;
+
+    /**
+     * Creates a gate with 32x24 signature.
+     */
+    public MotionGate() {
+        this(32, 24);
+    }
+
+    /**
+     * Creates a gate with given signature size.
+     * @param width signature width
+     * @param height signature height
+     */
+    public MotionGate(int width, int height) {
+        signatureSize = new Size(Math.max(1, width), Math.max(1, height));
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /**
+     * Sets the change threshold, mean absolute difference of signature pixels ( 0-255 scale, default 2 ).
+     * @param threshold change threshold
+     */
+    public void setThreshold(double threshold) { this.threshold = threshold; }
+
+    /** @return change threshold */
+    public double getThreshold() { return threshold; }
+
+    /**
+     * Sets the longest time without processing, 0 means frames are skipped as long as the scene is static.
+     * @param millis maximum skip time in milliseconds
+     */
+    public void setMaxSkip(long millis) { maxSkipNanos = Math.max(0, millis) * 1_000_000; }
+
+    /** @return change of the last compared frame against the reference */
+    public double getLastChange() { return lastChange; }
+
+    /** @return number of skipped frames */
+    public long getSkipped() { return skipped; }
+
+    /** @return number of frames let through */
+    public long getPassed() { return passed; }
+
+    // METHODS -- GATE --
+
+    /**
+     * Forces processing of the next frame ( called on user input ).
+     */
+    public void trigger() { triggered = true; }
+
+    /**
+     * Decides whether a frame has to be processed. If yes, it becomes the new reference.
+     * @param frame captured frame
+     * @return true if the frame changed enough ( or processing was triggered )
+     */
+    public boolean shouldProcess(Mat frame) {
+        Imgproc.resize(frame, signature, signatureSize, 0, 0, Imgproc.INTER_AREA);
+
+        long now = System.nanoTime();
+        boolean comparable = reference.size().equals(signature.size()) && reference.type() == signature.type();
+        double change = comparable
+                ? Core.norm(signature, reference, Core.NORM_L1) / (signature.total() * signature.channels())
+                : Double.MAX_VALUE;
+        lastChange = change;
+
+        boolean process = triggered || change >= threshold || (maxSkipNanos > 0 && now - lastProcessed >= maxSkipNanos);
+        if (process) {
+            triggered = false;
+            signature.copyTo(reference);
+            lastProcessed = now;
+            passed++;
+        } else {
+            skipped++;
+        }
+        return process;
+    }
+
+    /**
+     * Forgets the reference, next frame is processed ( used when the camera changes ).
+     */
+    public void reset() {
+        reference.release();
+        triggered = true;
+    }
+}
@@ -0,0 +1,220 @@
+package com.plasmoxy.cvfxbase;
+
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Vector annotations of a view - circles, rectangles, lines and text in frame coordinates.
+ * Instead of drawing results into the pixels with Imgproc, put them into an overlay and it is drawn
+ * on a Canvas layered over the image view. Overlay updates don't need a new frame conversion,
+ * cost almost nothing to draw and the frame itself stays clean.
+ *
+ * <p>
+ * Colors are OpenCV BGR Scalars, just like in Imgproc drawing functions.
+ * Methods return this overlay, so calls can be chained :
+ * <pre>
+ * beginOverlay(CVFXView.MAIN).circle(center, 40, new Scalar(0, 255, 0), 2).text("face", corner, new Scalar(255, 255, 255), 14);
+ * </pre>
+ *
+ * drawInto burns the overlay into a Mat, for recorders and headless runners.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class Overlay {
+
+    private static final int CIRCLE = 0, RECT = 1, LINE = 2, TEXT = 3;
+
+    /**
+     * One annotation.
+     */
+    private static class Shape {
+        final int type;
+        final double x, y, w, h, thickness;
+        final Scalar color;
+        final String text;
+
+        Shape(int type, double x, double y, double w, double h, Scalar color, double thickness, String text) {
+            this.type = type;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.color = color;
+            this.thickness = thickness;
+            this.text = text;
+        }
+    }
+
+    private final List<Shape> shapes = new ArrayList<>();
+    private int frameWidth, frameHeight;
+
+    // METHODS -- BUILDING --
+
+    /**
+     * Adds a circle outline ( thickness &lt; 0 fills it, like in Imgproc ).
+     * @param center center point
+     * @param radius radius in pixels
+     * @param color BGR color
+     * @param thickness line thickness
+     * @return this overlay
+     */
+    public Overlay circle(Point center, double radius, Scalar color, double thickness) {
+        shapes.add(new Shape(CIRCLE, center.x, center.y, radius, radius, color, thickness, null));
+        return this;
+    }
+
+    /**
+     * Adds a rectangle outline ( thickness &lt; 0 fills it ).
+     * @param r rectangle
+     * @param color BGR color
+     * @param thickness line thickness
+     * @return this overlay
+     */
+    public Overlay rect(Rect r, Scalar color, double thickness) {
+        shapes.add(new Shape(RECT, r.x, r.y, r.width, r.height, color, thickness, null));
+        return this;
+    }
+
+    /**
+     * Adds a line.
+     * @param a start point
+     * @param b end point
+     * @param color BGR color
+     * @param thickness line thickness
+     * @return this overlay
+     */
+    public Overlay line(Point a, Point b, Scalar color, double thickness) {
+        shapes.add(new Shape(LINE, a.x, a.y, b.x, b.y, color, thickness, null));
+        return this;
+    }
+
+    /**
+     * Adds a text.
+     * @param text the text
+     * @param origin bottom left corner of the text
+     * @param color BGR color
+     * @param size font size in frame pixels
+     * @return this overlay
+     */
+    public Overlay text(String text, Point origin, Scalar color, double size) {
+        shapes.add(new Shape(TEXT, origin.x, origin.y, 0, size, color, 1, text));
+        return this;
+    }
+
+    /**
+     * Removes all annotations.
+     * @return this overlay
+     */
+    public Overlay clear() {
+        shapes.clear();
+        return this;
+    }
+
+    /** @return number of annotations */
+    public int size() { return shapes.size(); }
+
+    /**
+     * Sets the size of the frame the coordinates belong to, used to scale the overlay to the view.
+     * Controller sets it when the overlay is published, if it isn't set.
+     * @param width frame width
+     * @param height frame height
+     */
+    public void setFrameSize(int width, int height) {
+        frameWidth = width;
+        frameHeight = height;
+    }
+
+    /** @return frame width of the coordinates */
+    public int getFrameWidth() { return frameWidth; }
+
+    /** @return frame height of the coordinates */
+    public int getFrameHeight() { return frameHeight; }
+
+    /**
+     * Creates an independent copy ( published overlays are copies, so the original can be reused ).
+     * @return copy of this overlay
+     */
+    public Overlay copy() {
+        Overlay o = new Overlay();
+        o.shapes.addAll(shapes);
+        o.frameWidth = frameWidth;
+        o.frameHeight = frameHeight;
+        return o;
+    }
+
+    // METHODS -- DRAWING --
+
+    /**
+     * Draws the overlay on a canvas, scaled from frame coordinates. Call on FX thread.
+     * @param gc graphics context of the canvas
+     * @param scaleX canvas width / frame width
+     * @param scaleY canvas height / frame height
+     */
+    public void draw(GraphicsContext gc, double scaleX, double scaleY) {
+        for (Shape s : shapes) {
+            Color c = Color.rgb(channel(s.color.val[2]), channel(s.color.val[1]), channel(s.color.val[0]));
+            gc.setStroke(c);
+            gc.setFill(c);
+            gc.setLineWidth(Math.max(1, s.thickness * Math.min(scaleX, scaleY)));
+            boolean fill = s.thickness < 0;
+
+            switch (s.type) {
+                case CIRCLE:
+                    double rx = s.w * scaleX, ry = s.h * scaleY;
+                    if (fill) gc.fillOval(s.x * scaleX - rx, s.y * scaleY - ry, rx * 2, ry * 2);
+                    else gc.strokeOval(s.x * scaleX - rx, s.y * scaleY - ry, rx * 2, ry * 2);
+                    break;
+                case RECT:
+                    if (fill) gc.fillRect(s.x * scaleX, s.y * scaleY, s.w * scaleX, s.h * scaleY);
+                    else gc.strokeRect(s.x * scaleX, s.y * scaleY, s.w * scaleX, s.h * scaleY);
+                    break;
+                case LINE:
+                    gc.strokeLine(s.x * scaleX, s.y * scaleY, s.w * scaleX, s.h * scaleY);
+                    break;
+                case TEXT:
+                    gc.setFont(Font.font(s.h * scaleY));
+                    gc.fillText(s.text, s.x * scaleX, s.y * scaleY);
+                    break;
+            }
+        }
+    }
+
+    private static int channel(double v) {
+        return (int)Math.max(0, Math.min(255, v));
+    }
+
+    /**
+     * Burns the overlay into a Mat with Imgproc ( for recorders, exports and headless runs ).
+     * @param mat target image, in the frame coordinates
+     */
+    public void drawInto(Mat mat) {
+        for (Shape s : shapes) {
+            int thickness = s.thickness < 0 ? -1 : (int)Math.max(1, Math.round(s.thickness));
+            switch (s.type) {
+                case CIRCLE:
+                    Imgproc.circle(mat, new Point(s.x, s.y), (int)Math.round(s.w), s.color, thickness);
+                    break;
+                case RECT:
+                    Imgproc.rectangle(mat, new Point(s.x, s.y), new Point(s.x + s.w, s.y + s.h), s.color, thickness);
+                    break;
+                case LINE:
+                    Imgproc.line(mat, new Point(s.x, s.y), new Point(s.w, s.h), s.color, thickness);
+                    break;
+                case TEXT:
+                    // Hershey simplex is about 22 pixels high at scale 1
+                    Imgproc.putText(mat, s.text, new Point(s.x, s.y), Core.FONT_HERSHEY_SIMPLEX, s.h / 22.0, s.color, 1);
+                    break;
+            }
+        }
+    }
+}
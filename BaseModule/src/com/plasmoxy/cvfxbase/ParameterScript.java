@@ -0,0 +1,171 @@
+package com.plasmoxy.cvfxbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed script of user input for headless runs.
+ * Every line is "frame control [value]", lines starting with # are comments, for example :
+ *
+ * <pre>
+ * # enable circle and change its radius on frame 10
+ * 0 toggleA true
+ * 10 sliderA 42.5
+ * 20 buttonB
+ * </pre>
+ *
+ * Controls are the user controls of CVFXController ( sliderA-G, toggleA-H, buttonA-F ),
+ * events call the same handler methods ( slider?Changed, toggle?Changed, button?Pressed ) as the gui does,
+ * before the frame with the given index is processed.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class ParameterScript {
+
+    private final List<Event> events = new ArrayList<>();
+    private final Map<String, Double> sliderValues = new HashMap<>();
+
+    /**
+     * One scripted input event.
+     */
+    private static class Event {
+        final int frame;
+        final String control;
+        final String value;
+        final Method handler;
+
+        Event(int frame, String control, String value, Method handler) {
+            this.frame = frame;
+            this.control = control;
+            this.value = value;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Creates an empty script ( no input events ).
+     */
+    public ParameterScript() {}
+
+    /**
+     * Loads a script file.
+     * @param file script file
+     * @return parsed script
+     * @throws IOException if the file cannot be read or has a bad line
+     */
+    public static ParameterScript load(File file) throws IOException {
+        ParameterScript script = new ParameterScript();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+");
+            try {
+                script.add(Integer.parseInt(parts[0]), parts[1], parts.length > 2 ? parts[2] : null);
+            } catch (RuntimeException e) {
+                throw new IOException(file + ":" + lineNumber + " : bad script line \"" + line + "\" ( " + e.getMessage() + " )");
+            }
+        }
+        return script;
+    }
+
+    /**
+     * Adds an event to the script.
+     * @param frame index of the frame before which the event happens
+     * @param control control name, for example sliderA, toggleC, buttonF
+     * @param value slider value, toggle state ( true/false ), null for buttons
+     * @return this script
+     */
+    public ParameterScript add(int frame, String control, String value) {
+        Method handler;
+        try {
+            if (control.matches("slider[A-G]")) {
+                Double.parseDouble(value);
+                handler = CVFXController.class.getDeclaredMethod(control + "Changed", Number.class, Number.class);
+            } else if (control.matches("toggle[A-H]")) {
+                if (!"true".equals(value) && !"false".equals(value)) throw new IllegalArgumentException("toggle value must be true or false");
+                handler = CVFXController.class.getDeclaredMethod(control + "Changed", boolean.class);
+            } else if (control.matches("button[A-F]")) {
+                handler = CVFXController.class.getDeclaredMethod(control + "Pressed");
+            } else {
+                throw new IllegalArgumentException("unknown control " + control);
+            }
+        } catch (NoSuchMethodException | NullPointerException e) {
+            throw new IllegalArgumentException("bad event " + control + " " + value);
+        }
+        handler.setAccessible(true);
+        events.add(new Event(frame, control, value, handler));
+        return this;
+    }
+
+    /** @return number of events in the script */
+    public int size() { return events.size(); }
+
+    /**
+     * Resets the remembered slider values ( old values of slider events ), call before another run.
+     */
+    public void reset() { sliderValues.clear(); }
+
+    /**
+     * Fires all events of a frame on the controller, in script order. A failing handler ( like one which updates
+     * gui controls of a headless controller ) is logged and the next events are fired.
+     * @param controller target controller
+     * @param frame index of the frame which is going to be processed
+     * @return number of events whose handlers failed
+     */
+    public int apply(CVFXController controller, int frame) {
+        int failed = 0;
+        for (Event e : events) {
+            if (e.frame != frame) continue;
+            try {
+                fire(controller, e);
+            } catch (IllegalStateException ex) {
+                AsyncLog.log("ParameterScript", "ERROR : " + ex.getMessage() + " : " + ex.getCause());
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Fires one event right away, without adding it to the script ( used by worker processes ).
+     * @param controller target controller
+     * @param control control name like sliderA, toggleB or buttonC
+     * @param value slider value, toggle state or null for buttons
+     */
+    void fire(CVFXController controller, String control, String value) {
+        int from = events.size();
+        add(-1, control, value);
+        fire(controller, events.remove(from));
+    }
+
+    /**
+     * Calls the handler of an event, slider handlers get the previous value of the slider.
+     */
+    private void fire(CVFXController controller, Event e) {
+        try {
+            if (e.control.startsWith("slider")) {
+                double newVal = Double.parseDouble(e.value);
+                Double oldVal = sliderValues.put(e.control, newVal);
+                e.handler.invoke(controller, oldVal == null ? 0.0 : oldVal, newVal);
+            } else if (e.control.startsWith("toggle")) {
+                e.handler.invoke(controller, Boolean.parseBoolean(e.value));
+            } else {
+                e.handler.invoke(controller);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Cannot call handler of " + e.control, ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Handler of " + e.control + " failed on frame " + e.frame, ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Reusable byte buffer for pixels of an 8 bit Mat, used by PixelKernels.
+ * The array is reallocated only when a bigger frame comes, so frame after frame of the same size
+ * costs no allocation. Pixels are stored continuously, row after row, channels interleaved ( BGRBGR... ).
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class PixelBuffer {
+
+    private byte[] data = new byte[0];
+    private int length, rows, cols, type;
+
+    /**
+     * Sets the shape of the buffer, the array grows when needed.
+     * @param rows rows
+     * @param cols columns
+     * @param type OpenCV type, 8 bit depth ( CV_8UC1, CV_8UC3 ... )
+     * @return this buffer
+     */
+    public PixelBuffer setShape(int rows, int cols, int type) {
+        if (CvType.depth(type) != CvType.CV_8U) throw new IllegalArgumentException("Only 8 bit unsigned frames are supported, got " + CvType.typeToString(type));
+        this.rows = rows;
+        this.cols = cols;
+        this.type = type;
+        length = rows * cols * CvType.channels(type);
+        if (data.length < length) data = new byte[(length + 11) / 12 * 12]; // Mat.get/put need a multiple of channels
+        return this;
+    }
+
+    /**
+     * Copies pixels of a Mat into the buffer.
+     * @param mat 8 bit Mat ( submats are fine )
+     * @return this buffer
+     */
+    public PixelBuffer load(Mat mat) {
+        setShape(mat.rows(), mat.cols(), mat.type());
+        mat.get(0, 0, data);
+        return this;
+    }
+
+    /**
+     * Copies pixels of the buffer into a Mat, it is reallocated if it has a different shape.
+     * @param mat target Mat
+     */
+    public void store(Mat mat) {
+        mat.create(rows, cols, type);
+        mat.put(0, 0, data); // copies only the Mat size, the array can be bigger
+    }
+
+    /** @return pixel array, it can be longer than length */
+    public byte[] data() { return data; }
+
+    /** @return number of valid bytes */
+    public int length() { return length; }
+
+    /** @return rows */
+    public int rows() { return rows; }
+
+    /** @return columns */
+    public int cols() { return cols; }
+
+    /** @return OpenCV type */
+    public int type() { return type; }
+}
@@ -0,0 +1,278 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+
+/**
+ * Per-pixel kernels for custom Java pixel code - threshold, LUT, saturating channel arithmetic, scaling, blending
+ * and user lane functions, on 8 bit data.
+ * Kernels work on byte arrays ( PixelBuffer ) or directly on Mats, Mat versions reuse per-thread buffers,
+ * so they don't allocate frame after frame.
+ *
+ * <p>
+ * Two backends exist. The SIMD backend ( com.plasmoxy.cvfxbase.vector, built on jdk.incubator.vector ) is picked
+ * automatically when the module is present - compile and run with --add-modules jdk.incubator.vector.
+ * Otherwise, or with -Dcvfx.kernels=scalar, the scalar backend is used, with the same results.
+ * The vector package can be left out of projects which don't use the flag.
+ * Compare both with OpenCV using PixelKernelsBenchmark.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public final class PixelKernels {
+
+    /**
+     * Kernel implementation working on byte arrays, length bytes from index 0.
+     * Values are unsigned bytes, results saturate to 0 - 255.
+     */
+    public interface Backend {
+        /** @return backend name */
+        String getName();
+
+        /** dst = src &gt; thresh ? maxVal : 0 ( inverse : src &gt; thresh ? 0 : maxVal ) */
+        void threshold(byte[] src, byte[] dst, int length, int thresh, int maxVal, boolean inverse);
+
+        /** dst = table[src] */
+        void lut(byte[] src, byte[] dst, int length, byte[] table);
+
+        /** dst = saturate(a + b) */
+        void add(byte[] a, byte[] b, byte[] dst, int length);
+
+        /** dst = saturate(a - b) */
+        void subtract(byte[] a, byte[] b, byte[] dst, int length);
+
+        /** dst = |a - b| */
+        void absdiff(byte[] a, byte[] b, byte[] dst, int length);
+
+        /** dst = saturate(round(src * alpha + beta)), in 16.16 fixed point */
+        void scale(byte[] src, byte[] dst, int length, float alpha, float beta);
+
+        /** dst = (a * weight + b * (256 - weight) + 128) &gt;&gt; 8, weight of a is 0 - 256 */
+        void blend(byte[] a, byte[] b, byte[] dst, int length, int weight);
+    }
+
+    /**
+     * User function of one channel value, applied to every byte ( evaluated once per value into a LUT ).
+     */
+    public interface LaneKernel {
+        /**
+         * @param value channel value 0 - 255
+         * @return new value, saturated to 0 - 255
+         */
+        int apply(int value);
+    }
+
+    private static final Backend BACKEND = pickBackend();
+
+    private static final ThreadLocal<PixelBuffer[]> BUFFERS = ThreadLocal.withInitial(
+            () -> new PixelBuffer[] {new PixelBuffer(), new PixelBuffer(), new PixelBuffer()});
+
+    private PixelKernels() {}
+
+    /**
+     * Loads the SIMD backend when jdk.incubator.vector is available, else scalar.
+     */
+    private static Backend pickBackend() {
+        if (!"scalar".equals(System.getProperty("cvfx.kernels"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Backend)Class.forName("com.plasmoxy.cvfxbase.vector.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                AsyncLog.log("PixelKernels", "ERROR : cannot load vector kernels, using scalar ( " + e + " )");
+            }
+        }
+        return new ScalarBackend();
+    }
+
+    /** @return active backend */
+    public static Backend getBackend() { return BACKEND; }
+
+    /** @return scalar backend ( for comparisons ) */
+    public static Backend getScalarBackend() { return new ScalarBackend(); }
+
+    // METHODS -- MAT KERNELS --
+
+    /**
+     * Binary threshold, like Imgproc.threshold with THRESH_BINARY ( or THRESH_BINARY_INV ).
+     * @param src 8 bit source
+     * @param dst destination ( can be src )
+     * @param thresh threshold
+     * @param maxVal value above threshold
+     * @param inverse true for THRESH_BINARY_INV
+     */
+    public static void threshold(Mat src, Mat dst, int thresh, int maxVal, boolean inverse) {
+        PixelBuffer[] b = BUFFERS.get();
+        b[0].load(src);
+        b[2].setShape(src.rows(), src.cols(), src.type());
+        BACKEND.threshold(b[0].data(), b[2].data(), b[0].length(), thresh, maxVal, inverse);
+        b[2].store(dst);
+    }
+
+    /**
+     * Maps every channel value through a table, like Core.LUT.
+     * @param src 8 bit source
+     * @param dst destination ( can be src )
+     * @param table 256 values
+     */
+    public static void lut(Mat src, Mat dst, byte[] table) {
+        if (table.length < 256) throw new IllegalArgumentException("LUT needs 256 values, got " + table.length);
+        PixelBuffer[] b = BUFFERS.get();
+        b[0].load(src);
+        b[2].setShape(src.rows(), src.cols(), src.type());
+        BACKEND.lut(b[0].data(), b[2].data(), b[0].length(), table);
+        b[2].store(dst);
+    }
+
+    /**
+     * Applies a user function to every channel value.
+     * @param src 8 bit source
+     * @param dst destination ( can be src )
+     * @param kernel the function
+     */
+    public static void map(Mat src, Mat dst, LaneKernel kernel) {
+        lut(src, dst, table(kernel));
+    }
+
+    /**
+     * Evaluates a lane kernel into a LUT ( keep it when the kernel is used every frame ).
+     * @param kernel the function
+     * @return 256 values
+     */
+    public static byte[] table(LaneKernel kernel) {
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) table[i] = (byte)Math.max(0, Math.min(255, kernel.apply(i)));
+        return table;
+    }
+
+    /**
+     * Saturating add, like Core.add.
+     * @param a first 8 bit source
+     * @param b second source of the same shape
+     * @param dst destination ( can be a source )
+     */
+    public static void add(Mat a, Mat b, Mat dst) {
+        PixelBuffer[] buf = loadPair(a, b);
+        BACKEND.add(buf[0].data(), buf[1].data(), buf[2].data(), buf[0].length());
+        buf[2].store(dst);
+    }
+
+    /**
+     * Saturating subtract, like Core.subtract.
+     * @param a first 8 bit source
+     * @param b second source of the same shape
+     * @param dst destination ( can be a source )
+     */
+    public static void subtract(Mat a, Mat b, Mat dst) {
+        PixelBuffer[] buf = loadPair(a, b);
+        BACKEND.subtract(buf[0].data(), buf[1].data(), buf[2].data(), buf[0].length());
+        buf[2].store(dst);
+    }
+
+    /**
+     * Absolute difference, like Core.absdiff.
+     * @param a first 8 bit source
+     * @param b second source of the same shape
+     * @param dst destination ( can be a source )
+     */
+    public static void absdiff(Mat a, Mat b, Mat dst) {
+        PixelBuffer[] buf = loadPair(a, b);
+        BACKEND.absdiff(buf[0].data(), buf[1].data(), buf[2].data(), buf[0].length());
+        buf[2].store(dst);
+    }
+
+    /**
+     * Scales values with saturation, like Mat.convertTo(dst, -1, alpha, beta).
+     * @param src 8 bit source
+     * @param dst destination ( can be src )
+     * @param alpha gain
+     * @param beta offset
+     */
+    public static void scale(Mat src, Mat dst, double alpha, double beta) {
+        PixelBuffer[] b = BUFFERS.get();
+        b[0].load(src);
+        b[2].setShape(src.rows(), src.cols(), src.type());
+        BACKEND.scale(b[0].data(), b[2].data(), b[0].length(), (float)alpha, (float)beta);
+        b[2].store(dst);
+    }
+
+    /**
+     * Blends two frames, like Core.addWeighted(a, alpha, b, 1 - alpha, 0, dst) ( alpha in 1/256 steps ).
+     * @param a first 8 bit source
+     * @param b second source of the same shape
+     * @param alpha weight of a, 0 - 1
+     * @param dst destination ( can be a source )
+     */
+    public static void blend(Mat a, Mat b, double alpha, Mat dst) {
+        PixelBuffer[] buf = loadPair(a, b);
+        BACKEND.blend(buf[0].data(), buf[1].data(), buf[2].data(), buf[0].length(), blendWeight(alpha));
+        buf[2].store(dst);
+    }
+
+    /**
+     * Converts blend alpha to the fixed point weight of Backend.blend.
+     * @param alpha weight of a, 0 - 1
+     * @return weight 0 - 256
+     */
+    public static int blendWeight(double alpha) {
+        return (int)Math.round(Math.max(0, Math.min(1, alpha)) * 256);
+    }
+
+    private static PixelBuffer[] loadPair(Mat a, Mat b) {
+        if (!a.size().equals(b.size()) || a.type() != b.type()) throw new IllegalArgumentException("Frames differ : " + a + " and " + b);
+        PixelBuffer[] buf = BUFFERS.get();
+        buf[0].load(a);
+        buf[1].load(b);
+        buf[2].setShape(a.rows(), a.cols(), a.type());
+        return buf;
+    }
+
+    // SCALAR
+
+    /**
+     * Plain loops, used when the vector module isn't available. Also the reference for the vector backend.
+     */
+    private static class ScalarBackend implements Backend {
+
+        @Override
+        public String getName() { return "scalar"; }
+
+        @Override
+        public void threshold(byte[] src, byte[] dst, int length, int thresh, int maxVal, boolean inverse) {
+            byte above = (byte)(inverse ? 0 : maxVal), below = (byte)(inverse ? maxVal : 0);
+            for (int i = 0; i < length; i++) dst[i] = (src[i] & 0xFF) > thresh ? above : below;
+        }
+
+        @Override
+        public void lut(byte[] src, byte[] dst, int length, byte[] table) {
+            for (int i = 0; i < length; i++) dst[i] = table[src[i] & 0xFF];
+        }
+
+        @Override
+        public void add(byte[] a, byte[] b, byte[] dst, int length) {
+            for (int i = 0; i < length; i++) dst[i] = (byte)Math.min(255, (a[i] & 0xFF) + (b[i] & 0xFF));
+        }
+
+        @Override
+        public void subtract(byte[] a, byte[] b, byte[] dst, int length) {
+            for (int i = 0; i < length; i++) dst[i] = (byte)Math.max(0, (a[i] & 0xFF) - (b[i] & 0xFF));
+        }
+
+        @Override
+        public void absdiff(byte[] a, byte[] b, byte[] dst, int length) {
+            for (int i = 0; i < length; i++) dst[i] = (byte)Math.abs((a[i] & 0xFF) - (b[i] & 0xFF));
+        }
+
+        @Override
+        public void scale(byte[] src, byte[] dst, int length, float alpha, float beta) {
+            long gain = Math.round(alpha * 65536.0), offset = Math.round((beta + 0.5) * 65536.0); // 16.16 fixed point
+            for (int i = 0; i < length; i++) {
+                long v = ((src[i] & 0xFF) * gain + offset) >> 16;
+                dst[i] = (byte)(v < 0 ? 0 : v > 255 ? 255 : v);
+            }
+        }
+
+        @Override
+        public void blend(byte[] a, byte[] b, byte[] dst, int length, int weight) {
+            int other = 256 - weight;
+            for (int i = 0; i < length; i++) dst[i] = (byte)(((a[i] & 0xFF) * weight + (b[i] & 0xFF) * other + 128) >> 8);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Benchmark of PixelKernels against the same OpenCV calls ( Imgproc.threshold, Core.LUT, Core.add ... ).
+ * For every kernel it measures OpenCV, the active backend and the scalar backend on byte arrays,
+ * and the Mat version of the kernel ( which includes copying pixels in and out ). It also checks that
+ * results match OpenCV ( blend and scale may differ by 1 in rounding ).
+ *
+ * <p>
+ * Command line :
+ * <pre>
+ * PixelKernelsBenchmark [width height] [-iterations n]
+ * </pre>
+ * Run with --add-modules jdk.incubator.vector to measure the vector backend.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class PixelKernelsBenchmark {
+
+    private final int width, height;
+    private int iterations = 50;
+
+    private final Mat a = new Mat(), b = new Mat(), reference = new Mat(), result = new Mat();
+    private final PixelBuffer bufferA = new PixelBuffer(), bufferB = new PixelBuffer(), out = new PixelBuffer();
+    private final PixelKernels.Backend backend = PixelKernels.getBackend(), scalar = PixelKernels.getScalarBackend();
+
+    /**
+     * Creates a benchmark on random BGR frames.
+     * @param width frame width
+     * @param height frame height
+     */
+    public PixelKernelsBenchmark(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /** @param iterations measured runs of every kernel, default 50 */
+    public void setIterations(int iterations) { this.iterations = Math.max(1, iterations); }
+
+    /**
+     * Runs all kernels and prints a table, times are milliseconds per frame.
+     */
+    public void run() {
+        a.create(height, width, CvType.CV_8UC3);
+        b.create(height, width, CvType.CV_8UC3);
+        Core.randu(a, 0, 256);
+        Core.randu(b, 0, 256);
+        bufferA.load(a);
+        bufferB.load(b);
+        out.setShape(height, width, CvType.CV_8UC3);
+        int length = bufferA.length();
+
+        byte[] table = PixelKernels.table(v -> 255 - v / 2);
+        Mat lut = new Mat(1, 256, CvType.CV_8UC1);
+        lut.put(0, 0, table);
+
+        System.out.println("[PixelKernelsBenchmark] " + width + "x" + height + " BGR, " + iterations + " iterations, backend " + backend.getName());
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %8s", "kernel", "opencv", backend.getName().split(" ")[0], "scalar", "mat", "max diff"));
+
+        row("threshold",
+                () -> Imgproc.threshold(a, reference, 100, 255, Imgproc.THRESH_BINARY),
+                k -> k.threshold(bufferA.data(), out.data(), length, 100, 255, false),
+                () -> PixelKernels.threshold(a, result, 100, 255, false));
+        row("lut",
+                () -> Core.LUT(a, lut, reference),
+                k -> k.lut(bufferA.data(), out.data(), length, table),
+                () -> PixelKernels.lut(a, result, table));
+        row("add",
+                () -> Core.add(a, b, reference),
+                k -> k.add(bufferA.data(), bufferB.data(), out.data(), length),
+                () -> PixelKernels.add(a, b, result));
+        row("subtract",
+                () -> Core.subtract(a, b, reference),
+                k -> k.subtract(bufferA.data(), bufferB.data(), out.data(), length),
+                () -> PixelKernels.subtract(a, b, result));
+        row("absdiff",
+                () -> Core.absdiff(a, b, reference),
+                k -> k.absdiff(bufferA.data(), bufferB.data(), out.data(), length),
+                () -> PixelKernels.absdiff(a, b, result));
+        row("scale",
+                () -> a.convertTo(reference, -1, 1.3, -20),
+                k -> k.scale(bufferA.data(), out.data(), length, 1.3f, -20f),
+                () -> PixelKernels.scale(a, result, 1.3, -20));
+        row("blend",
+                () -> Core.addWeighted(a, 0.25, b, 0.75, 0, reference),
+                k -> k.blend(bufferA.data(), bufferB.data(), out.data(), length, PixelKernels.blendWeight(0.25)),
+                () -> PixelKernels.blend(a, b, 0.25, result));
+
+        lut.release();
+    }
+
+    /**
+     * Measures one kernel and prints its row.
+     */
+    private void row(String name, Runnable opencv, java.util.function.Consumer<PixelKernels.Backend> kernel, Runnable mat) {
+        double cv = measure(opencv);
+        double active = measure(() -> kernel.accept(backend));
+        double plain = measure(() -> kernel.accept(scalar));
+        double withCopies = measure(mat);
+
+        // compare the array result of the active backend with OpenCV
+        kernel.accept(backend);
+        out.store(result);
+        Mat diff = new Mat();
+        Core.absdiff(reference, result, diff);
+        double maxDiff = Core.minMaxLoc(diff.reshape(1)).maxVal;
+        diff.release();
+
+        System.out.println(String.format("%-10s %10.3f %10.3f %10.3f %10.3f %8.0f", name, cv, active, plain, withCopies, maxDiff));
+    }
+
+    /**
+     * Average time of one run in milliseconds, best of three rounds after a warmup.
+     */
+    private double measure(Runnable r) {
+        // warmup, lets the JIT compile the loops ( vector code is slow until it is compiled )
+        long warmupEnd = System.nanoTime() + 1_000_000_000L;
+        for (int i = 0; i < iterations || System.nanoTime() < warmupEnd; i++) r.run();
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) r.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6 / iterations;
+    }
+
+    // METHODS -- COMMAND LINE --
+
+    /**
+     * Command line entry, see class description for arguments.
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        int width = 1920, height = 1080, iterations = 50;
+        int positional = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-iterations")) iterations = Integer.parseInt(args[++i]);
+            else if (positional++ == 0) width = Integer.parseInt(args[i]);
+            else height = Integer.parseInt(args[i]);
+        }
+
+        PixelKernelsBenchmark benchmark = new PixelKernelsBenchmark(width, height);
+        benchmark.setIterations(iterations);
+        benchmark.run();
+    }
+}
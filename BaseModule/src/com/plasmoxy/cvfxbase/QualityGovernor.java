@@ -0,0 +1,211 @@
+package com.plasmoxy.cvfxbase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Adaptive quality governor which holds a frame time budget.
+ * It watches the processing time of every frame ( grab to converted views ) and when the average
+ * of a short window is over budget, it steps down one quality knob. When the average of a longer window
+ * is under budget with headroom, the last lowered knob is stepped back up.
+ *
+ * <p>
+ * Knobs are settings exposed by the controller, each has levels from 0 ( best quality ) to maxLevel
+ * and a callback which applies the level. Knobs are lowered in the order they were added and raised
+ * in reverse order. Callbacks run on the render thread, between frames. For example in init method :
+ * <pre>
+ * QualityGovernor g = new QualityGovernor(33);
+ * g.addKnob("beta refresh", 3, level -&gt; setViewRefreshDivisor(CVFXView.BETA, 1 &lt;&lt; level));
+ * g.addKnob("detect interval", 3, level -&gt; detectInterval = 1 &lt;&lt; level);
+ * g.addKnob("process scale", 2, level -&gt; processScale = 1.0 / (1 &lt;&lt; level));
+ * setQualityGovernor(g);
+ * </pre>
+ *
+ * Every change is logged by controller and kept in history.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class QualityGovernor {
+
+    /**
+     * One quality setting with discrete levels.
+     */
+    public static class Knob {
+        private final String name;
+        private final int maxLevel;
+        private final IntConsumer apply;
+        private volatile int level = 0;
+
+        private Knob(String name, int maxLevel, IntConsumer apply) {
+            this.name = name;
+            this.maxLevel = maxLevel;
+            this.apply = apply;
+        }
+
+        /** @return knob name */
+        public String getName() { return name; }
+
+        /** @return current level, 0 is best quality */
+        public int getLevel() { return level; }
+
+        /** @return lowest quality level */
+        public int getMaxLevel() { return maxLevel; }
+
+        private void set(int level) {
+            this.level = level;
+            apply.accept(level);
+        }
+    }
+
+    // FIELDS -- CONFIG --
+
+    private long budgetNanos;
+    private double headroom = 0.7;
+    private int downWindow = 15, upWindow = 90;
+
+    // FIELDS -- STATE --
+
+    private final List<Knob> knobs = new ArrayList<>();
+    private final List<String> history = Collections.synchronizedList(new ArrayList<>());
+    private long downSum, upSum;
+    private int downCount, upCount;
+    private volatile long lastAverage;
+
+    /**
+     * Creates a governor.
+     * @param budgetMillis frame time budget in milliseconds
+     */
+    public QualityGovernor(double budgetMillis) {
+        setBudget(budgetMillis);
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @param millis frame time budget in milliseconds */
+    public void setBudget(double millis) { budgetNanos = (long)(millis * 1_000_000); }
+
+    /** @return frame time budget in nanoseconds */
+    public long getBudget() { return budgetNanos; }
+
+    /**
+     * Sets the headroom, quality goes up only when the long window average is under budget * headroom.
+     * @param fraction headroom fraction, default 0.7
+     */
+    public void setHeadroom(double fraction) { headroom = fraction; }
+
+    /**
+     * Sets how many frames are averaged before a decision.
+     * @param down frames averaged for stepping down ( default 15, react fast )
+     * @param up frames averaged for stepping up ( default 90, be careful )
+     */
+    public void setWindows(int down, int up) {
+        downWindow = Math.max(1, down);
+        upWindow = Math.max(1, up);
+    }
+
+    /**
+     * Adds a knob. Knobs added first are lowered first.
+     * @param name knob name for logs
+     * @param maxLevel lowest quality level ( levels are 0 - maxLevel )
+     * @param apply callback which applies a level
+     * @return the knob
+     */
+    public Knob addKnob(String name, int maxLevel, IntConsumer apply) {
+        Knob k = new Knob(name, Math.max(0, maxLevel), apply);
+        synchronized (knobs) {
+            knobs.add(k);
+        }
+        return k;
+    }
+
+    /** @return knobs in lowering order */
+    public List<Knob> getKnobs() {
+        synchronized (knobs) {
+            return new ArrayList<>(knobs);
+        }
+    }
+
+    /** @return all quality changes so far */
+    public List<String> getHistory() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /** @return average frame time of the last finished down window in nanoseconds */
+    public long getLastAverage() { return lastAverage; }
+
+    // METHODS -- GOVERNOR --
+
+    /**
+     * Records processing time of a frame and changes quality when needed.
+     * @param frameNanos processing time of the frame
+     * @return description of the change or null if nothing changed
+     */
+    public String record(long frameNanos) {
+        downSum += frameNanos;
+        downCount++;
+        upSum += frameNanos;
+        upCount++;
+
+        if (downCount >= downWindow) {
+            long average = downSum / downCount;
+            lastAverage = average;
+            downSum = 0;
+            downCount = 0;
+            if (average > budgetNanos) {
+                upSum = 0;
+                upCount = 0;
+                return step(true, average);
+            }
+        }
+
+        if (upCount >= upWindow) {
+            long average = upSum / upCount;
+            upSum = 0;
+            upCount = 0;
+            if (average < budgetNanos * headroom) return step(false, average);
+        }
+        return null;
+    }
+
+    /**
+     * Lowers the first knob which can go lower, or raises the last lowered knob.
+     */
+    private String step(boolean down, long average) {
+        synchronized (knobs) {
+            if (down) {
+                for (Knob k : knobs) {
+                    if (k.level < k.maxLevel) return change(k, k.level + 1, average);
+                }
+            } else {
+                for (int i = knobs.size() - 1; i >= 0; i--) {
+                    Knob k = knobs.get(i);
+                    if (k.level > 0) return change(k, k.level - 1, average);
+                }
+            }
+        }
+        return null;
+    }
+
+    private String change(Knob k, int level, long average) {
+        String message = "Quality " + (level > k.level ? "down" : "up") + " : " + k.name + " " + k.level + " -> " + level
+                + " ( average " + CVUtility.nanosToMillis(average) + " ms, budget " + CVUtility.nanosToMillis(budgetNanos) + " ms )";
+        k.set(level);
+        history.add(message);
+        return message;
+    }
+
+    /**
+     * Puts all knobs back to best quality.
+     */
+    public void reset() {
+        synchronized (knobs) {
+            for (Knob k : knobs) if (k.level != 0) k.set(0);
+        }
+        downSum = upSum = 0;
+        downCount = upCount = 0;
+    }
+}
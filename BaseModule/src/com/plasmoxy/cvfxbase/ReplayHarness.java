@@ -0,0 +1,321 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Deterministic replay harness for regression testing of controllers.
+ * Runs a controller headless ( see CVFXController.initHeadless ) on a recorded FrameSequence
+ * with a fixed ParameterScript and checks two things :
+ *
+ * <ul>
+ *     <li>outputs - every non empty Main/Alpha/Beta output is compared to golden png images
+ *     ( main_00000.png, alpha_00000.png ... ), a pixel channel differs when the absolute difference is over tolerance
+ *     and only the allowed fraction of channels may differ</li>
+ *     <li>performance - throughput and p99 of process time must not be worse than the stored baseline
+ *     by more than the margin</li>
+ * </ul>
+ *
+ * Record mode writes the goldens and baseline instead of checking them.
+ * Only the first pass is compared to goldens, more passes just give more stable timings.
+ *
+ * <p>
+ * Command line ( exits with 1 when the run fails ) :
+ * <pre>
+ * ReplayHarness controllerClass frames [-script file] [-golden dir] [-tolerance t] [-fraction f]
+ *               [-baseline file] [-margin m] [-warmup n] [-passes n] [-record]
+ * </pre>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class ReplayHarness {
+
+    // FIELDS -- CONFIG --
+
+    private final Class<? extends CVFXController> controllerClass;
+    private final File frames;
+    private ParameterScript script = new ParameterScript();
+    private File goldenDir, baselineFile;
+    private double tolerance = 2, differingFraction = 0, margin = 0.1;
+    private int warmupFrames = 5, passes = 1;
+    private boolean record = false;
+
+    /**
+     * Result of one replay run.
+     */
+    public static class Result {
+        private int frames;
+        private double throughput;
+        private long p99;
+        private int eventFailures;
+        private final List<String> failures = new ArrayList<>();
+
+        /** @return number of frames of one pass */
+        public int getFrames() { return frames; }
+
+        /** @return measured frames per second of process time */
+        public double getThroughput() { return throughput; }
+
+        /** @return 99th percentile of process time in nanoseconds */
+        public long getP99() { return p99; }
+
+        /** @return script events whose handlers failed, in all passes ( logged, they don't fail the run ) */
+        public int getEventFailures() { return eventFailures; }
+
+        /** @return failure messages, empty if the run passed */
+        public List<String> getFailures() { return Collections.unmodifiableList(failures); }
+
+        /** @return true if there are no failures */
+        public boolean passed() { return failures.isEmpty(); }
+
+        @Override
+        public String toString() {
+            return (passed() ? "PASSED" : "FAILED") + " : " + frames + " frames, "
+                    + Math.round(throughput * 10) / 10.0 + " frames/s, p99 " + CVUtility.nanosToMillis(p99) + " ms"
+                    + (eventFailures > 0 ? ", " + eventFailures + " script events failed" : "");
+        }
+    }
+
+    /**
+     * Creates a harness.
+     * @param controllerClass controller to test
+     * @param frames image directory or video file
+     */
+    public ReplayHarness(Class<? extends CVFXController> controllerClass, File frames) {
+        this.controllerClass = controllerClass;
+        this.frames = frames;
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @param script input script applied during the run */
+    public void setScript(ParameterScript script) { this.script = script; }
+
+    /** @param dir directory with golden images, null skips output comparison */
+    public void setGoldenDir(File dir) { goldenDir = dir; }
+
+    /** @param tolerance allowed absolute difference of one pixel channel ( 0-255 scale ) */
+    public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+
+    /** @param fraction allowed fraction of pixel channels which differ more than tolerance ( 0 - 1 ) */
+    public void setDifferingFraction(double fraction) { differingFraction = fraction; }
+
+    /** @param file baseline properties file, null skips performance gating */
+    public void setBaselineFile(File file) { baselineFile = file; }
+
+    /** @param margin allowed relative slowdown against baseline, 0.1 means 10 % */
+    public void setMargin(double margin) { this.margin = margin; }
+
+    /** @param frames frames at the start of the first pass which aren't timed ( JIT, caches ) */
+    public void setWarmupFrames(int frames) { warmupFrames = Math.max(0, frames); }
+
+    /** @param passes how many times the sequence is replayed for timing */
+    public void setPasses(int passes) { this.passes = Math.max(1, passes); }
+
+    /** @param record write goldens and baseline instead of checking them */
+    public void setRecord(boolean record) { this.record = record; }
+
+    // METHODS -- REPLAY --
+
+    /**
+     * Runs the replay.
+     * @return result with failures
+     * @throws IOException if frames, goldens or baseline cannot be read/written
+     * @throws ReflectiveOperationException if the controller cannot be instantiated
+     */
+    public Result run() throws IOException, ReflectiveOperationException {
+        Result result = new Result();
+        TimeHistogram times = new TimeHistogram();
+        long processNanos = 0;
+        int measured = 0;
+
+        if (record && goldenDir != null && !goldenDir.isDirectory() && !goldenDir.mkdirs()) {
+            throw new IOException("Cannot create golden directory " + goldenDir);
+        }
+
+        Mat input = new Mat(), mainframe = new Mat();
+        try (FrameSequence sequence = new FrameSequence(frames)) {
+            for (int pass = 0; pass < passes; pass++) {
+                if (pass > 0) sequence.rewind();
+                script.reset();
+
+                // fresh controller every pass, so state doesn't leak between passes
+                CVFXController controller = controllerClass.getDeclaredConstructor().newInstance();
+                controller.initHeadlessController();
+
+                int index = 0;
+                while (sequence.read(input)) {
+                    result.eventFailures += script.apply(controller, index);
+
+                    input.copyTo(mainframe);
+                    Mat alphaframe = new Mat(), betaframe = new Mat();
+
+                    long start = System.nanoTime();
+                    controller.runProcessing(mainframe, alphaframe, betaframe, true, true, true);
+                    long time = System.nanoTime() - start;
+                    controller.burnOverlays(mainframe, alphaframe, betaframe);
+
+                    if (pass > 0 || index >= warmupFrames) {
+                        times.record(time);
+                        processNanos += time;
+                        measured++;
+                    }
+
+                    if (pass == 0 && goldenDir != null) {
+                        checkOutput(result, "main", index, mainframe);
+                        checkOutput(result, "alpha", index, alphaframe);
+                        checkOutput(result, "beta", index, betaframe);
+                    }
+
+                    alphaframe.release();
+                    betaframe.release();
+                    index++;
+                }
+                if (pass == 0) result.frames = index;
+            }
+        }
+        input.release();
+        mainframe.release();
+
+        if (result.frames == 0) result.failures.add("No frames in " + frames);
+        result.throughput = processNanos == 0 ? 0 : measured / (processNanos / 1e9);
+        result.p99 = times.getPercentile(99);
+
+        if (baselineFile != null) {
+            if (record) writeBaseline(result);
+            else checkBaseline(result);
+        }
+        return result;
+    }
+
+    /**
+     * Compares one output with its golden image, or writes it in record mode.
+     */
+    private void checkOutput(Result result, String view, int index, Mat output) {
+        File golden = new File(goldenDir, String.format("%s_%05d.png", view, index));
+
+        if (record) {
+            if (!output.empty() && !Imgcodecs.imwrite(golden.getPath(), output)) {
+                result.failures.add("Cannot write golden " + golden);
+            }
+            return;
+        }
+
+        if (!golden.isFile()) {
+            if (!output.empty()) result.failures.add(view + " frame " + index + " : output without golden image");
+            return;
+        }
+        if (output.empty()) {
+            result.failures.add(view + " frame " + index + " : no output, golden image exists");
+            return;
+        }
+
+        Mat expected = Imgcodecs.imread(golden.getPath(), Imgcodecs.IMREAD_UNCHANGED);
+        if (expected.size().equals(output.size()) && expected.type() == output.type()) {
+            Mat diff = new Mat();
+            Core.absdiff(output, expected, diff);
+            Imgproc.threshold(diff, diff, tolerance, 255, Imgproc.THRESH_BINARY);
+            long samples = output.total() * output.channels();
+            long differing = Core.countNonZero(diff.reshape(1));
+            if (differing > samples * differingFraction) {
+                result.failures.add(view + " frame " + index + " : " + differing + " of " + samples
+                        + " pixel channels differ more than " + tolerance);
+            }
+            diff.release();
+        } else {
+            result.failures.add(view + " frame " + index + " : size/type differs from golden image");
+        }
+        expected.release();
+    }
+
+    /**
+     * Stores throughput and p99 of this run as baseline.
+     */
+    private void writeBaseline(Result result) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("frames", String.valueOf(result.frames));
+        p.setProperty("throughput", String.valueOf(result.throughput));
+        p.setProperty("p99", String.valueOf(result.p99));
+        try (Writer w = new FileWriter(baselineFile)) {
+            p.store(w, "ReplayHarness baseline of " + controllerClass.getName());
+        }
+    }
+
+    /**
+     * Compares throughput and p99 of this run with the baseline.
+     */
+    private void checkBaseline(Result result) throws IOException {
+        if (!baselineFile.isFile()) {
+            result.failures.add("No baseline " + baselineFile + " ( run with -record first )");
+            return;
+        }
+        Properties p = new Properties();
+        try (Reader r = new FileReader(baselineFile)) {
+            p.load(r);
+        }
+        double baseThroughput = Double.parseDouble(p.getProperty("throughput", "0"));
+        long baseP99 = Long.parseLong(p.getProperty("p99", "0"));
+
+        if (baseThroughput > 0 && result.throughput < baseThroughput * (1 - margin)) {
+            result.failures.add("Throughput " + Math.round(result.throughput * 10) / 10.0
+                    + " frames/s is worse than baseline " + Math.round(baseThroughput * 10) / 10.0);
+        }
+        if (baseP99 > 0 && result.p99 > baseP99 * (1 + margin)) {
+            result.failures.add("p99 " + CVUtility.nanosToMillis(result.p99)
+                    + " ms is worse than baseline " + CVUtility.nanosToMillis(baseP99) + " ms");
+        }
+    }
+
+    // METHODS -- COMMAND LINE --
+
+    /**
+     * Command line entry, see class description for arguments.
+     * @param args arguments
+     * @throws Exception on bad arguments or unreadable files
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage : ReplayHarness controllerClass frames [-script file] [-golden dir] [-tolerance t] [-fraction f] "
+                    + "[-baseline file] [-margin m] [-warmup n] [-passes n] [-record]");
+            System.exit(2);
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        ReplayHarness harness = new ReplayHarness(Class.forName(args[0]).asSubclass(CVFXController.class), new File(args[1]));
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "-script": harness.setScript(ParameterScript.load(new File(args[++i]))); break;
+                case "-golden": harness.setGoldenDir(new File(args[++i])); break;
+                case "-tolerance": harness.setTolerance(Double.parseDouble(args[++i])); break;
+                case "-fraction": harness.setDifferingFraction(Double.parseDouble(args[++i])); break;
+                case "-baseline": harness.setBaselineFile(new File(args[++i])); break;
+                case "-margin": harness.setMargin(Double.parseDouble(args[++i])); break;
+                case "-warmup": harness.setWarmupFrames(Integer.parseInt(args[++i])); break;
+                case "-passes": harness.setPasses(Integer.parseInt(args[++i])); break;
+                case "-record": harness.setRecord(true); break;
+                default:
+                    System.out.println("ERROR : unknown argument " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Result result = harness.run();
+        AsyncLog.flush(); // errors of the run before the summary
+        for (String failure : result.getFailures()) System.out.println("[ReplayHarness] " + failure);
+        System.out.println("[ReplayHarness] " + result);
+        System.exit(result.passed() ? 0 : 1);
+    }
+}
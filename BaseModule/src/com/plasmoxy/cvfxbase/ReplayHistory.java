@@ -0,0 +1,358 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+/**
+ * Instant replay history - the last seconds of a view, compressed, for scrolling back after an event.
+ * Frames are encoded ( JPEG, or fast PNG when lossless ) on a background thread and stored in one fixed
+ * off-heap arena, used as a ring. When the arena is full or frames are older than the history length,
+ * the oldest frames are evicted, so memory use never grows.
+ * 60 s of 1080p at 30 fps is about 1800 frames, at ~200 kB per JPEG frame that fits in a 384 MB arena
+ * instead of 11 GB of raw Mats.
+ *
+ * <p>
+ * Any stored frame can be decoded by position ( 0 is the oldest, positions shift as frames are evicted )
+ * or found by time, and a time window can be exported as image files ( stored bytes are written as they are,
+ * without recompression ) or as a video.
+ * Start it with startReplayHistory on the controller, it subscribes to the frame stream of a view.
+ * Frames which come faster than they can be encoded are dropped and counted.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class ReplayHistory implements Flow.Subscriber<FramePublisher.Frame>, AutoCloseable {
+
+    /**
+     * Position of one compressed frame in the arena.
+     */
+    private static class Entry {
+        long frameNumber, timestamp;
+        int offset, length;
+    }
+
+    // FIELDS -- CONFIG --
+
+    private final ByteBuffer arena;
+    private final long maxAgeNanos;
+    private volatile boolean lossless = false;
+    private volatile int jpegQuality = 85;
+
+    // FIELDS -- STATE --
+
+    private Entry[] entries = new Entry[256]; // ring of entries, oldest at first
+    private int first = 0, count = 0;
+    private int head = 0; // next write offset in the arena
+    private long evicted = 0, storedBytes = 0;
+    private volatile long encodeFailures = 0;
+    private volatile Flow.Subscription subscription;
+
+    private final MatOfByte encoded = new MatOfByte(); // subscriber thread only
+
+    /**
+     * Creates a history.
+     * @param arenaBytes size of the off-heap arena for compressed frames
+     * @param seconds length of the history, older frames are evicted even if there is space
+     */
+    public ReplayHistory(int arenaBytes, double seconds) {
+        arena = ByteBuffer.allocateDirect(arenaBytes);
+        maxAgeNanos = (long)(seconds * 1e9);
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /**
+     * Sets the codec, lossless uses PNG with fastest compression ( bigger, slower to encode than JPEG ).
+     * @param lossless true for PNG, false for JPEG
+     */
+    public void setLossless(boolean lossless) { this.lossless = lossless; }
+
+    /** @param quality JPEG quality 0 - 100, default 85 */
+    public void setJpegQuality(int quality) { jpegQuality = Math.max(0, Math.min(100, quality)); }
+
+    /** @return number of stored frames */
+    public synchronized int size() { return count; }
+
+    /** @return number of evicted frames */
+    public synchronized long getEvicted() { return evicted; }
+
+    /** @return bytes of stored compressed frames */
+    public synchronized long getStoredBytes() { return storedBytes; }
+
+    /** @return arena size */
+    public int getCapacity() { return arena.capacity(); }
+
+    /** @return frames which couldn't be encoded or were bigger than the arena */
+    public long getEncodeFailures() { return encodeFailures; }
+
+    /** @return stored seconds between the oldest and the newest frame */
+    public synchronized double getDuration() {
+        return count < 2 ? 0 : (entry(count - 1).timestamp - entry(0).timestamp) / 1e9;
+    }
+
+    /**
+     * Gets the frame number of a stored frame.
+     * @param index position, 0 is the oldest
+     * @return frame number
+     */
+    public synchronized long getFrameNumber(int index) { return entry(index).frameNumber; }
+
+    /**
+     * Gets the timestamp of a stored frame.
+     * @param index position, 0 is the oldest
+     * @return System.nanoTime when the frame was published
+     */
+    public synchronized long getTimestamp(int index) { return entry(index).timestamp; }
+
+    /**
+     * Finds the stored frame nearest to a time.
+     * @param timestamp System.nanoTime
+     * @return position of the frame, -1 if history is empty
+     */
+    public synchronized int indexAt(long timestamp) {
+        if (count == 0) return -1;
+        int low = Math.min(lowerBound(timestamp), count - 1);
+        if (low > 0 && timestamp - entry(low - 1).timestamp < entry(low).timestamp - timestamp) low--;
+        return low;
+    }
+
+    /**
+     * Finds the frame some seconds before the newest one.
+     * @param seconds how far back
+     * @return position of the frame, -1 if history is empty
+     */
+    public synchronized int indexSecondsAgo(double seconds) {
+        if (count == 0) return -1;
+        return indexAt(entry(count - 1).timestamp - (long)(seconds * 1e9));
+    }
+
+    /**
+     * Position of the first frame not older than timestamp ( count if there is none ).
+     */
+    private int lowerBound(long timestamp) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entry(mid).timestamp < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private Entry entry(int index) {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException("History index " + index + ", size " + count);
+        return entries[(first + index) % entries.length];
+    }
+
+    // METHODS -- HISTORY --
+
+    /**
+     * Compresses and stores a frame. Called by the frame stream, can be called directly too.
+     * @param frameNumber frame number
+     * @param timestamp System.nanoTime of the frame
+     * @param frame frame to store
+     */
+    public void add(long frameNumber, long timestamp, Mat frame) {
+        boolean ok = lossless
+                ? Imgcodecs.imencode(".png", frame, encoded, new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, 1))
+                : Imgcodecs.imencode(".jpg", frame, encoded, new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, jpegQuality));
+        int length = (int)encoded.total();
+        if (!ok || length > arena.capacity()) {
+            encodeFailures++;
+            return;
+        }
+        byte[] bytes = encoded.toArray();
+
+        synchronized (this) {
+            // evict by age
+            while (count > 0 && timestamp - entry(0).timestamp > maxAgeNanos) evictOldest();
+
+            // ring allocation, wrap when the frame doesn't fit before the end
+            if (count == 0) head = 0;
+            if (head + length > arena.capacity()) head = 0;
+            while (count > 0 && overlaps(entry(0), head, length)) evictOldest();
+
+            arena.put(head, bytes, 0, length);
+
+            if (count == entries.length) grow();
+            Entry e = entries[(first + count) % entries.length];
+            if (e == null) e = entries[(first + count) % entries.length] = new Entry();
+            e.frameNumber = frameNumber;
+            e.timestamp = timestamp;
+            e.offset = head;
+            e.length = length;
+            count++;
+            head += length;
+            storedBytes += length;
+        }
+    }
+
+    private static boolean overlaps(Entry e, int offset, int length) {
+        return e.offset < offset + length && e.offset + e.length > offset;
+    }
+
+    private void evictOldest() {
+        storedBytes -= entries[first].length;
+        first = (first + 1) % entries.length;
+        count--;
+        evicted++;
+    }
+
+    private void grow() {
+        Entry[] bigger = new Entry[entries.length * 2];
+        for (int i = 0; i < count; i++) bigger[i] = entries[(first + i) % entries.length];
+        entries = bigger;
+        first = 0;
+    }
+
+    /**
+     * Copies compressed bytes of a stored frame.
+     * @param index position, 0 is the oldest
+     * @return encoded frame ( JPEG or PNG file content )
+     */
+    public synchronized byte[] getEncoded(int index) {
+        Entry e = entry(index);
+        byte[] bytes = new byte[e.length];
+        arena.get(e.offset, bytes, 0, e.length);
+        return bytes;
+    }
+
+    /**
+     * Decodes a stored frame.
+     * @param index position, 0 is the oldest
+     * @param target Mat which gets the frame
+     */
+    public void read(int index, Mat target) {
+        MatOfByte bytes = new MatOfByte(getEncoded(index)); // decode outside of the lock
+        Imgcodecs.imdecode(bytes, Imgcodecs.IMREAD_UNCHANGED).copyTo(target);
+        bytes.release();
+    }
+
+    /**
+     * Removes all frames.
+     */
+    public synchronized void clear() {
+        first = count = head = 0;
+        storedBytes = 0;
+    }
+
+    // METHODS -- EXPORT --
+
+    /**
+     * Exports frames of a time window as image files named frame_000042.jpg ( or .png ), without recompression.
+     * Window is given by timestamps, which stay valid while old frames are evicted ( positions don't ).
+     * @param fromTimestamp start of the window, System.nanoTime ( see getTimestamp )
+     * @param toTimestamp end of the window, inclusive
+     * @param dir output directory
+     * @return number of exported frames
+     * @throws IOException if a file cannot be written
+     */
+    public int exportImages(long fromTimestamp, long toTimestamp, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create directory " + dir);
+        int exported = 0;
+        long next = fromTimestamp;
+        while (true) {
+            long frameNumber;
+            byte[] bytes;
+            synchronized (this) {
+                int i = lowerBound(next);
+                if (i >= count || entry(i).timestamp > toTimestamp) break;
+                frameNumber = entry(i).frameNumber;
+                next = entry(i).timestamp + 1;
+                bytes = getEncoded(i);
+            }
+            boolean png = bytes.length > 1 && bytes[0] == (byte)0x89 && bytes[1] == 'P';
+            try (FileOutputStream out = new FileOutputStream(new File(dir, String.format("frame_%06d.%s", frameNumber, png ? "png" : "jpg")))) {
+                out.write(bytes);
+            }
+            exported++;
+        }
+        return exported;
+    }
+
+    /**
+     * Exports frames of a time window as MJPG video, frame rate is taken from the frame timestamps.
+     * @param fromTimestamp start of the window, System.nanoTime ( see getTimestamp )
+     * @param toTimestamp end of the window, inclusive
+     * @param file output video file ( .avi )
+     * @return number of exported frames
+     * @throws IOException if the video cannot be written
+     */
+    public int exportVideo(long fromTimestamp, long toTimestamp, File file) throws IOException {
+        double fps = 30;
+        synchronized (this) {
+            int from = lowerBound(fromTimestamp), to = lowerBound(toTimestamp + 1) - 1;
+            if (to > from) fps = (to - from) / ((entry(to).timestamp - entry(from).timestamp) / 1e9);
+        }
+
+        Mat frame = new Mat();
+        VideoWriter writer = null;
+        int exported = 0;
+        long next = fromTimestamp;
+        try {
+            while (true) {
+                byte[] bytes;
+                synchronized (this) {
+                    int i = lowerBound(next);
+                    if (i >= count || entry(i).timestamp > toTimestamp) break;
+                    next = entry(i).timestamp + 1;
+                    bytes = getEncoded(i);
+                }
+                MatOfByte encodedFrame = new MatOfByte(bytes);
+                Imgcodecs.imdecode(encodedFrame, Imgcodecs.IMREAD_UNCHANGED).copyTo(frame);
+                encodedFrame.release();
+
+                if (writer == null) {
+                    writer = new VideoWriter(file.getPath(), VideoWriter.fourcc('M', 'J', 'P', 'G'), fps,
+                            new Size(frame.cols(), frame.rows()), frame.channels() > 1);
+                    if (!writer.isOpened()) throw new IOException("Cannot write video " + file);
+                }
+                writer.write(frame);
+                exported++;
+            }
+        } finally {
+            if (writer != null) writer.release();
+            frame.release();
+        }
+        return exported;
+    }
+
+    // METHODS -- SUBSCRIBER --
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(FramePublisher.Frame frame) {
+        add(frame.getSequence(), frame.getTimestamp(), frame.getMat());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        AsyncLog.log("ReplayHistory", "ERROR : frame stream failed : " + throwable);
+    }
+
+    @Override
+    public void onComplete() {}
+
+    /**
+     * Stops recording ( cancels the stream subscription ), stored frames stay readable.
+     */
+    @Override
+    public void close() {
+        Flow.Subscription s = subscription;
+        if (s != null) s.cancel();
+    }
+}
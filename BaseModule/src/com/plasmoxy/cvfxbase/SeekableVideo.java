@@ -0,0 +1,328 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Video file with random access to frames. Decoded frames are kept in a LRU cache and frames around the last
+ * read one are decoded ahead on a background thread - the rest of its GOP and the previous GOP, so playing forward,
+ * stepping back and scrubbing mostly hit the cache, that is where the speed up comes from.
+ * A miss seeks with CAP_PROP_POS_FRAMES to the nearest keyframe before the target ( VideoIndex ) and decodes
+ * forward, caching every frame on the way. The seek itself is OpenCV's - the FFmpeg backend of OpenCV 3.4 lands
+ * somewhere before the requested frame and decodes forward to it, so a miss can cost more than one GOP.
+ *
+ * <p>
+ * Reading frame after frame never seeks. Reads are meant for one thread ( a controller or a runner ),
+ * the cache and the prefetcher are safe with it.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class SeekableVideo implements AutoCloseable {
+
+    /** Default size of the frame cache, 256 MB is about 90 full HD frames */
+    public static final long DEFAULT_CACHE_BYTES = 256L << 20;
+
+    /** Default number of frames decoded ahead of the last read one */
+    public static final int DEFAULT_PREFETCH = 30;
+
+    private final File source;
+    private final VideoIndex index;
+    private final FrameCache cache;
+    private final int prefetchAhead;
+
+    // FIELDS -- FOREGROUND --
+
+    private final VideoCapture capture;
+    private int capturePosition = 0; // frame decoded by the next grab
+    private final Mat decoded = new Mat();
+    private long hits, misses, seeks;
+
+    // FIELDS -- PREFETCH --
+
+    private final ExecutorService prefetcher;
+    private final AtomicLong generation = new AtomicLong(); // newer requests cancel older prefetches
+    private VideoCapture prefetchCapture; // prefetch thread only
+    private int prefetchPosition = 0;
+    private final Mat prefetchDecoded = new Mat();
+    private volatile boolean closed = false;
+
+    /**
+     * Opens a video with default cache and prefetch.
+     * @param source video file
+     * @throws IOException if the video cannot be opened
+     */
+    public SeekableVideo(File source) throws IOException {
+        this(source, DEFAULT_CACHE_BYTES, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * Opens a video, its index is loaded from the cache file or built.
+     * @param source video file
+     * @param cacheBytes size of the frame cache
+     * @param prefetchAhead frames decoded ahead of the last read one, 0 disables prefetching
+     * @throws IOException if the video cannot be opened
+     */
+    public SeekableVideo(File source, long cacheBytes, int prefetchAhead) throws IOException {
+        if (cacheBytes < 0 || prefetchAhead < 0) throw new IllegalArgumentException("Cache and prefetch must not be negative");
+        this.source = source;
+        this.prefetchAhead = prefetchAhead;
+        capture = new VideoCapture(source.getPath());
+        if (!capture.isOpened()) throw new IOException("Cannot open video " + source);
+        index = VideoIndex.forVideo(source);
+        cache = new FrameCache(cacheBytes);
+
+        prefetcher = prefetchAhead == 0 ? null : Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "CVFX prefetch " + source.getName());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @return the video file */
+    public File getSource() { return source; }
+
+    /** @return keyframe index of the video */
+    public VideoIndex getIndex() { return index; }
+
+    /** @return number of frames */
+    public int getFrameCount() { return index.getFrameCount(); }
+
+    /**
+     * @param frame frame number
+     * @return presentation time in milliseconds
+     */
+    public double getTimestamp(int frame) { return index.getTimestamp(frame); }
+
+    /**
+     * @param millis time from the first frame
+     * @return frame shown at that time
+     */
+    public int frameAt(double millis) { return index.frameAt(millis); }
+
+    /** @return reads served from the cache */
+    public long getCacheHits() { return hits; }
+
+    /** @return reads which decoded the frame */
+    public long getCacheMisses() { return misses; }
+
+    /** @return seeks of the foreground capture */
+    public long getSeeks() { return seeks; }
+
+    @Override
+    public String toString() {
+        return "SeekableVideo " + source.getName() + " ( " + index + ", hits " + hits + ", misses " + misses + ", seeks " + seeks + " )";
+    }
+
+    // METHODS -- READING --
+
+    /**
+     * Reads a frame.
+     * @param frame frame number, from 0
+     * @param dst Mat which receives the frame
+     * @return false if there is no such frame or it cannot be decoded
+     */
+    public boolean read(int frame, Mat dst) {
+        if (closed) throw new IllegalStateException("Video is closed");
+        if (frame < 0 || frame >= index.getFrameCount()) return false;
+
+        boolean ok;
+        if (cache.get(frame, dst)) {
+            hits++;
+            ok = true;
+        } else {
+            misses++;
+            capturePosition = decode(capture, capturePosition, frame, decoded, -1);
+            ok = capturePosition == frame + 1 && !decoded.empty();
+            if (ok) decoded.copyTo(dst);
+        }
+        if (ok) schedulePrefetch(frame);
+        return ok;
+    }
+
+    /**
+     * Reads the frame shown at a time.
+     * @param millis time from the first frame
+     * @param dst Mat which receives the frame
+     * @return false if the frame cannot be decoded
+     */
+    public boolean readAt(double millis, Mat dst) {
+        return read(frameAt(millis), dst);
+    }
+
+    /**
+     * Decodes frames from the keyframe before the target ( or from the current position when it is on the way )
+     * up to the target, all of them are cached. Seeking to the keyframe is up to OpenCV, see class description.
+     * @param cap capture to use
+     * @param position frame decoded by the next grab of the capture
+     * @param target frame to decode
+     * @param tmp Mat for decoded frames, holds the target at the end
+     * @param gen prefetch generation which must stay current, -1 for foreground reads
+     * @return new position of the capture, target + 1 when the target was decoded
+     */
+    private int decode(VideoCapture cap, int position, int target, Mat tmp, long gen) {
+        int key = index.keyframeBefore(target);
+        if (position < key || position > target) {
+            cap.set(Videoio.CAP_PROP_POS_FRAMES, key);
+            position = key;
+            if (gen < 0) seeks++;
+        }
+        while (position <= target) {
+            if (gen >= 0 && (closed || generation.get() != gen)) break; // stale prefetch
+            if (!cap.grab()) {
+                position = Integer.MAX_VALUE; // broken or ended, seek next time
+                break;
+            }
+            if (position == target || !cache.contains(position)) {
+                if (!cap.retrieve(tmp) || tmp.empty()) {
+                    position = Integer.MAX_VALUE;
+                    break;
+                }
+                cache.put(position, tmp);
+            }
+            position++;
+        }
+        return position;
+    }
+
+    // METHODS -- PREFETCH --
+
+    /**
+     * Cancels older prefetches and starts decoding around a frame.
+     */
+    private void schedulePrefetch(int frame) {
+        if (prefetcher == null) return;
+        long gen = generation.incrementAndGet();
+        prefetcher.execute(() -> prefetch(gen, frame));
+    }
+
+    /**
+     * Decodes prefetchAhead frames after a frame, then the end of the previous GOP.
+     */
+    private void prefetch(long gen, int frame) {
+        if (closed || generation.get() != gen) return;
+        if (prefetchCapture == null) {
+            prefetchCapture = new VideoCapture(source.getPath());
+            if (!prefetchCapture.isOpened()) {
+                AsyncLog.log("SeekableVideo", "ERROR : cannot open " + source + " for prefetching");
+                return;
+            }
+        }
+
+        prefetchRange(gen, frame + 1, Math.min(index.getFrameCount(), frame + 1 + prefetchAhead));
+
+        if (index.hasKeyframes()) {
+            int key = index.keyframeBefore(frame);
+            if (key > 0) {
+                int previous = index.keyframeBefore(key - 1);
+                prefetchRange(gen, Math.max(previous, key - prefetchAhead), key);
+            }
+        }
+    }
+
+    /**
+     * Decodes frames from - to ( exclusive ) which aren't cached yet.
+     */
+    private void prefetchRange(long gen, int from, int to) {
+        int last = to - 1;
+        while (last >= from && cache.contains(last)) last--;
+        if (last < from) return;
+        try {
+            prefetchPosition = decode(prefetchCapture, prefetchPosition, last, prefetchDecoded, gen);
+        } catch (Exception e) {
+            AsyncLog.log("SeekableVideo", "ERROR : prefetch failed ( " + e + " )");
+            prefetchPosition = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Stops prefetching and releases captures and cached frames.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            try {
+                prefetcher.awaitTermination(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (prefetchCapture != null) prefetchCapture.release();
+            prefetchDecoded.release();
+        }
+        capture.release();
+        decoded.release();
+        cache.clear();
+    }
+
+    // CACHE
+
+    /**
+     * LRU cache of decoded frames limited by bytes, Mats of evicted frames are reused for new ones.
+     */
+    private static final class FrameCache {
+        private static final int MAX_FREE = 4;
+
+        private final long capacity;
+        private final LinkedHashMap<Integer, Mat> frames = new LinkedHashMap<>(64, 0.75f, true);
+        private final ArrayDeque<Mat> free = new ArrayDeque<>();
+        private long bytes = 0;
+
+        FrameCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized boolean contains(int frame) {
+            return frames.containsKey(frame);
+        }
+
+        synchronized boolean get(int frame, Mat dst) {
+            Mat m = frames.get(frame);
+            if (m == null) return false;
+            m.copyTo(dst);
+            return true;
+        }
+
+        synchronized void put(int frame, Mat src) {
+            long size = src.total() * src.elemSize();
+            if (size > capacity || frames.containsKey(frame)) return;
+            while (bytes + size > capacity) evictEldest();
+            Mat m = free.isEmpty() ? new Mat() : free.poll();
+            src.copyTo(m);
+            frames.put(frame, m);
+            bytes += size;
+        }
+
+        private void evictEldest() {
+            Iterator<Map.Entry<Integer, Mat>> it = frames.entrySet().iterator();
+            Mat m = it.next().getValue();
+            it.remove();
+            bytes -= m.total() * m.elemSize();
+            if (free.size() < MAX_FREE) free.push(m);
+            else m.release();
+        }
+
+        synchronized void clear() {
+            for (Mat m : frames.values()) m.release();
+            for (Mat m : free) m.release();
+            frames.clear();
+            free.clear();
+            bytes = 0;
+        }
+    }
+}
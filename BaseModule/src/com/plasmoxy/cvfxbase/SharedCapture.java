@@ -0,0 +1,363 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One capture device shared by more consumers in the same JVM - several controllers ( windows ) showing the same
+ * camera, recorders, exporters ... The device is read by one thread, every frame is decoded once and handed to all
+ * consumers as a reference counted Frame, the Mat is reused when every consumer released it.
+ *
+ * <p>
+ * Every consumer takes frames on its own thread at its own pace, it always gets the newest frame -
+ * a slower consumer skips frames ( counted as dropped ), it never slows the device or the other consumers.
+ * Frames are shared, so their Mats are read-only : copy the pixels before changing them
+ * ( controllers do that, process gets its own copy ).
+ *
+ * <p>
+ * Cameras are shared through open(id, settings), the device is opened by the first consumer and released
+ * when the last one closes. Controllers use it after setSharedCapture(true) in init. Other sources
+ * ( video files, stream URLs ) can be shared by creating a SharedCapture and subscribing to it :
+ * <pre>
+ * SharedCapture capture = new SharedCapture("rtsp://camera/stream", new CaptureSettings());
+ * SharedCapture.Consumer consumer = capture.subscribe();
+ * SharedCapture.Frame frame = consumer.take(100, TimeUnit.MILLISECONDS);
+ * if (frame != null) {
+ *     ... read frame.getMat() ...
+ *     frame.release();
+ * }
+ * </pre>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class SharedCapture implements AutoCloseable {
+
+    /**
+     * Shared cameras by id.
+     */
+    private static final Map<Integer, SharedCapture> CAMERAS = new HashMap<>();
+
+    // FIELDS -- DEVICE --
+
+    private final String name;
+    private final Integer cameraId; // null for other sources
+    private final VideoCapture capture;
+    private final CaptureSettings settings, negotiated;
+    private final Thread reader;
+    private volatile boolean running = true;
+
+    // FIELDS -- FRAMES --
+
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    private final ArrayDeque<Mat> freeMats = new ArrayDeque<>(); // Mats of released frames, guarded by itself
+    private long sequence = 0;
+    private volatile long droppedReads = 0;
+
+    /**
+     * Frame shared by consumers. Its Mat is read-only and valid until this reference is released.
+     */
+    public final class Frame {
+        private final Mat mat;
+        private final long sequence, timestamp;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Frame(Mat mat, long sequence, long timestamp) {
+            this.mat = mat;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+
+        /** @return frame pixels, don't change them */
+        public Mat getMat() { return mat; }
+
+        /** @return number of the frame in the capture, from 1 */
+        public long getSequence() { return sequence; }
+
+        /** @return System.nanoTime when the frame was read */
+        public long getTimestamp() { return timestamp; }
+
+        /**
+         * Takes another reference, for handing the frame to one more user.
+         * @return this frame
+         */
+        public Frame retain() {
+            if (refs.getAndIncrement() <= 0) throw new IllegalStateException("Frame " + sequence + " was already released");
+            return this;
+        }
+
+        /**
+         * Releases one reference, the Mat is reused when the last one is released.
+         */
+        public void release() {
+            int left = refs.decrementAndGet();
+            if (left == 0) recycle(mat);
+            else if (left < 0) throw new IllegalStateException("Frame " + sequence + " released more times than retained");
+        }
+    }
+
+    /**
+     * One consumer of the capture, holds only the newest frame which it didn't take yet.
+     */
+    public final class Consumer implements AutoCloseable {
+        private Frame pending; // guarded by this
+        private boolean closed = false;
+        private long taken, dropped;
+
+        private Consumer() {}
+
+        /**
+         * Puts a new frame in place of the pending one, called by the reader.
+         */
+        private void offer(Frame frame) {
+            Frame old;
+            synchronized (this) {
+                if (closed) return;
+                old = pending;
+                pending = frame.retain();
+                if (old != null) dropped++;
+                notifyAll();
+            }
+            if (old != null) old.release();
+        }
+
+        /**
+         * Waits for a frame newer than the last taken one.
+         * @param timeout maximal wait
+         * @param unit unit of timeout
+         * @return the frame ( release it when done ) or null on timeout, when closed or when the capture ended
+         * @throws InterruptedException when interrupted while waiting
+         */
+        public synchronized Frame take(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (pending == null && !closed && running) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return null;
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return poll();
+        }
+
+        /**
+         * @return newer frame if there is one ( release it when done ), else null
+         */
+        public synchronized Frame poll() {
+            Frame f = pending;
+            pending = null;
+            if (f != null) taken++;
+            return f;
+        }
+
+        /** @return frames taken by this consumer */
+        public synchronized long getTaken() { return taken; }
+
+        /** @return frames replaced by newer ones before this consumer took them */
+        public synchronized long getDropped() { return dropped; }
+
+        /** @return the shared capture */
+        public SharedCapture getCapture() { return SharedCapture.this; }
+
+        /**
+         * Stops receiving frames. A shared camera is released when its last consumer closes.
+         */
+        @Override
+        public void close() {
+            Frame f;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                f = pending;
+                pending = null;
+                notifyAll();
+            }
+            if (f != null) f.release();
+            consumers.remove(this);
+            if (cameraId != null) releaseCamera(SharedCapture.this);
+        }
+    }
+
+    // METHODS -- CONSTRUCTORS --
+
+    /**
+     * Opens a video file or stream and starts reading it, the calling thread waits for the open.
+     * @param source file name or stream URL
+     * @param settings capture settings
+     * @throws IllegalArgumentException if the source cannot be opened
+     */
+    public SharedCapture(String source, CaptureSettings settings) {
+        this(source, null, settings);
+    }
+
+    private SharedCapture(String source, Integer cameraId, CaptureSettings settings) {
+        this.name = cameraId != null ? "camera " + cameraId : source;
+        this.cameraId = cameraId;
+        this.settings = settings;
+        capture = new VideoCapture();
+        if (cameraId != null) capture.open(cameraId);
+        else capture.open(source);
+        if (!capture.isOpened()) throw new IllegalArgumentException("Cannot open " + name);
+        settings.apply(capture);
+        negotiated = settings.negotiate(capture);
+
+        reader = new Thread(this::readFrames, "CVFX shared " + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Subscribes to a shared camera, the device is opened when it isn't shared yet ( with these settings,
+     * settings of later consumers are ignored ). Call it on a thread which can wait for the device.
+     * @param id camera id
+     * @param settings capture settings
+     * @return consumer, close it to unsubscribe, or null if the camera cannot be opened
+     */
+    public static Consumer open(int id, CaptureSettings settings) {
+        synchronized (CAMERAS) {
+            SharedCapture shared = CAMERAS.get(id);
+            if (shared == null || !shared.isRunning()) { // not shared yet, or the device failed
+                try {
+                    shared = new SharedCapture(null, id, settings);
+                } catch (IllegalArgumentException e) {
+                    AsyncLog.log("SharedCapture", "ERROR : " + e.getMessage());
+                    return null;
+                }
+                CAMERAS.put(id, shared);
+                AsyncLog.log("SharedCapture", "Camera " + id + " opened : " + shared.negotiated);
+            }
+            return shared.subscribe();
+        }
+    }
+
+    /**
+     * Closes a shared camera without consumers.
+     */
+    private static void releaseCamera(SharedCapture shared) {
+        synchronized (CAMERAS) {
+            if (!shared.consumers.isEmpty() || CAMERAS.get(shared.cameraId) != shared) return;
+            CAMERAS.remove(shared.cameraId);
+        }
+        shared.close();
+        AsyncLog.log("SharedCapture", "Camera " + shared.cameraId + " released, no consumers left");
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /**
+     * Adds a consumer, it receives frames read from now on.
+     * @return the consumer
+     */
+    public Consumer subscribe() {
+        Consumer c = new Consumer();
+        consumers.add(c);
+        if (!running) c.close(); // take returns null right away
+        return c;
+    }
+
+    /** @return number of consumers */
+    public int getConsumerCount() { return consumers.size(); }
+
+    /** @return values negotiated with the device when it was opened */
+    public CaptureSettings getNegotiated() { return negotiated; }
+
+    /** @return number of frames read */
+    public synchronized long getSequence() { return sequence; }
+
+    /** @return frames drained by low latency reading of the device */
+    public long getDroppedReads() { return droppedReads; }
+
+    /** @return false after the source ended or was closed */
+    public boolean isRunning() { return running; }
+
+    @Override
+    public String toString() { return "SharedCapture " + name + " ( " + consumers.size() + " consumers )"; }
+
+    // METHODS -- READING --
+
+    /**
+     * Reader thread, decodes every frame once and offers it to all consumers.
+     */
+    private void readFrames() {
+        int failures = 0;
+        while (running) {
+            Mat mat;
+            synchronized (freeMats) {
+                mat = freeMats.isEmpty() ? new Mat() : freeMats.poll();
+            }
+            try {
+                droppedReads += settings.read(capture, mat);
+            } catch (Exception e) {
+                AsyncLog.log("SharedCapture", "ERROR : reading " + name + " failed ( " + e + " )");
+            }
+
+            if (mat.empty()) {
+                recycle(mat);
+                // a file ends, a camera can miss a frame now and then
+                if (cameraId == null || ++failures > 100) break;
+                sleep(10);
+                continue;
+            }
+            failures = 0;
+
+            Frame frame;
+            synchronized (this) {
+                frame = new Frame(mat, ++sequence, System.nanoTime());
+            }
+            for (Consumer c : consumers) c.offer(frame);
+            frame.release(); // reader's reference, consumers hold their own
+        }
+        running = false;
+        for (Consumer c : consumers) {
+            synchronized (c) {
+                c.notifyAll(); // waiting takes return null
+            }
+        }
+        capture.release();
+        synchronized (freeMats) {
+            for (Mat m : freeMats) m.release();
+            freeMats.clear();
+        }
+    }
+
+    /**
+     * Returns the Mat of a released frame for reuse, a reused Mat keeps its pixel buffer for the next frame.
+     */
+    private void recycle(Mat mat) {
+        synchronized (freeMats) {
+            if (running && freeMats.size() < consumers.size() + 2) {
+                freeMats.push(mat);
+                return;
+            }
+        }
+        mat.release();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops reading and releases the device ( after the read in progress ). Consumers get null from take.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (Thread.currentThread() != reader) {
+            try {
+                reader.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
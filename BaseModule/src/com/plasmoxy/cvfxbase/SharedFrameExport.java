@@ -0,0 +1,267 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Flow;
+
+/**
+ * Shared memory export of frames for other processes on the same host ( also non-JVM ones ).
+ * Frames are written into a memory mapped ring buffer file, readers map the same file and read
+ * the newest frame straight from the page cache - no encoding, no sockets, no locks.
+ * Every slot is guarded by a seqlock, the writer never waits for readers, readers retry when
+ * they catch a slot being overwritten.
+ *
+ * <p>
+ * File layout, all numbers little endian :
+ * <pre>
+ * header ( 64 bytes )
+ *   0  int   magic 0x58465643 ( "CVFX" )
+ *   4  int   version 1
+ *   8  int   slot count
+ *   12 int   slot data capacity in bytes
+ *   16 long  number of written frames ( newest frame is in slot (written - 1) % slots, 0 = none yet )
+ * slot i at 64 + i * (64 + capacity)
+ *   0  long  seqlock, odd while the slot is written
+ *   8  long  frame number
+ *   16 long  timestamp, System.nanoTime of the writer
+ *   24 int   rows
+ *   28 int   cols
+ *   32 int   OpenCV type ( CV_8UC3 for BGR frames ... )
+ *   36 int   data length in bytes
+ *   64       pixel data, continuous rows
+ * </pre>
+ * Reading : load seqlock ( even, else retry ), copy the data, load seqlock again - the copy is valid if it didn't change.
+ * The Reader class does exactly that for Java readers.
+ *
+ * <p>
+ * Export is a frame stream subscriber, so it writes on its own thread and the render path only pays
+ * for the frame copy. Start it with exportSharedMemory on the controller. Only 8 bit frames are exported,
+ * frames larger than capacity are skipped and counted.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class SharedFrameExport implements Flow.Subscriber<FramePublisher.Frame>, AutoCloseable {
+
+    /** Magic number at the start of the file */
+    public static final int MAGIC = 0x58465643;
+    /** Layout version */
+    public static final int VERSION = 1;
+    /** Size of file header and slot headers */
+    public static final int HEADER_SIZE = 64;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final File file;
+    private final int slots, capacity;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private byte[] data = new byte[0];
+    private long written = 0;
+    private volatile long skipped = 0;
+    private volatile Flow.Subscription subscription;
+
+    /**
+     * Creates the export file ( replaces an existing one ) and maps it.
+     * @param file ring buffer file, for example in /dev/shm on linux
+     * @param slots number of frames in the ring ( at least 2, so readers of the newest frame rarely collide with the writer )
+     * @param capacity maximum frame size in bytes ( 640x480 BGR is 921600 )
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public SharedFrameExport(File file, int slots, int capacity) throws IOException {
+        this.file = file;
+        this.slots = Math.max(2, slots);
+        this.capacity = (Math.max(1, capacity) + 7) & ~7; // keep slot headers 8 byte aligned
+
+        long size = HEADER_SIZE + (long)this.slots * slotSize();
+        if (size > Integer.MAX_VALUE) throw new IOException("Shared frame file too large : " + size + " bytes");
+
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.setLength(size);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, this.slots);
+        buffer.putInt(12, this.capacity);
+        LONGS.setVolatile(buffer, 16, 0L);
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @return ring buffer file */
+    public File getFile() { return file; }
+
+    /** @return number of written frames */
+    public long getWritten() { return written; }
+
+    /** @return frames skipped because they didn't fit or weren't 8 bit */
+    public long getSkipped() { return skipped; }
+
+    private int slotSize() { return HEADER_SIZE + capacity; }
+
+    // METHODS -- WRITER --
+
+    /**
+     * Writes a frame into the next slot, never blocks on readers.
+     * @param frameNumber frame number for readers
+     * @param frame frame to write
+     * @return true if written
+     */
+    public synchronized boolean write(long frameNumber, Mat frame) {
+        if (buffer == null) return false;
+        int length = (int)(frame.total() * frame.elemSize());
+        if (CvType.depth(frame.type()) != CvType.CV_8U || length > capacity) {
+            if (skipped++ == 0) AsyncLog.log("SharedFrameExport", "ERROR : frame " + frame + " doesn't fit into " + file + ", skipping");
+            return false;
+        }
+
+        if (data.length != length) data = new byte[length];
+        frame.get(0, 0, data); // continuous copy even for submats
+
+        int slot = HEADER_SIZE + (int)(written % slots) * slotSize();
+        long lock = (long)LONGS.getOpaque(buffer, slot);
+
+        LONGS.setOpaque(buffer, slot, lock + 1); // odd, readers back off
+        VarHandle.storeStoreFence();
+        buffer.putLong(slot + 8, frameNumber);
+        buffer.putLong(slot + 16, System.nanoTime());
+        buffer.putInt(slot + 24, frame.rows());
+        buffer.putInt(slot + 28, frame.cols());
+        buffer.putInt(slot + 32, frame.type());
+        buffer.putInt(slot + 36, length);
+        buffer.put(slot + HEADER_SIZE, data, 0, length);
+        LONGS.setRelease(buffer, slot, lock + 2); // even, slot is stable
+
+        written++;
+        LONGS.setRelease(buffer, 16, written);
+        return true;
+    }
+
+    /**
+     * Stops the export ( cancels the stream subscription ) and closes the file. Readers keep their mappings.
+     */
+    @Override
+    public synchronized void close() {
+        Flow.Subscription s = subscription;
+        if (s != null) s.cancel();
+        if (raf == null) return;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        raf = null;
+        buffer = null; // mapping goes away with the buffer
+    }
+
+    // METHODS -- SUBSCRIBER --
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(FramePublisher.Frame frame) {
+        write(frame.getSequence(), frame.getMat());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        AsyncLog.log("SharedFrameExport", "ERROR : frame stream failed : " + throwable);
+        close();
+    }
+
+    @Override
+    public void onComplete() {
+        close();
+    }
+
+    // READER
+
+    /**
+     * Reader of a shared frame file, for Java processes ( and as a reference for other languages ).
+     */
+    public static class Reader implements AutoCloseable {
+
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final int slots, capacity;
+        private byte[] data = new byte[0];
+        private long lastFrameNumber = -1;
+
+        /**
+         * Maps a shared frame file for reading.
+         * @param file ring buffer file
+         * @throws IOException if the file cannot be mapped or isn't a shared frame file
+         */
+        public Reader(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                raf.close();
+                throw new IOException("Not a shared frame file : " + file);
+            }
+            slots = buffer.getInt(8);
+            capacity = buffer.getInt(12);
+        }
+
+        /** @return frame number of the last read frame, -1 if none */
+        public long getLastFrameNumber() { return lastFrameNumber; }
+
+        /**
+         * Reads the newest frame.
+         * @param target Mat which gets the frame ( reallocated when size or type differ )
+         * @return true if a new frame was read, false if nothing new was written since the last read
+         */
+        public boolean readLatest(Mat target) {
+            for (int attempt = 0; attempt < 16; attempt++) {
+                long written = (long)LONGS.getAcquire(buffer, 16);
+                if (written == 0) return false;
+                int slot = HEADER_SIZE + (int)((written - 1) % slots) * (HEADER_SIZE + capacity);
+
+                long before = (long)LONGS.getAcquire(buffer, slot);
+                if ((before & 1) != 0) continue; // being written
+
+                long frameNumber = buffer.getLong(slot + 8);
+                int rows = buffer.getInt(slot + 24), cols = buffer.getInt(slot + 28), type = buffer.getInt(slot + 32);
+                int length = buffer.getInt(slot + 36);
+                if (length < 0 || length > capacity) continue;
+                if (frameNumber == lastFrameNumber) {
+                    VarHandle.loadLoadFence();
+                    if ((long)LONGS.getAcquire(buffer, slot) == before) return false;
+                    continue;
+                }
+                if (data.length != length) data = new byte[length];
+                buffer.get(slot + HEADER_SIZE, data, 0, length);
+
+                VarHandle.loadLoadFence();
+                if ((long)LONGS.getAcquire(buffer, slot) != before) continue; // overwritten meanwhile
+
+                target.create(rows, cols, type);
+                target.put(0, 0, data);
+                lastFrameNumber = frameNumber;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Soak test runner for memory growth and FPS drift, problems which show up only after hours.
+ * Runs a controller headless ( like ReplayHarness ) on synthetic high resolution frames for a given time
+ * and samples memory, GC and frame rate at intervals into a CSV report :
+ *
+ * <ul>
+ *     <li>rss - resident memory of the process ( Linux /proc, -1 elsewhere )</li>
+ *     <li>heap_live - heap used after the last GC, heap_used - heap used now</li>
+ *     <li>native_mat - estimate of native memory outside the JVM, mostly OpenCV Mats :
+ *     rss minus committed heap, non-heap and direct buffers ( OpenCV has no allocation counter in Java ),
+ *     it can be negative, only its growth matters</li>
+ *     <li>gc_count, gc_ms - total collections and collection time</li>
+ *     <li>fps - frames per second achieved in the interval</li>
+ * </ul>
+ *
+ * The run fails when rss, heap_live or native_mat grow more than the limit, or fps drops more than the limit.
+ * Growth compares the average of the last third of samples with the first third, samples of the warmup
+ * ( JIT, caches, heap sizing ) are left out.
+ *
+ * <p>
+ * Command line ( exits with 1 when the run fails ) :
+ * <pre>
+ * SoakRunner controllerClass [-duration s] [-interval s] [-warmup s] [-size WxH] [-fps f] [-script file]
+ *            [-csv file] [-max-growth mb] [-max-drop fraction]
+ * </pre>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class SoakRunner {
+
+    // FIELDS -- CONFIG --
+
+    private final Class<? extends CVFXController> controllerClass;
+    private ParameterScript script = new ParameterScript();
+    private File csvFile;
+    private int width = 3840, height = 2160;
+    private double duration = 3600, interval = 10, warmup = 60, targetFps = 0;
+    private long maxGrowth = 64L << 20;
+    private double maxFpsDrop = 0.1;
+
+    private static final String HEADER = "seconds,frames,fps,rss,heap_used,heap_live,native_mat,direct,gc_count,gc_ms";
+
+    /**
+     * One row of the report.
+     */
+    public static class Sample {
+        private double seconds, fps;
+        private long frames, rss, heapUsed, heapLive, nativeMat, direct, gcCount, gcMillis;
+
+        /** @return seconds since start */
+        public double getSeconds() { return seconds; }
+
+        /** @return frames processed since start */
+        public long getFrames() { return frames; }
+
+        /** @return frames per second in the interval before the sample */
+        public double getFps() { return fps; }
+
+        /** @return resident memory in bytes, -1 if unknown */
+        public long getRss() { return rss; }
+
+        /** @return heap used after the last GC in bytes */
+        public long getHeapLive() { return heapLive; }
+
+        /** @return estimate of native memory outside the JVM in bytes ( only growth matters ), 0 if unknown */
+        public long getNativeMat() { return nativeMat; }
+
+        /** @return total GC time in milliseconds */
+        public long getGcMillis() { return gcMillis; }
+
+        String toCsv() {
+            return String.format("%.1f,%d,%.2f,%d,%d,%d,%d,%d,%d,%d",
+                    seconds, frames, fps, rss, heapUsed, heapLive, nativeMat, direct, gcCount, gcMillis);
+        }
+    }
+
+    /**
+     * Result of one soak run.
+     */
+    public static class Result {
+        private final List<Sample> samples = new ArrayList<>();
+        private final List<String> failures = new ArrayList<>();
+        private long frames;
+
+        /** @return all samples */
+        public List<Sample> getSamples() { return Collections.unmodifiableList(samples); }
+
+        /** @return failure messages, empty if the run passed */
+        public List<String> getFailures() { return Collections.unmodifiableList(failures); }
+
+        /** @return true if there are no failures */
+        public boolean passed() { return failures.isEmpty(); }
+
+        @Override
+        public String toString() {
+            Sample last = samples.isEmpty() ? null : samples.get(samples.size() - 1);
+            return (passed() ? "PASSED" : "FAILED") + " : " + frames + " frames"
+                    + (last == null ? "" : " in " + Math.round(last.seconds) + " s, rss " + mb(last.rss)
+                    + " MB, gc " + last.gcMillis + " ms");
+        }
+    }
+
+    /**
+     * Creates a runner.
+     * @param controllerClass controller to run
+     */
+    public SoakRunner(Class<? extends CVFXController> controllerClass) {
+        this.controllerClass = controllerClass;
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @param script input script applied during the run ( frame numbers from the start ) */
+    public void setScript(ParameterScript script) { this.script = script; }
+
+    /** @param file CSV report, null for none */
+    public void setCsvFile(File file) { csvFile = file; }
+
+    /**
+     * @param width width of synthetic frames, default 3840
+     * @param height height of synthetic frames, default 2160
+     */
+    public void setFrameSize(int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Bad frame size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+    }
+
+    /** @param seconds length of the run, default an hour */
+    public void setDuration(double seconds) { duration = seconds; }
+
+    /** @param seconds time between samples, default 10 */
+    public void setInterval(double seconds) { interval = Math.max(0.1, seconds); }
+
+    /** @param seconds time at the start which isn't checked for growth, default 60 */
+    public void setWarmup(double seconds) { warmup = Math.max(0, seconds); }
+
+    /** @param fps frame rate of the generator like a camera, 0 runs as fast as possible */
+    public void setTargetFps(double fps) { targetFps = Math.max(0, fps); }
+
+    /** @param bytes allowed growth of rss, live heap and native memory */
+    public void setMaxGrowth(long bytes) { maxGrowth = bytes; }
+
+    /** @param fraction allowed drop of fps, 0.1 means 10 % */
+    public void setMaxFpsDrop(double fraction) { maxFpsDrop = fraction; }
+
+    // METHODS -- RUN --
+
+    /**
+     * Runs the soak test.
+     * @return result with samples and failures
+     * @throws IOException if the report cannot be written
+     * @throws ReflectiveOperationException if the controller cannot be instantiated
+     */
+    public Result run() throws IOException, ReflectiveOperationException {
+        Result result = new Result();
+        CVFXController controller = controllerClass.getDeclaredConstructor().newInstance();
+        controller.initHeadlessController();
+
+        PrintWriter csv = csvFile == null ? null : new PrintWriter(Files.newBufferedWriter(csvFile.toPath()));
+        if (csv != null) csv.println(HEADER);
+
+        Generator generator = new Generator(width, height);
+        Mat mainframe = new Mat(), alphaframe = new Mat(), betaframe = new Mat();
+        long start = System.nanoTime(), end = start + (long)(duration * 1e9);
+        long nextSample = start + (long)(interval * 1e9), frameNanos = targetFps > 0 ? (long)(1e9 / targetFps) : 0;
+        long frames = 0, lastFrames = 0, lastSampleTime = start;
+
+        try {
+            while (System.nanoTime() < end) {
+                if (frameNanos > 0) { // camera pace, a slow controller falls behind and fps drops
+                    long due = start + frames * frameNanos, wait = due - System.nanoTime();
+                    if (wait > 0) sleepNanos(wait);
+                }
+
+                script.apply(controller, (int)frames);
+                generator.next(mainframe, frames);
+                // empty like fresh Mats, but reused - a new Mat per frame keeps its pixels until it is
+                // finalized even after release, that would be counted as growth of the controller
+                alphaframe.release();
+                betaframe.release();
+                try {
+                    controller.runProcessing(mainframe, alphaframe, betaframe, true, true, true);
+                    controller.burnOverlays(mainframe, alphaframe, betaframe);
+                } catch (RuntimeException e) {
+                    result.failures.add("Processing failed at frame " + frames + " : " + e);
+                    break;
+                }
+                frames++;
+
+                long now = System.nanoTime();
+                if (now >= nextSample) {
+                    Sample s = sample((now - start) / 1e9, frames, (frames - lastFrames) / ((now - lastSampleTime) / 1e9));
+                    result.samples.add(s);
+                    if (csv != null) {
+                        csv.println(s.toCsv());
+                        csv.flush(); // keep the report readable while running and after a crash
+                    }
+                    lastFrames = frames;
+                    lastSampleTime = now;
+                    nextSample += (long)(interval * 1e9);
+                }
+            }
+        } finally {
+            if (csv != null) csv.close();
+            mainframe.release();
+            alphaframe.release();
+            betaframe.release();
+            generator.release();
+            controller.closeController();
+        }
+
+        result.frames = frames;
+        checkDrift(result);
+        return result;
+    }
+
+    /**
+     * Compares the first and last third of samples after warmup.
+     */
+    private void checkDrift(Result result) {
+        List<Sample> steady = new ArrayList<>();
+        for (Sample s : result.samples) if (s.seconds >= warmup) steady.add(s);
+        if (steady.size() < 3) {
+            result.failures.add("Only " + steady.size() + " samples after warmup, run longer or sample more often");
+            return;
+        }
+        int third = steady.size() / 3;
+        List<Sample> first = steady.subList(0, third), last = steady.subList(steady.size() - third, steady.size());
+
+        if (steady.get(0).rss >= 0) { // unknown when not on Linux
+            checkGrowth(result, "rss", average(first, s -> s.rss), average(last, s -> s.rss));
+            checkGrowth(result, "native memory", average(first, s -> s.nativeMat), average(last, s -> s.nativeMat));
+        }
+        checkGrowth(result, "live heap", average(first, s -> s.heapLive), average(last, s -> s.heapLive));
+
+        double firstFps = average(first, s -> s.fps), lastFps = average(last, s -> s.fps);
+        if (lastFps < firstFps * (1 - maxFpsDrop)) {
+            result.failures.add("Fps dropped from " + Math.round(firstFps * 10) / 10.0 + " to " + Math.round(lastFps * 10) / 10.0);
+        }
+    }
+
+    private void checkGrowth(Result result, String what, double first, double last) {
+        if (last - first > maxGrowth) {
+            result.failures.add(what + " grew " + mb((long)(last - first)) + " MB, limit " + mb(maxGrowth) + " MB");
+        }
+    }
+
+    private static double average(List<Sample> samples, ToDoubleFunction<Sample> field) {
+        double sum = 0;
+        for (Sample s : samples) sum += field.applyAsDouble(s);
+        return sum / samples.size();
+    }
+
+    // METHODS -- SAMPLING --
+
+    /**
+     * Reads memory and GC counters.
+     */
+    private static Sample sample(double seconds, long frames, double fps) {
+        Sample s = new Sample();
+        s.seconds = seconds;
+        s.frames = frames;
+        s.fps = fps;
+        s.rss = readRss();
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        s.heapUsed = heap.getUsed();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (afterGc != null) s.heapLive += afterGc.getUsed();
+        }
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            s.direct += pool.getMemoryUsed();
+        }
+        // committed heap doesn't have to be resident, so this can be negative - only its growth is meaningful
+        s.nativeMat = s.rss < 0 ? 0 : s.rss - heap.getCommitted() - nonHeap.getCommitted() - s.direct;
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            s.gcCount += Math.max(0, gc.getCollectionCount());
+            s.gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        return s;
+    }
+
+    /**
+     * Resident set size from /proc/self/status, -1 when not on Linux.
+     */
+    private static long readRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1_000_000, (int)(nanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long mb(long bytes) { return Math.round(bytes / 1048576.0); }
+
+    // GENERATOR
+
+    /**
+     * Synthetic frames - a fixed noisy gradient with moving shapes and the frame number, so controllers see
+     * motion and edges every frame. Reuses its Mats, it doesn't allocate per frame.
+     */
+    private static class Generator {
+        private final Mat background;
+        private final int width, height;
+
+        Generator(int width, int height) {
+            this.width = width;
+            this.height = height;
+            background = new Mat(height, width, CvType.CV_8UC3);
+            Mat noise = new Mat(height, width, CvType.CV_8UC3);
+            for (int y = 0; y < height; y += 8) {
+                int v = 255 * y / height;
+                Imgproc.rectangle(background, new Point(0, y), new Point(width, y + 8), new Scalar(v, 128, 255 - v), -1);
+            }
+            Core.randn(noise, 0, 12);
+            Core.add(background, noise, background);
+            noise.release();
+        }
+
+        void next(Mat frame, long index) {
+            background.copyTo(frame);
+            double t = index / 30.0;
+            int r = Math.max(8, height / 10);
+            for (int i = 0; i < 4; i++) {
+                double phase = t * (0.6 + i * 0.25) + i;
+                Point center = new Point(width / 2.0 + Math.cos(phase) * width * 0.35, height / 2.0 + Math.sin(phase * 1.3) * height * 0.35);
+                Imgproc.circle(frame, center, r, new Scalar(40 * i, 255 - 50 * i, 60 + 40 * i), -1);
+            }
+            Imgproc.putText(frame, "frame " + index, new Point(20, height - 20), Core.FONT_HERSHEY_SIMPLEX,
+                    height / 720.0, new Scalar(255, 255, 255), 2);
+        }
+
+        void release() { background.release(); }
+    }
+
+    // METHODS -- COMMAND LINE --
+
+    /**
+     * Command line entry, see class description for arguments.
+     * @param args arguments
+     * @throws Exception on bad arguments or unwritable report
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage : SoakRunner controllerClass [-duration s] [-interval s] [-warmup s] [-size WxH] [-fps f] "
+                    + "[-script file] [-csv file] [-max-growth mb] [-max-drop fraction]");
+            System.exit(2);
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        SoakRunner runner = new SoakRunner(Class.forName(args[0]).asSubclass(CVFXController.class));
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-duration": runner.setDuration(Double.parseDouble(args[++i])); break;
+                case "-interval": runner.setInterval(Double.parseDouble(args[++i])); break;
+                case "-warmup": runner.setWarmup(Double.parseDouble(args[++i])); break;
+                case "-size":
+                    String[] size = args[++i].split("x");
+                    runner.setFrameSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                    break;
+                case "-fps": runner.setTargetFps(Double.parseDouble(args[++i])); break;
+                case "-script": runner.setScript(ParameterScript.load(new File(args[++i]))); break;
+                case "-csv": runner.setCsvFile(new File(args[++i])); break;
+                case "-max-growth": runner.setMaxGrowth((long)(Double.parseDouble(args[++i]) * 1048576)); break;
+                case "-max-drop": runner.setMaxFpsDrop(Double.parseDouble(args[++i])); break;
+                default:
+                    System.out.println("ERROR : unknown argument " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Result result = runner.run();
+        for (String failure : result.getFailures()) System.out.println("[SoakRunner] " + failure);
+        System.out.println("[SoakRunner] " + result);
+        System.exit(result.passed() ? 0 : 1);
+    }
+}
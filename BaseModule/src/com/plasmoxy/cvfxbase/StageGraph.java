@@ -0,0 +1,251 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Declarative graph of processing stages with lazy evaluation.
+ * Every stage computes one output Mat from outputs of other stages, the captured frame is the source stage.
+ * Views are sinks - a stage is bound to a view and its output is shown there.
+ *
+ * <p>
+ * On every frame only stages which feed a currently visible view ( or are marked as required,
+ * for example because a recorder uses them ) are computed. Stages on the same depth of the graph
+ * don't depend on each other, so when there are more of them they run in parallel.
+ *
+ * <p>
+ * Example, grey - blur - canny shown in Alpha view, set in init method of controller :
+ * <pre>
+ * StageGraph g = new StageGraph();
+ * StageGraph.Stage grey = g.stage("grey", (in, out) -&gt; Imgproc.cvtColor(in[0], out, Imgproc.COLOR_BGR2GRAY), g.source());
+ * StageGraph.Stage blur = g.stage("blur", (in, out) -&gt; Imgproc.GaussianBlur(in[0], out, new Size(5, 5), 0), grey);
+ * StageGraph.Stage canny = g.stage("canny", (in, out) -&gt; Imgproc.Canny(in[0], out, 50, 150), blur);
+ * g.sink(CVFXView.ALPHA, canny);
+ * setStageGraph(g);
+ * </pre>
+ *
+ * Stage functions must not modify their inputs, output Mats are kept and reused between frames.
+ * Graph is evaluated before process method, process gets the sink outputs in its Mats.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class StageGraph {
+
+    /**
+     * Computation of one stage.
+     */
+    @FunctionalInterface
+    public interface StageFunction {
+        /**
+         * Computes the output.
+         * @param inputs outputs of input stages, in the order they were given ( read only )
+         * @param output output Mat of the stage ( same Mat every frame )
+         */
+        void apply(Mat[] inputs, Mat output);
+    }
+
+    /**
+     * One node of the graph.
+     */
+    public static class Stage {
+        private final String name;
+        private final StageFunction function;
+        private final Stage[] inputs;
+        private final Mat[] inputMats;
+        private final int depth;
+        private Mat output = new Mat();
+        private boolean needed, required;
+        private volatile long lastNanos;
+        private volatile long lastFrame = -1;
+
+        private Stage(String name, StageFunction function, Stage[] inputs) {
+            this.name = name;
+            this.function = function;
+            this.inputs = inputs;
+            this.inputMats = new Mat[inputs.length];
+            int d = 0;
+            for (Stage s : inputs) d = Math.max(d, s.depth + 1);
+            this.depth = d;
+        }
+
+        /** @return stage name */
+        public String getName() { return name; }
+
+        /** @return output of the last computation ( stale if the stage didn't run this frame ) */
+        public Mat getOutput() { return output; }
+
+        /** @return distance from the source, stages with the same depth can run in parallel */
+        public int getDepth() { return depth; }
+
+        /** @return duration of the last computation in nanoseconds */
+        public long getLastNanos() { return lastNanos; }
+
+        /** @return index of the last frame in which the stage was computed */
+        public long getLastFrame() { return lastFrame; }
+
+        /**
+         * Marks the stage as required, it is computed every frame even if no visible view needs it
+         * ( for example when a recorder or other consumer reads its output ).
+         * @param required required
+         */
+        public void setRequired(boolean required) { this.required = required; }
+
+        /** @return required */
+        public boolean isRequired() { return required; }
+
+        private void run(long frame) {
+            for (int i = 0; i < inputs.length; i++) inputMats[i] = inputs[i].output;
+            long start = System.nanoTime();
+            function.apply(inputMats, output);
+            lastNanos = System.nanoTime() - start;
+            lastFrame = frame;
+        }
+
+        @Override
+        public String toString() { return name; }
+    }
+
+    // FIELDS -- GRAPH --
+
+    /** Stages in creation order, which is also a topological order */
+    private final List<Stage> stages = new ArrayList<>();
+    private final Stage source = new Stage("source", null, new Stage[0]);
+    private final Stage[] sinks = new Stage[CVFXView.values().length];
+    private int maxDepth = 0;
+    private boolean parallel = true;
+    private long frame = 0;
+    private volatile int lastRunCount;
+
+    // METHODS -- BUILDING --
+
+    /**
+     * The source stage, its output is the captured frame.
+     * @return source stage
+     */
+    public Stage source() { return source; }
+
+    /**
+     * Adds a stage. Inputs must be already created stages, so the graph can't have cycles.
+     * @param name stage name ( for statistics and logs )
+     * @param function computation
+     * @param inputs input stages
+     * @return the new stage
+     */
+    public Stage stage(String name, StageFunction function, Stage... inputs) {
+        if (inputs.length == 0) throw new IllegalArgumentException("Stage " + name + " has no inputs");
+        for (Stage in : inputs) {
+            if (in != source && !stages.contains(in)) throw new IllegalArgumentException("Input " + in + " of " + name + " is not in this graph");
+        }
+        Stage s = new Stage(name, function, inputs.clone());
+        stages.add(s);
+        maxDepth = Math.max(maxDepth, s.depth);
+        return s;
+    }
+
+    /**
+     * Binds a stage output to a view.
+     * @param view the view
+     * @param stage stage which is shown, null removes the sink
+     */
+    public void sink(CVFXView view, Stage stage) { sinks[view.ordinal()] = stage; }
+
+    /**
+     * Gets the stage bound to a view.
+     * @param view the view
+     * @return sink stage or null
+     */
+    public Stage getSink(CVFXView view) { return sinks[view.ordinal()]; }
+
+    /**
+     * Sets whether independent stages run in parallel ( default true ).
+     * @param parallel parallel evaluation
+     */
+    public void setParallel(boolean parallel) { this.parallel = parallel; }
+
+    /** @return stages of the graph without source, in creation order */
+    public List<Stage> getStages() { return Collections.unmodifiableList(stages); }
+
+    /** @return number of stages computed on the last frame */
+    public int getLastRunCount() { return lastRunCount; }
+
+    // METHODS -- EVALUATION --
+
+    /**
+     * Computes stages needed by the visible views and required stages.
+     * @param input captured frame ( read only for stages )
+     * @param main Main view visible
+     * @param alpha Alpha view visible
+     * @param beta Beta view visible
+     */
+    public void evaluate(Mat input, boolean main, boolean alpha, boolean beta) {
+        frame++;
+        source.output = input;
+
+        // mark needed stages - backwards in topological order, so needs propagate to inputs
+        for (Stage s : stages) s.needed = s.required;
+        boolean[] visible = {main, alpha, beta};
+        for (int v = 0; v < sinks.length; v++) {
+            if (visible[v] && sinks[v] != null) sinks[v].needed = true;
+        }
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            Stage s = stages.get(i);
+            if (s.needed) for (Stage in : s.inputs) in.needed = true;
+        }
+
+        // run depth by depth, stages of one depth are independent
+        int count = 0;
+        List<Stage> level = new ArrayList<>();
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            level.clear();
+            for (Stage s : stages) if (s.needed && s.depth == depth) level.add(s);
+            count += level.size();
+            if (level.size() == 1 || !parallel) {
+                for (Stage s : level) s.run(frame);
+            } else if (level.size() > 1) {
+                runParallel(level);
+            }
+        }
+        lastRunCount = count;
+    }
+
+    /**
+     * Runs independent stages on the common fork join pool and waits for all of them.
+     */
+    private void runParallel(List<Stage> level) {
+        List<Callable<Void>> tasks = new ArrayList<>(level.size());
+        for (Stage s : level) tasks.add(() -> { s.run(frame); return null; });
+        try {
+            for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Stage failed", e.getCause());
+        }
+    }
+
+    /**
+     * Copies outputs of visible sinks into the view Mats.
+     * @param main Mat of Main view ( also the source, so it is overwritten only if Main has a sink )
+     * @param alpha Mat of Alpha view
+     * @param beta Mat of Beta view
+     * @param mainVisible Main view visible
+     * @param alphaVisible Alpha view visible
+     * @param betaVisible Beta view visible
+     */
+    public void copySinks(Mat main, Mat alpha, Mat beta, boolean mainVisible, boolean alphaVisible, boolean betaVisible) {
+        Mat[] targets = {main, alpha, beta};
+        boolean[] visible = {mainVisible, alphaVisible, betaVisible};
+        // Main last, it is the source Mat and other sinks may still read it
+        for (int v = sinks.length - 1; v >= 0; v--) {
+            Stage s = sinks[v];
+            if (s != null && visible[v] && targets[v] != s.output) s.output.copyTo(targets[v]);
+        }
+    }
+}
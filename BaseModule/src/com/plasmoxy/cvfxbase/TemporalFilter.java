@@ -0,0 +1,479 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.BackgroundSubtractorMOG2;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stateful operator over a sequence of frames - running mean and variance, exponential smoothing, background
+ * models, N-frame median and frame differencing. Every filter keeps its state in native Mats which are allocated
+ * with the first frame and updated in place on every next one, so a filter doesn't allocate per frame.
+ * When frame size or type changes, the state starts again.
+ *
+ * <p>
+ * Create the filter once ( in init method ) and feed it every frame :
+ * <pre>
+ * TemporalFilter background = new TemporalFilter.GaussianBackground(0.01, 2.5);
+ * ...
+ * protected void process(Mat mainframe, Mat alphaframe, Mat betaframe) {
+ *     background.apply(mainframe, alphaframe); // foreground mask in Alpha view
+ * }
+ * </pre>
+ * It also fits a StageGraph stage, ( in, out ) -&gt; filter.apply(in[0], out).
+ * Filters are not thread safe, apply is meant for one thread ( the renderer ).
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public abstract class TemporalFilter {
+
+    private int rows = -1, cols = -1, type = -1;
+    private long frames = 0;
+
+    /**
+     * Updates the state with a frame and writes the result.
+     * @param frame new frame ( not changed )
+     * @param output result, see the filter ( can't be the frame )
+     */
+    public final void apply(Mat frame, Mat output) {
+        if (frame.empty()) throw new IllegalArgumentException("Cannot filter an empty frame");
+        if (frame.rows() != rows || frame.cols() != cols || frame.type() != type) {
+            reset();
+            rows = frame.rows();
+            cols = frame.cols();
+            type = frame.type();
+        }
+        update(frame, output, frames);
+        frames++;
+    }
+
+    /**
+     * Updates the state.
+     * @param frame new frame, same shape and type as the previous ones
+     * @param output result
+     * @param frames number of frames before this one since the start ( or reset ), 0 means state is empty
+     */
+    protected abstract void update(Mat frame, Mat output, long frames);
+
+    /** @return frames since the start or reset */
+    public long getFrames() { return frames; }
+
+    /**
+     * Forgets the frames, the next one starts the state again. State Mats are kept for reuse.
+     */
+    public void reset() { frames = 0; }
+
+    /**
+     * Releases the state Mats, the filter can still be used ( it allocates them again ).
+     */
+    public abstract void release();
+
+    /**
+     * Type of a float Mat with the channels of a frame.
+     */
+    private static int floatType(Mat frame) { return CvType.CV_32FC(frame.channels()); }
+
+    // FILTERS
+
+    /**
+     * Running mean and variance of every pixel ( and channel ). Output is the mean in the type of the frame.
+     * With a window the statistics follow the scene - older frames fade out with weight 1 / window,
+     * without it ( window 0 ) they are exact over all frames since the start.
+     */
+    public static final class RunningStats extends TemporalFilter {
+        private final int window;
+        private final Mat x = new Mat(), mean = new Mat(), variance = new Mat(), diff = new Mat();
+
+        /**
+         * Statistics over all frames.
+         */
+        public RunningStats() { this(0); }
+
+        /**
+         * @param window frames with full weight, 0 for all frames
+         */
+        public RunningStats(int window) {
+            if (window < 0) throw new IllegalArgumentException("Window must not be negative, got " + window);
+            this.window = window;
+        }
+
+        @Override
+        protected void update(Mat frame, Mat output, long frames) {
+            frame.convertTo(x, floatType(frame));
+            if (frames == 0) {
+                x.copyTo(mean);
+                variance.create(x.size(), x.type());
+                variance.setTo(Scalar.all(0));
+            } else {
+                // Welford with weight a : mean += a * d, var = ( 1 - a ) * ( var + a * d^2 ), exact for a = 1 / n
+                double n = frames + 1, a = 1 / (window > 0 ? Math.min(n, window) : n);
+                Core.subtract(x, mean, diff);
+                Core.scaleAdd(diff, a, mean, mean);
+                Core.multiply(diff, diff, diff, a);
+                Core.add(variance, diff, variance);
+                variance.convertTo(variance, -1, 1 - a);
+            }
+            mean.convertTo(output, frame.depth());
+        }
+
+        /** @return mean of every pixel, float Mat with the channels of frames ( don't change it ) */
+        public Mat getMean() { return mean; }
+
+        /** @return variance of every pixel, float Mat with the channels of frames ( don't change it ) */
+        public Mat getVariance() { return variance; }
+
+        /**
+         * Standard deviation of every pixel.
+         * @param dst float Mat which receives it
+         */
+        public void getStdDev(Mat dst) { Core.sqrt(variance, dst); }
+
+        @Override
+        public void release() {
+            for (Mat m : new Mat[] {x, mean, variance, diff}) m.release();
+            reset();
+        }
+    }
+
+    /**
+     * Exponential smoothing, output = alpha * frame + ( 1 - alpha ) * previous output, in the type of the frame.
+     * The average is kept in float, so small alpha doesn't get stuck on rounding.
+     */
+    public static final class Exponential extends TemporalFilter {
+        private volatile double alpha;
+        private final Mat average = new Mat();
+
+        /**
+         * @param alpha weight of a new frame, 0 - 1 ( 1 / alpha is about the number of frames averaged )
+         */
+        public Exponential(double alpha) { setAlpha(alpha); }
+
+        /** @param alpha weight of a new frame, 0 - 1 */
+        public void setAlpha(double alpha) {
+            if (alpha <= 0 || alpha > 1) throw new IllegalArgumentException("Alpha must be in ( 0, 1 ], got " + alpha);
+            this.alpha = alpha;
+        }
+
+        /** @return weight of a new frame */
+        public double getAlpha() { return alpha; }
+
+        @Override
+        protected void update(Mat frame, Mat output, long frames) {
+            if (frames == 0) frame.convertTo(average, floatType(frame));
+            else Imgproc.accumulateWeighted(frame, average, alpha);
+            average.convertTo(output, frame.depth());
+        }
+
+        /** @return the float average ( don't change it ) */
+        public Mat getAverage() { return average; }
+
+        @Override
+        public void release() {
+            average.release();
+            reset();
+        }
+    }
+
+    /**
+     * Background model with one gaussian per pixel, in the style of MOG : a pixel is foreground when its squared
+     * distance from the background mean ( summed over channels ) is more than threshold^2 * variance.
+     * Mean and variance of background pixels learn with the learning rate, foreground pixels don't change the model.
+     * Output is the foreground mask ( 8 bit, 255 foreground ). Objects which stop in the scene stay foreground,
+     * use MixtureBackground when they should become background.
+     */
+    public static final class GaussianBackground extends TemporalFilter {
+        private volatile double learningRate;
+        private volatile Scalar thresholdSquared, minVariance = Scalar.all(4 * 4); // kept, so frames don't allocate them
+        private double initialVariance = 15 * 15;
+
+        private final Mat mean = new Mat(), variance = new Mat();
+        private final Mat x = new Mat(), diff = new Mat(), squared = new Mat(), distance = new Mat(),
+                limit = new Mat(), background = new Mat(), learned = new Mat(), learnedVariance = new Mat(), ones = new Mat();
+
+        /**
+         * Model with learning rate 0.01 and threshold 2.5 sigma.
+         */
+        public GaussianBackground() { this(0.01, 2.5); }
+
+        /**
+         * @param learningRate weight of a new background sample, 0 - 1
+         * @param threshold distance from the mean in standard deviations which is still background
+         */
+        public GaussianBackground(double learningRate, double threshold) {
+            setLearningRate(learningRate);
+            setThreshold(threshold);
+        }
+
+        /** @param learningRate weight of a new background sample, 0 - 1 */
+        public void setLearningRate(double learningRate) {
+            if (learningRate < 0 || learningRate > 1) throw new IllegalArgumentException("Learning rate must be 0 - 1, got " + learningRate);
+            this.learningRate = learningRate;
+        }
+
+        /** @param threshold distance from the mean in standard deviations which is still background */
+        public void setThreshold(double threshold) {
+            if (threshold <= 0) throw new IllegalArgumentException("Threshold must be positive, got " + threshold);
+            thresholdSquared = Scalar.all(threshold * threshold);
+        }
+
+        /**
+         * Sets the variances of the model.
+         * @param initial variance of pixels after the first frame, default 225 ( 15 levels )
+         * @param min lowest variance, keeps noise out of the foreground on static scenes, default 16
+         */
+        public void setVariances(double initial, double min) {
+            if (initial <= 0 || min <= 0) throw new IllegalArgumentException("Variances must be positive");
+            initialVariance = initial;
+            minVariance = Scalar.all(min);
+        }
+
+        @Override
+        protected void update(Mat frame, Mat output, long frames) {
+            frame.convertTo(x, floatType(frame));
+            if (frames == 0) {
+                x.copyTo(mean);
+                variance.create(x.size(), CvType.CV_32FC1);
+                variance.setTo(Scalar.all(initialVariance));
+                output.create(frame.size(), CvType.CV_8UC1);
+                output.setTo(Scalar.all(0));
+                return;
+            }
+
+            // squared distance, channels summed
+            Core.subtract(x, mean, diff);
+            Core.multiply(diff, diff, squared);
+            if (squared.channels() > 1) {
+                if (ones.cols() != squared.channels()) {
+                    ones.create(1, squared.channels(), CvType.CV_32FC1);
+                    ones.setTo(Scalar.all(1));
+                }
+                Core.transform(squared, distance, ones);
+            } else {
+                squared.copyTo(distance);
+            }
+
+            // foreground mask
+            Core.multiply(variance, thresholdSquared, limit);
+            Core.compare(distance, limit, output, Core.CMP_GT);
+            Core.bitwise_not(output, background);
+
+            // background pixels learn, mean += rate * d, var += rate * ( dist - var )
+            double rate = learningRate;
+            Core.scaleAdd(diff, rate, mean, learned);
+            learned.copyTo(mean, background);
+            Core.subtract(distance, variance, learnedVariance);
+            Core.scaleAdd(learnedVariance, rate, variance, learnedVariance);
+            Core.max(learnedVariance, minVariance, learnedVariance);
+            learnedVariance.copyTo(variance, background);
+        }
+
+        /**
+         * Background image.
+         * @param dst Mat which receives the mean, 8 bit
+         */
+        public void getBackground(Mat dst) { mean.convertTo(dst, CvType.CV_8U); }
+
+        /** @return variance of every pixel, float Mat ( don't change it ) */
+        public Mat getVariance() { return variance; }
+
+        @Override
+        public void release() {
+            for (Mat m : new Mat[] {mean, variance, x, diff, squared, distance, limit, background, learned, learnedVariance, ones}) m.release();
+            reset();
+        }
+    }
+
+    /**
+     * Background model with a mixture of gaussians per pixel ( OpenCV BackgroundSubtractorMOG2 ), pixels can have
+     * more backgrounds ( leaves, water, screens ) and objects which stop become background after a while.
+     * Output is the foreground mask ( 255 foreground, 127 shadow when shadows are detected ).
+     */
+    public static final class MixtureBackground extends TemporalFilter {
+        private final int history;
+        private final double varianceThreshold;
+        private final boolean detectShadows;
+        private volatile double learningRate = -1;
+        private BackgroundSubtractorMOG2 model;
+
+        /**
+         * Model with history 500, threshold 16 and shadow detection.
+         */
+        public MixtureBackground() { this(500, 16, true); }
+
+        /**
+         * @param history frames which affect the model
+         * @param varianceThreshold squared distance in variances which is still background
+         * @param detectShadows marks shadows with 127
+         */
+        public MixtureBackground(int history, double varianceThreshold, boolean detectShadows) {
+            this.history = history;
+            this.varianceThreshold = varianceThreshold;
+            this.detectShadows = detectShadows;
+        }
+
+        /** @param learningRate weight of a new frame 0 - 1, negative for automatic ( 1 / history ) */
+        public void setLearningRate(double learningRate) { this.learningRate = learningRate; }
+
+        @Override
+        protected void update(Mat frame, Mat output, long frames) {
+            if (frames == 0 || model == null) model = Video.createBackgroundSubtractorMOG2(history, varianceThreshold, detectShadows);
+            model.apply(frame, output, learningRate);
+        }
+
+        /**
+         * Background image.
+         * @param dst Mat which receives it
+         */
+        public void getBackground(Mat dst) {
+            if (model != null) model.getBackgroundImage(dst);
+        }
+
+        @Override
+        public void release() {
+            model = null; // native model is freed with the object
+            reset();
+        }
+    }
+
+    /**
+     * Median of the last N frames for every pixel ( and channel ), output in the type of the frame.
+     * Removes short events ( noise, passing objects ) completely, unlike averages. Before N frames arrive it is
+     * the median of the frames so far, for an even count the mean of the two middle values.
+     * Computed with a sorting network of min / max operations, only comparisons which affect the median are run.
+     */
+    public static final class Median extends TemporalFilter {
+        private final int size;
+        private final Mat[] ring, work;
+        private Mat tmp = new Mat();
+        private final int[][][] networks; // comparisons for every count of frames, built when needed
+        private int next = 0;
+
+        /**
+         * @param size number of frames, 1 - 31 ( odd sizes are cheaper )
+         */
+        public Median(int size) {
+            if (size < 1 || size > 31) throw new IllegalArgumentException("Median size must be 1 - 31, got " + size);
+            this.size = size;
+            ring = new Mat[size];
+            work = new Mat[size];
+            for (int i = 0; i < size; i++) {
+                ring[i] = new Mat();
+                work[i] = new Mat();
+            }
+            networks = new int[size + 1][][];
+        }
+
+        /** @return number of frames of the median */
+        public int getSize() { return size; }
+
+        @Override
+        protected void update(Mat frame, Mat output, long frames) {
+            if (frames == 0) next = 0;
+            frame.copyTo(ring[next]);
+            next = (next + 1) % size;
+            int count = (int)Math.min(frames + 1, size);
+
+            for (int i = 0; i < count; i++) ring[i].copyTo(work[i]);
+            for (int[] c : comparisons(count)) {
+                Core.min(work[c[0]], work[c[1]], tmp);
+                Core.max(work[c[0]], work[c[1]], work[c[1]]);
+                Mat t = work[c[0]];
+                work[c[0]] = tmp;
+                tmp = t;
+            }
+            if (count % 2 == 1) work[count / 2].copyTo(output);
+            else Core.addWeighted(work[count / 2 - 1], 0.5, work[count / 2], 0.5, 0, output);
+        }
+
+        private int[][] comparisons(int count) {
+            if (networks[count] == null) networks[count] = network(count);
+            return networks[count];
+        }
+
+        /**
+         * Comparisons of Batcher's odd-even merge sort of count values, without the ones
+         * which don't reach the middle elements.
+         * @param count number of values
+         * @return pairs of indexes, min goes to the first one
+         */
+        static int[][] network(int count) {
+            List<int[]> all = new ArrayList<>();
+            for (int p = 1; p < count; p <<= 1)
+                for (int k = p; k >= 1; k >>= 1)
+                    for (int j = k % p; j + k < count; j += 2 * k)
+                        for (int i = 0; i < Math.min(k, count - j - k); i++)
+                            if ((i + j) / (2 * p) == (i + j + k) / (2 * p)) all.add(new int[] {i + j, i + j + k});
+
+            // walk back from the middle, a comparison matters when it touches an element which matters
+            boolean[] needed = new boolean[count];
+            needed[count / 2] = true;
+            if (count % 2 == 0) needed[count / 2 - 1] = true;
+            List<int[]> pruned = new ArrayList<>();
+            for (int c = all.size() - 1; c >= 0; c--) {
+                int[] pair = all.get(c);
+                if (needed[pair[0]] || needed[pair[1]]) {
+                    needed[pair[0]] = needed[pair[1]] = true;
+                    pruned.add(0, pair);
+                }
+            }
+            return pruned.toArray(new int[0][]);
+        }
+
+        @Override
+        public void release() {
+            for (int i = 0; i < size; i++) {
+                ring[i].release();
+                work[i].release();
+            }
+            tmp.release();
+            reset();
+        }
+    }
+
+    /**
+     * Difference from the previous frame, absolute per channel. With a threshold the output is a binary
+     * mask of changed pixels ( per channel ), else the raw difference. First frame gives zeros.
+     */
+    public static final class Difference extends TemporalFilter {
+        private volatile double threshold;
+        private final Mat previous = new Mat();
+
+        /**
+         * Raw difference.
+         */
+        public Difference() { this(0); }
+
+        /**
+         * @param threshold difference above which a pixel changed, 0 for raw difference
+         */
+        public Difference(double threshold) { this.threshold = threshold; }
+
+        /** @param threshold difference above which a pixel changed, 0 for raw difference */
+        public void setThreshold(double threshold) { this.threshold = threshold; }
+
+        @Override
+        protected void update(Mat frame, Mat output, long frames) {
+            if (frames == 0) {
+                output.create(frame.size(), frame.type());
+                output.setTo(Scalar.all(0));
+            } else {
+                Core.absdiff(frame, previous, output);
+                double t = threshold;
+                if (t > 0) Imgproc.threshold(output, output, t, 255, Imgproc.THRESH_BINARY);
+            }
+            frame.copyTo(previous);
+        }
+
+        @Override
+        public void release() {
+            previous.release();
+            reset();
+        }
+    }
+}
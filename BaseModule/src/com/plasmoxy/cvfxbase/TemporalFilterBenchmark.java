@@ -0,0 +1,285 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Benchmark of TemporalFilters on a synthetic sequence ( noisy static scene with a moving square ).
+ * For every filter it measures the time per frame and the Java heap allocated per frame, and for the simple
+ * ones also the same computation written the usual way in process method - with fresh Mats every frame.
+ * Native memory of released fresh Mats is given back only when their Java objects are collected, so the hand
+ * written versions run a garbage collection every other frame, as a long running controller would sooner or later.
+ * Its time isn't included in the time of the computation, it has its own column ( per frame ).
+ *
+ * <p>
+ * Command line :
+ * <pre>
+ * TemporalFilterBenchmark [width height] [-iterations n]
+ * </pre>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class TemporalFilterBenchmark {
+
+    private static final int SEQUENCE = 16;
+
+    private final int width, height;
+    private int iterations = 100;
+
+    private final Mat[] frames = new Mat[SEQUENCE];
+    private final Mat output = new Mat();
+    private int next = 0;
+
+    /**
+     * Creates a benchmark on BGR frames.
+     * @param width frame width
+     * @param height frame height
+     */
+    public TemporalFilterBenchmark(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /** @param iterations measured frames of every filter, default 100 */
+    public void setIterations(int iterations) { this.iterations = Math.max(1, iterations); }
+
+    /**
+     * Runs all filters and prints a table, times are milliseconds per frame.
+     */
+    public void run() {
+        Mat noise = new Mat(height, width, CvType.CV_8UC3);
+        for (int i = 0; i < SEQUENCE; i++) {
+            frames[i] = new Mat(height, width, CvType.CV_8UC3, new Scalar(90, 120, 150));
+            Core.randn(noise, 0, 6);
+            Core.add(frames[i], noise, frames[i]);
+            int size = height / 6, x = (width - size) * i / SEQUENCE;
+            Imgproc.rectangle(frames[i], new Point(x, height / 3), new Point(x + size, height / 3 + size), new Scalar(20, 200, 60), -1);
+        }
+        noise.release();
+
+        System.out.println("[TemporalFilterBenchmark] " + width + "x" + height + " BGR, " + iterations + " frames"
+                + (FrameProfiler.isAllocationSupported() ? "" : ", heap allocation unknown"));
+        System.out.println(String.format("%-12s %10s %10s %10s %12s %12s", "filter", "filter", "by hand", "by hand gc", "filter heap", "by hand heap"));
+
+        row("stats", new TemporalFilter.RunningStats(30), new RunningStatsByHand(30));
+        row("exponential", new TemporalFilter.Exponential(0.05), new ExponentialByHand(0.05));
+        row("gaussian bg", new TemporalFilter.GaussianBackground(), null);
+        row("mixture bg", new TemporalFilter.MixtureBackground(), null);
+        row("median 5", new TemporalFilter.Median(5), new MedianByHand(5));
+        row("median 9", new TemporalFilter.Median(9), new MedianByHand(9));
+        row("difference", new TemporalFilter.Difference(20), new DifferenceByHand(20));
+
+        for (Mat m : frames) m.release();
+        output.release();
+    }
+
+    /**
+     * Measures one filter and its hand written version and prints the row.
+     */
+    private void row(String name, TemporalFilter filter, Consumer<Mat> byHand) {
+        double[] f = measure(frame -> filter.apply(frame, output), false);
+        double[] h = byHand == null ? null : measure(byHand, true);
+        filter.release();
+        System.out.println(String.format("%-12s %10.3f %10s %10s %12s %12s", name, f[0],
+                h == null ? "-" : String.format("%.3f", h[0]),
+                h == null ? "-" : String.format("%.3f", h[2]),
+                bytes(f[1]), h == null ? "-" : bytes(h[1])));
+    }
+
+    /**
+     * Time in milliseconds, heap bytes and garbage collection time in milliseconds of one frame,
+     * best of three rounds after a warmup.
+     * @param collecting run a garbage collection every other frame, so fresh Mats don't exhaust native memory
+     */
+    private double[] measure(Consumer<Mat> step, boolean collecting) {
+        long warmupEnd = System.nanoTime() + 500_000_000L;
+        for (int i = 0; i < SEQUENCE || System.nanoTime() < warmupEnd; i++) {
+            step.accept(nextFrame());
+            if (collecting && i % 2 == 1) collect();
+        }
+
+        long best = Long.MAX_VALUE, heap = Long.MAX_VALUE, gc = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long allocated = FrameProfiler.allocated();
+            long time = 0, collected = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                step.accept(nextFrame());
+                long end = System.nanoTime();
+                time += end - start;
+                if (collecting && i % 2 == 1) {
+                    collect();
+                    collected += System.nanoTime() - end;
+                }
+            }
+            best = Math.min(best, time);
+            heap = Math.min(heap, FrameProfiler.allocated() - allocated);
+            gc = Math.min(gc, collected);
+        }
+        return new double[] {best / 1e6 / iterations, FrameProfiler.isAllocationSupported() ? (double)heap / iterations : -1,
+                gc / 1e6 / iterations};
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void collect() {
+        System.gc();
+        System.runFinalization();
+    }
+
+    private Mat nextFrame() {
+        next = (next + 1) % SEQUENCE;
+        return frames[next];
+    }
+
+    private static String bytes(double b) { return b < 0 ? "?" : String.format("%.0f B", b); }
+
+    // BY HAND - the same computations with fresh Mats every frame, as they are usually written in process
+
+    private static final class RunningStatsByHand implements Consumer<Mat> {
+        private final int window;
+        private Mat mean, variance;
+        private long n = 0;
+
+        RunningStatsByHand(int window) { this.window = window; }
+
+        @Override
+        public void accept(Mat frame) {
+            Mat x = new Mat();
+            frame.convertTo(x, CvType.CV_32FC3);
+            if (mean == null) {
+                mean = x.clone();
+                variance = Mat.zeros(x.size(), x.type());
+            } else {
+                double a = 1.0 / Math.min(++n + 1, window);
+                Mat diff = new Mat(), sq = new Mat(), nextMean = new Mat(), nextVariance = new Mat();
+                Core.subtract(x, mean, diff);
+                Core.scaleAdd(diff, a, mean, nextMean);
+                Core.multiply(diff, diff, sq, a);
+                Core.add(variance, sq, nextVariance);
+                nextVariance.convertTo(nextVariance, -1, 1 - a);
+                mean.release();
+                variance.release();
+                mean = nextMean;
+                variance = nextVariance;
+                diff.release();
+                sq.release();
+            }
+            Mat out = new Mat();
+            mean.convertTo(out, CvType.CV_8U);
+            out.release();
+            x.release();
+        }
+    }
+
+    private static final class ExponentialByHand implements Consumer<Mat> {
+        private final double alpha;
+        private Mat average;
+
+        ExponentialByHand(double alpha) { this.alpha = alpha; }
+
+        @Override
+        public void accept(Mat frame) {
+            Mat x = new Mat();
+            frame.convertTo(x, CvType.CV_32FC3);
+            if (average == null) {
+                average = x;
+            } else {
+                Mat next = new Mat();
+                Core.addWeighted(x, alpha, average, 1 - alpha, 0, next);
+                average.release();
+                average = next;
+                x.release();
+            }
+            Mat out = new Mat();
+            average.convertTo(out, CvType.CV_8U);
+            out.release();
+        }
+    }
+
+    private static final class MedianByHand implements Consumer<Mat> {
+        private final int size;
+        private final ArrayDeque<Mat> history = new ArrayDeque<>();
+        private final int[][][] networks;
+
+        MedianByHand(int size) {
+            this.size = size;
+            networks = new int[size + 1][][];
+        }
+
+        @Override
+        public void accept(Mat frame) {
+            history.addLast(frame.clone());
+            if (history.size() > size) history.pollFirst().release();
+
+            // the same pruned sorting network as the filter, on copies with fresh min / max results
+            int count = history.size();
+            if (networks[count] == null) networks[count] = TemporalFilter.Median.network(count);
+            List<Mat> values = new ArrayList<>();
+            for (Mat m : history) values.add(m.clone());
+            for (int[] c : networks[count]) {
+                Mat lo = new Mat(), hi = new Mat();
+                Core.min(values.get(c[0]), values.get(c[1]), lo);
+                Core.max(values.get(c[0]), values.get(c[1]), hi);
+                values.get(c[0]).release();
+                values.get(c[1]).release();
+                values.set(c[0], lo);
+                values.set(c[1], hi);
+            }
+            Mat out = new Mat();
+            if (count % 2 == 1) values.get(count / 2).copyTo(out);
+            else Core.addWeighted(values.get(count / 2 - 1), 0.5, values.get(count / 2), 0.5, 0, out);
+            out.release();
+            for (Mat m : values) m.release();
+        }
+    }
+
+    private static final class DifferenceByHand implements Consumer<Mat> {
+        private final double threshold;
+        private Mat previous;
+
+        DifferenceByHand(double threshold) { this.threshold = threshold; }
+
+        @Override
+        public void accept(Mat frame) {
+            if (previous != null) {
+                Mat diff = new Mat();
+                Core.absdiff(frame, previous, diff);
+                Imgproc.threshold(diff, diff, threshold, 255, Imgproc.THRESH_BINARY);
+                diff.release();
+                previous.release();
+            }
+            previous = frame.clone();
+        }
+    }
+
+    // METHODS -- COMMAND LINE --
+
+    /**
+     * Command line entry, see class description for arguments.
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        int width = 1920, height = 1080, iterations = 100;
+        int positional = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-iterations")) iterations = Integer.parseInt(args[++i]);
+            else if (positional++ == 0) width = Integer.parseInt(args[i]);
+            else height = Integer.parseInt(args[i]);
+        }
+
+        TemporalFilterBenchmark benchmark = new TemporalFilterBenchmark(width, height);
+        benchmark.setIterations(iterations);
+        benchmark.run();
+    }
+}
@@ -0,0 +1,120 @@
+package com.plasmoxy.cvfxbase;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed resolution histogram of durations ( latencies, frame times ... ).
+ * Buckets are 0.1 ms wide and cover 0 - 1000 ms, longer durations go to the last bucket
+ * ( max is still tracked exactly ).
+ * Recording doesn't allocate and can be done from any thread.
+ *
+ * <p>
+ * Optional deadline : durations longer than deadline are counted as late.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class TimeHistogram {
+
+    /** Width of one bucket in nanoseconds */
+    public static final long BUCKET_NANOS = 100_000;
+
+    /** Number of buckets, the last one collects everything longer */
+    public static final int BUCKETS = 10_000;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(), total = new AtomicLong(), max = new AtomicLong(), late = new AtomicLong();
+    private volatile long deadline = 0;
+
+    // METHODS -- ACCESSORS --
+
+    /**
+     * Sets the deadline, durations above it are counted as late ( 0 turns it off ).
+     * @param nanos deadline in nanoseconds
+     */
+    public void setDeadline(long nanos) { deadline = nanos < 0 ? 0 : nanos; }
+
+    /**
+     * Gets the deadline.
+     * @return deadline in nanoseconds, 0 if not set
+     */
+    public long getDeadline() { return deadline; }
+
+    /** @return number of recorded durations */
+    public long getCount() { return count.get(); }
+
+    /** @return number of durations over the deadline */
+    public long getLateCount() { return late.get(); }
+
+    /** @return the longest recorded duration in nanoseconds */
+    public long getMax() { return max.get(); }
+
+    /** @return mean duration in nanoseconds */
+    public long getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : total.get() / c;
+    }
+
+    // METHODS -- HISTOGRAM --
+
+    /**
+     * Records one duration.
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = (int)Math.min(nanos / BUCKET_NANOS, BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long d = deadline;
+        if (d > 0 && nanos > d) late.incrementAndGet();
+
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) { /* retry */ }
+    }
+
+    /**
+     * Gets a percentile of recorded durations ( upper edge of the bucket, so it is rounded up to 0.1 ms ).
+     * @param percent percentile, for example 99 or 99.9
+     * @return duration in nanoseconds
+     */
+    public long getPercentile(double percent) {
+        long c = count.get();
+        if (c == 0) return 0;
+        long rank = (long)Math.ceil(c * percent / 100.0);
+        if (rank < 1) rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return i == BUCKETS - 1 ? max.get() : Math.min((i + 1) * BUCKET_NANOS, max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all recorded durations, deadline is kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+        late.set(0);
+    }
+
+    /**
+     * Short text summary, used in info label.
+     * @return summary like "p50 12.3 ms, p99 30.1 ms, max 41.0 ms, late 3/900"
+     */
+    public String summary() {
+        return "p50 " + CVUtility.nanosToMillis(getPercentile(50)) + " ms"
+                + ", p99 " + CVUtility.nanosToMillis(getPercentile(99)) + " ms"
+                + ", max " + CVUtility.nanosToMillis(getMax()) + " ms"
+                + (deadline > 0 ? ", late " + getLateCount() + "/" + getCount() : "");
+    }
+
+    @Override
+    public String toString() { return summary(); }
+}
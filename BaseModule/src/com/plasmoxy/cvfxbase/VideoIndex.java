@@ -0,0 +1,420 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keyframe and timestamp index of a video file, frames are numbered in presentation order from 0 like
+ * CAP_PROP_POS_FRAMES. It is read from the container without decoding - MP4 / MOV ( stss, stts, ctts of the video
+ * track ) and AVI ( idx1 ). Other containers get an index without keyframes, with timestamps from the frame rate.
+ *
+ * <p>
+ * The index is cached next to the video ( "video.mp4.cvfxidx" ) and rebuilt when the video changes
+ * ( size or modification time ). If the directory isn't writable the index is just built every time.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class VideoIndex {
+
+    private static final int MAGIC = 0x43564958; // "CVIX"
+    private static final int VERSION = 1;
+
+    private final int frameCount;
+    private final int[] keyframes; // sorted, null when unknown
+    private final double[] timestamps; // milliseconds from the first frame
+
+    private VideoIndex(int frameCount, int[] keyframes, double[] timestamps) {
+        this.frameCount = frameCount;
+        this.keyframes = keyframes;
+        this.timestamps = timestamps;
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @return number of frames */
+    public int getFrameCount() { return frameCount; }
+
+    /** @return true if keyframes are known, else every seek goes through OpenCV */
+    public boolean hasKeyframes() { return keyframes != null; }
+
+    /** @return number of keyframes, 0 if unknown */
+    public int getKeyframeCount() { return keyframes == null ? 0 : keyframes.length; }
+
+    /**
+     * Nearest keyframe at or before a frame, decoding from it gives the frame.
+     * @param frame frame number
+     * @return keyframe number, the frame itself when keyframes are unknown
+     */
+    public int keyframeBefore(int frame) {
+        if (keyframes == null) return frame;
+        int i = Arrays.binarySearch(keyframes, frame);
+        if (i >= 0) return keyframes[i];
+        i = -i - 2; // last keyframe below
+        return i >= 0 ? keyframes[i] : 0;
+    }
+
+    /**
+     * Next keyframe after a frame, end of its GOP.
+     * @param frame frame number
+     * @return keyframe number, or frame count after the last GOP ( frame + 1 when keyframes are unknown )
+     */
+    public int keyframeAfter(int frame) {
+        if (keyframes == null) return Math.min(frame + 1, frameCount);
+        int i = Arrays.binarySearch(keyframes, frame + 1);
+        if (i < 0) i = -i - 1;
+        return i < keyframes.length ? keyframes[i] : frameCount;
+    }
+
+    /**
+     * @param frame frame number
+     * @return presentation time in milliseconds from the first frame
+     */
+    public double getTimestamp(int frame) {
+        return timestamps[Math.max(0, Math.min(frameCount - 1, frame))];
+    }
+
+    /**
+     * @param millis time from the first frame
+     * @return frame shown at that time
+     */
+    public int frameAt(double millis) {
+        int i = Arrays.binarySearch(timestamps, millis);
+        if (i < 0) i = -i - 2;
+        return Math.max(0, Math.min(frameCount - 1, i));
+    }
+
+    @Override
+    public String toString() {
+        return frameCount + " frames, " + (keyframes == null ? "keyframes unknown" : keyframes.length + " keyframes");
+    }
+
+    // METHODS -- LOADING --
+
+    /**
+     * Loads the cached index of a video or builds it ( and caches it ).
+     * @param video video file
+     * @return the index
+     * @throws IOException if the video cannot be read
+     */
+    public static VideoIndex forVideo(File video) throws IOException {
+        File cache = new File(video.getPath() + ".cvfxidx");
+        if (cache.isFile()) {
+            try {
+                VideoIndex cached = read(cache, video);
+                if (cached != null) return cached;
+            } catch (IOException | RuntimeException e) { // truncated or corrupted cache is just stale
+                AsyncLog.log("VideoIndex", "ERROR : cannot read " + cache + ", rebuilding ( " + e + " )");
+            }
+        }
+
+        VideoIndex index = build(video);
+        try {
+            write(index, cache, video);
+        } catch (IOException e) {
+            AsyncLog.log("VideoIndex", "ERROR : cannot cache index next to the video ( " + e.getMessage() + " )");
+        }
+        return index;
+    }
+
+    /**
+     * Builds the index from the container, falls back to frame rate timing.
+     * @param video video file
+     * @return the index
+     * @throws IOException if the video cannot be read
+     */
+    public static VideoIndex build(File video) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(video, "r")) {
+            String head = file.length() >= 12 ? readType(file, 0, 12) : "";
+            if (head.startsWith("RIFF") && head.endsWith("AVI ")) {
+                VideoIndex index = parseAvi(file);
+                if (index != null) return index;
+            } else if (!head.isEmpty() && isMp4Box(head.substring(4, 8))) {
+                VideoIndex index = parseMp4(file);
+                if (index != null) return index;
+            }
+        }
+        return fromCapture(video);
+    }
+
+    /**
+     * Index without keyframes from frame count and rate reported by OpenCV.
+     */
+    private static VideoIndex fromCapture(File video) throws IOException {
+        VideoCapture capture = new VideoCapture(video.getPath());
+        if (!capture.isOpened()) throw new IOException("Cannot open video " + video);
+        int count = (int)capture.get(Videoio.CAP_PROP_FRAME_COUNT);
+        double fps = capture.get(Videoio.CAP_PROP_FPS);
+        capture.release();
+        if (fps <= 0) fps = 30;
+        double[] ts = new double[Math.max(0, count)];
+        for (int i = 0; i < ts.length; i++) ts[i] = i * 1000 / fps;
+        return new VideoIndex(ts.length, null, ts);
+    }
+
+    // METHODS -- CACHE FILE --
+
+    private static VideoIndex read(File cache, File video) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (in.readLong() != video.length() || in.readLong() != video.lastModified()) return null; // video changed
+            int count = in.readInt();
+            int keys = in.readInt();
+            // counts are checked against the file, a corrupted one would allocate anything
+            long length = cache.length();
+            if (count < 0 || keys < -1 || keys > count || 32 + 4L * Math.max(keys, 0) + 8L * count != length) {
+                throw new IOException("bad counts " + count + " / " + keys + " for " + length + " bytes");
+            }
+            int[] keyframes = keys < 0 ? null : new int[keys];
+            for (int i = 0; i < keys; i++) {
+                keyframes[i] = in.readInt();
+                if (keyframes[i] < 0 || keyframes[i] >= count || (i > 0 && keyframes[i] <= keyframes[i - 1])) {
+                    throw new IOException("bad keyframe " + keyframes[i]);
+                }
+            }
+            double[] ts = new double[count];
+            for (int i = 0; i < count; i++) ts[i] = in.readDouble();
+            return new VideoIndex(count, keyframes, ts);
+        }
+    }
+
+    private static void write(VideoIndex index, File cache, File video) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(video.length());
+            out.writeLong(video.lastModified());
+            out.writeInt(index.frameCount);
+            out.writeInt(index.keyframes == null ? -1 : index.keyframes.length);
+            if (index.keyframes != null) for (int k : index.keyframes) out.writeInt(k);
+            for (double t : index.timestamps) out.writeDouble(t);
+        }
+    }
+
+    // METHODS -- AVI --
+
+    /**
+     * Reads video chunks of idx1, null if there is none ( OpenDML files ).
+     */
+    private static VideoIndex parseAvi(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        double fps = 0;
+        String videoStream = null;
+
+        // stream headers in hdrl, the first 'vids' stream is the video
+        long pos = 12, idx1 = -1;
+        int streamNumber = 0;
+        List<long[]> lists = new ArrayList<>();
+        lists.add(new long[] {12, length});
+        while (!lists.isEmpty()) {
+            long[] range = lists.remove(0);
+            pos = range[0];
+            while (pos + 8 <= range[1]) {
+                String id = readType(file, pos, 4);
+                long size = readLe32(file, pos + 4);
+                if (id.equals("LIST")) {
+                    String listType = readType(file, pos + 8, 4);
+                    if (listType.equals("hdrl") || listType.equals("strl")) lists.add(0, new long[] {pos + 12, pos + 8 + size});
+                } else if (id.equals("strh")) {
+                    if (videoStream == null && readType(file, pos + 8, 4).equals("vids")) {
+                        videoStream = String.format("%02d", streamNumber);
+                        long scale = readLe32(file, pos + 8 + 20), rate = readLe32(file, pos + 8 + 24);
+                        if (scale > 0) fps = (double)rate / scale;
+                    }
+                    streamNumber++;
+                } else if (id.equals("idx1")) {
+                    idx1 = pos;
+                }
+                pos += 8 + size + (size & 1);
+            }
+        }
+        if (videoStream == null || idx1 < 0 || fps <= 0) return null;
+
+        long entries = readLe32(file, idx1 + 4) / 16;
+        byte[] table = new byte[(int)(entries * 16)];
+        file.seek(idx1 + 8);
+        file.readFully(table);
+
+        List<Integer> keys = new ArrayList<>();
+        int frames = 0;
+        for (int e = 0; e < entries; e++) {
+            int o = e * 16;
+            String id = new String(table, o, 4, StandardCharsets.US_ASCII);
+            if (!id.startsWith(videoStream) || !(id.endsWith("dc") || id.endsWith("db"))) continue;
+            int flags = (table[o + 4] & 0xFF) | (table[o + 5] & 0xFF) << 8;
+            if ((flags & 0x10) != 0) keys.add(frames); // AVIIF_KEYFRAME
+            frames++;
+        }
+        if (frames == 0) return null;
+
+        double[] ts = new double[frames];
+        for (int i = 0; i < frames; i++) ts[i] = i * 1000 / fps;
+        return new VideoIndex(frames, toArray(keys), ts);
+    }
+
+    // METHODS -- MP4 --
+
+    private static boolean isMp4Box(String type) {
+        return type.equals("ftyp") || type.equals("moov") || type.equals("mdat") || type.equals("wide") || type.equals("free");
+    }
+
+    /**
+     * Reads sample tables of the first video track, null if there is none ( fragmented files ).
+     */
+    private static VideoIndex parseMp4(RandomAccessFile file) throws IOException {
+        long[] moov = findBox(file, 0, file.length(), "moov");
+        if (moov == null) return null;
+
+        for (long pos = moov[0]; pos < moov[1]; ) {
+            long[] trak = findBox(file, pos, moov[1], "trak");
+            if (trak == null) break;
+            pos = trak[2];
+
+            long[] mdia = findBox(file, trak[0], trak[1], "mdia");
+            if (mdia == null) continue;
+            long[] hdlr = findBox(file, mdia[0], mdia[1], "hdlr");
+            if (hdlr == null || !readType(file, hdlr[0] + 8, 4).equals("vide")) continue;
+
+            long[] mdhd = findBox(file, mdia[0], mdia[1], "mdhd");
+            long[] minf = findBox(file, mdia[0], mdia[1], "minf");
+            long[] stbl = minf == null ? null : findBox(file, minf[0], minf[1], "stbl");
+            if (mdhd == null || stbl == null) return null;
+            long timescale = readBe32(file, mdhd[0] + (readByte(file, mdhd[0]) == 1 ? 20 : 12));
+            if (timescale <= 0) return null;
+
+            long[] stts = findBox(file, stbl[0], stbl[1], "stts");
+            if (stts == null) return null;
+            long[] dts = readDecodeTimes(file, stts[0]);
+            int count = dts.length;
+            if (count == 0) return null;
+
+            // presentation times, ctts offsets reorder frames with B-frames
+            long[] pts = dts.clone();
+            long[] ctts = findBox(file, stbl[0], stbl[1], "ctts");
+            if (ctts != null) {
+                int version = readByte(file, ctts[0]);
+                long entries = readBe32(file, ctts[0] + 4), p = ctts[0] + 8;
+                for (int e = 0, s = 0; e < entries && s < count; e++, p += 8) {
+                    long n = readBe32(file, p);
+                    long offset = version == 1 ? (int)readBe32(file, p + 4) : readBe32(file, p + 4);
+                    for (long i = 0; i < n && s < count; i++) pts[s++] += offset;
+                }
+            }
+
+            // presentation rank of every sample
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(pts[a], pts[b]));
+            int[] rank = new int[count];
+            double[] ts = new double[count];
+            long first = pts[order[0]];
+            for (int r = 0; r < count; r++) {
+                rank[order[r]] = r;
+                ts[r] = (pts[order[r]] - first) * 1000.0 / timescale;
+            }
+
+            // sync samples, no stss means every sample is a keyframe
+            int[] keyframes;
+            long[] stss = findBox(file, stbl[0], stbl[1], "stss");
+            if (stss == null) {
+                keyframes = new int[count];
+                for (int i = 0; i < count; i++) keyframes[i] = i;
+            } else {
+                long entries = readBe32(file, stss[0] + 4);
+                List<Integer> keys = new ArrayList<>();
+                for (long e = 0; e < entries; e++) {
+                    long sample = readBe32(file, stss[0] + 8 + e * 4) - 1; // 1-based
+                    if (sample >= 0 && sample < count) keys.add(rank[(int)sample]);
+                }
+                keyframes = toArray(keys);
+                Arrays.sort(keyframes);
+            }
+            return new VideoIndex(count, keyframes, ts);
+        }
+        return null;
+    }
+
+    /**
+     * Decode times of samples from an stts box.
+     */
+    private static long[] readDecodeTimes(RandomAccessFile file, long stts) throws IOException {
+        long entries = readBe32(file, stts + 4), total = 0;
+        for (long e = 0; e < entries; e++) total += readBe32(file, stts + 8 + e * 8);
+        if (total > Integer.MAX_VALUE) throw new IOException("Too many samples " + total);
+        long[] dts = new long[(int)total];
+        long time = 0;
+        int s = 0;
+        for (long e = 0; e < entries; e++) {
+            long n = readBe32(file, stts + 8 + e * 8), delta = readBe32(file, stts + 12 + e * 8);
+            for (long i = 0; i < n; i++, time += delta) dts[s++] = time;
+        }
+        return dts;
+    }
+
+    /**
+     * Finds a child box in a range.
+     * @return content start ( after header ), end of the box and position after it, or null
+     */
+    private static long[] findBox(RandomAccessFile file, long from, long to, String type) throws IOException {
+        long pos = from;
+        while (pos + 8 <= to) {
+            long size = readBe32(file, pos);
+            String t = readType(file, pos + 4, 4);
+            long header = 8;
+            if (size == 1) {
+                file.seek(pos + 8);
+                size = file.readLong();
+                header = 16;
+            } else if (size == 0) {
+                size = to - pos;
+            }
+            if (size < header) return null; // broken
+            if (t.equals(type)) return new long[] {pos + header, pos + size, pos + size};
+            pos += size;
+        }
+        return null;
+    }
+
+    // METHODS -- BYTES --
+
+    private static String readType(RandomAccessFile file, long pos, int length) throws IOException {
+        byte[] b = new byte[length];
+        file.seek(pos);
+        file.readFully(b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    private static int readByte(RandomAccessFile file, long pos) throws IOException {
+        file.seek(pos);
+        return file.readUnsignedByte();
+    }
+
+    private static long readBe32(RandomAccessFile file, long pos) throws IOException {
+        file.seek(pos);
+        return file.readInt() & 0xFFFFFFFFL;
+    }
+
+    private static long readLe32(RandomAccessFile file, long pos) throws IOException {
+        file.seek(pos);
+        return Integer.reverseBytes(file.readInt()) & 0xFFFFFFFFL;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++) a[i] = list.get(i);
+        return a;
+    }
+}
@@ -0,0 +1,644 @@
+package com.plasmoxy.cvfxbase;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of worker JVMs running the process method out of the gui process.
+ * Heavy detectors with a lot of native memory don't share the heap and address space with JavaFX,
+ * throughput scales with the number of workers and when native code crashes a worker, only that worker dies -
+ * it is restarted in the background and rendering goes on.
+ *
+ * <p>
+ * Every worker is a JVM with the same classpath, module options ( module path, added modules, opens, native access )
+ * and library path running a headless instance of the controller class.
+ * Frames and results travel over a loopback socket as raw 8 bit pixels. Frames are given to workers round robin,
+ * results are delivered back in submission order. Frames of a dead worker are reported as failed,
+ * so the order never stalls. User input ( sliders, toggles, buttons ) is forwarded to all workers
+ * and replayed to restarted ones.
+ *
+ * <p>
+ * Start it with setWorkerPool on the controller, frames are then processed by workers and the local process method
+ * isn't called. Overlays of workers are burned into the results. Workers see only part of the frames
+ * ( like BatchRunner ), so state kept between frames in the controller sees only part of the sequence.
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class WorkerPool implements AutoCloseable {
+
+    private static final byte FRAME = 1, CONTROL = 2, RESULT = 3, ERROR = 4;
+
+    /** Options of this JVM which workers need to load the same classes, given as --option=value by the runtime */
+    private static final String[] FORWARDED_OPTIONS = {"--module-path=", "--upgrade-module-path=", "--add-modules=",
+            "--add-exports=", "--add-opens=", "--add-reads=", "--patch-module=", "--enable-native-access=", "--enable-preview"};
+
+    /**
+     * Processed frame returned by a worker.
+     */
+    public static class Result {
+        private final long sequence;
+        private final Mat main, alpha, beta;
+        private final boolean failed;
+        private long submitted;
+
+        private Result(long sequence, Mat main, Mat alpha, Mat beta, boolean failed) {
+            this.sequence = sequence;
+            this.main = main;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.failed = failed;
+        }
+
+        /** @return frame number given to submit */
+        public long getSequence() { return sequence; }
+
+        /** @return System.nanoTime when the frame was submitted */
+        public long getSubmitted() { return submitted; }
+
+        /** @return true if the worker failed or died, Mats are empty then */
+        public boolean isFailed() { return failed; }
+
+        /** @return processed MAIN frame */
+        public Mat getMain() { return main; }
+
+        /** @return ALPHA frame ( empty if not computed ) */
+        public Mat getAlpha() { return alpha; }
+
+        /** @return BETA frame ( empty if not computed ) */
+        public Mat getBeta() { return beta; }
+
+        /** Releases the Mats */
+        public void release() {
+            main.release();
+            alpha.release();
+            beta.release();
+        }
+    }
+
+    /**
+     * Message waiting to be sent to a worker.
+     */
+    private static class Message {
+        final byte type;
+        final long sequence;
+        final int views;
+        final Mat frame;
+        final String control, value;
+
+        Message(byte type, long sequence, int views, Mat frame, String control, String value) {
+            this.type = type;
+            this.sequence = sequence;
+            this.views = views;
+            this.frame = frame;
+            this.control = control;
+            this.value = value;
+        }
+    }
+
+    /** Wakes a sender of a closed connection up */
+    private static final Message WAKE = new Message((byte)0, 0, 0, null, null, null);
+
+    /**
+     * One worker process with its connection.
+     */
+    private class Worker {
+        final int id;
+        final BlockingQueue<Message> outbox = new LinkedBlockingQueue<>();
+        final ArrayDeque<Long> inFlight = new ArrayDeque<>();
+        Process process;
+        Socket socket;
+        volatile boolean connected;
+        volatile int generation;
+
+        Worker(int id) { this.id = id; }
+    }
+
+    // FIELDS -- CONFIG --
+
+    private final Class<? extends CVFXController> controllerClass;
+    private final int size;
+    private int maxInFlight = 2;
+    private long timeoutNanos = 5_000_000_000L;
+    private final List<String> jvmOptions = new ArrayList<>();
+
+    // FIELDS -- STATE --
+
+    private final long token = new SecureRandom().nextLong();
+    private ServerSocket server;
+    private Worker[] workers;
+    private int nextWorker = 0;
+    private volatile boolean closed = false;
+
+    private final ArrayDeque<Long> order = new ArrayDeque<>(); // submitted sequences, submit/poll thread only
+    private final Map<Long, Long> submitTimes = new HashMap<>(); // submit/poll thread only
+    private final Map<Long, Result> done = new ConcurrentHashMap<>();
+    private final Map<String, String> controls = new LinkedHashMap<>(); // last value of every slider and toggle
+    private final AtomicLong dropped = new AtomicLong(), failedFrames = new AtomicLong(), restarts = new AtomicLong();
+
+    /**
+     * Creates a pool, start it with start().
+     * @param controllerClass controller class instantiated by workers ( needs a no argument constructor )
+     * @param size number of worker processes
+     */
+    public WorkerPool(Class<? extends CVFXController> controllerClass, int size) {
+        this.controllerClass = controllerClass;
+        this.size = Math.max(1, size);
+    }
+
+    // METHODS -- ACCESSORS --
+
+    /** @param frames frames queued or processed by one worker at most, default 2 ( more frames are dropped ) */
+    public void setMaxInFlight(int frames) { maxInFlight = Math.max(1, frames); }
+
+    /** @param millis time after which a worker which didn't return a frame is killed and restarted, default 5000 */
+    public void setTimeout(long millis) { timeoutNanos = millis * 1_000_000; }
+
+    /** @param options extra JVM options of workers, for example -Xmx512m ( module options of this JVM are forwarded already ) */
+    public void addJvmOptions(String... options) { jvmOptions.addAll(List.of(options)); }
+
+    /** @return number of workers */
+    public int getSize() { return size; }
+
+    /** @return frames dropped because all workers were busy */
+    public long getDropped() { return dropped.get(); }
+
+    /** @return frames which failed in workers or were lost with dead workers */
+    public long getFailed() { return failedFrames.get(); }
+
+    /** @return number of worker restarts */
+    public long getRestarts() { return restarts.get(); }
+
+    /** @return number of connected workers */
+    public int getConnected() {
+        int n = 0;
+        if (workers != null) for (Worker w : workers) if (w.connected) n++;
+        return n;
+    }
+
+    // METHODS -- POOL --
+
+    /**
+     * Opens the loopback socket and launches the workers, returns without waiting for them to connect.
+     * @throws IOException if the socket or a process cannot be started
+     */
+    public void start() throws IOException {
+        server = new ServerSocket(0, size * 2, InetAddress.getLoopbackAddress());
+        workers = new Worker[size];
+        for (int i = 0; i < size; i++) workers[i] = new Worker(i);
+
+        Thread acceptor = new Thread(this::accept, "WorkerPool acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (Worker w : workers) launch(w);
+    }
+
+    /**
+     * Submits a frame to the next free worker, never blocks - the frame is copied and sent by a sender thread.
+     * @param sequence frame number
+     * @param frame frame to process
+     * @param main compute MAIN view
+     * @param alpha compute ALPHA view
+     * @param beta compute BETA view
+     * @return false if all workers were busy and the frame was dropped
+     */
+    public boolean submit(long sequence, Mat frame, boolean main, boolean alpha, boolean beta) {
+        for (int i = 0; i < size; i++) {
+            Worker w = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % size;
+            synchronized (w) {
+                if (!w.connected || w.inFlight.size() >= maxInFlight) continue;
+                w.inFlight.add(sequence);
+                w.outbox.add(new Message(FRAME, sequence, (main ? 1 : 0) | (alpha ? 2 : 0) | (beta ? 4 : 0), frame.clone(), null, null));
+            }
+            order.add(sequence);
+            submitTimes.put(sequence, System.nanoTime());
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Takes the next result in submission order, if it is ready. Call on the thread which submits.
+     * A worker which holds the next frame for longer than the timeout is killed.
+     * @return next result or null if it isn't ready yet
+     */
+    public Result poll() {
+        Long next = order.peek();
+        if (next == null) return null;
+
+        Result r = done.remove(next);
+        if (r == null) {
+            if (System.nanoTime() - submitTimes.get(next) > timeoutNanos) killHolder(next);
+            return null;
+        }
+        order.poll();
+        r.submitted = submitTimes.remove(next);
+        return r;
+    }
+
+    /**
+     * Forwards user input to all workers ( and remembers sliders and toggles for restarted workers ).
+     * @param control control name like sliderA, toggleB, buttonC
+     * @param value slider value, toggle state or null for buttons
+     */
+    public void sendControl(String control, String value) {
+        if (value != null) {
+            synchronized (controls) {
+                controls.remove(control); // keep the order of the last changes
+                controls.put(control, value);
+            }
+        }
+        for (Worker w : workers) {
+            synchronized (w) {
+                if (w.connected) w.outbox.add(new Message(CONTROL, 0, 0, null, control, value));
+            }
+        }
+    }
+
+    /**
+     * Stops all workers.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (workers != null) {
+            for (Worker w : workers) {
+                synchronized (w) {
+                    disconnect(w);
+                    if (w.process != null) w.process.destroy();
+                }
+            }
+        }
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {}
+        for (Result r : done.values()) r.release();
+        done.clear();
+    }
+
+    // METHODS -- WORKERS --
+
+    /**
+     * Starts a worker process, it connects back to the server socket.
+     */
+    private void launch(Worker w) {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            for (String option : FORWARDED_OPTIONS) {
+                if (argument.startsWith(option)) {
+                    command.add(argument);
+                    break;
+                }
+            }
+        }
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+        command.add(WorkerPool.class.getName());
+        command.add(controllerClass.getName());
+        command.add(String.valueOf(server.getLocalPort()));
+        command.add(String.valueOf(w.id));
+        command.add(String.valueOf(token));
+
+        try {
+            Process p = new ProcessBuilder(command).inheritIO().start();
+            synchronized (w) {
+                if (closed) { // closed while starting, close didn't see this process
+                    p.destroy();
+                    return;
+                }
+                w.process = p;
+            }
+            p.onExit().thenRun(() -> exited(w, p));
+        } catch (IOException e) {
+            AsyncLog.log("WorkerPool", "ERROR : cannot start worker " + w.id + " : " + e);
+        }
+    }
+
+    /**
+     * Starts a worker again when its process exited before it connected ( after a second, so a failing worker doesn't spin ).
+     * Connected workers are restarted by their receiver.
+     */
+    private void exited(Worker w, Process p) {
+        synchronized (w) {
+            if (closed || w.process != p || w.connected) return;
+            w.process = null; // restarting, the slot has no process until launch
+        }
+        AsyncLog.log("WorkerPool", "ERROR : worker " + w.id + " exited with code " + p.exitValue() + " before connecting, restarting");
+        restarts.incrementAndGet();
+        CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS).execute(() -> {
+            if (!closed) launch(w);
+        });
+    }
+
+    /**
+     * Accepts worker connections and attaches them to their slots.
+     */
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                int id = in.readInt();
+                if (in.readLong() != token || id < 0 || id >= size) {
+                    socket.close();
+                    continue;
+                }
+                attach(workers[id], socket, in);
+            } catch (IOException e) {
+                if (!closed) AsyncLog.log("WorkerPool", "ERROR : accept failed : " + e);
+            }
+        }
+    }
+
+    /**
+     * Connects a started worker, replays remembered controls and starts its sender and receiver threads.
+     * A connection to a slot which is already connected is closed.
+     */
+    private void attach(Worker w, Socket socket, DataInputStream in) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        int generation;
+        synchronized (w) {
+            if (w.connected) { // a second process of the slot, the connected one stays
+                socket.close();
+                AsyncLog.log("WorkerPool", "ERROR : worker " + w.id + " is already connected, connection rejected");
+                return;
+            }
+            w.socket = socket;
+            w.generation++;
+            generation = w.generation;
+            synchronized (controls) {
+                for (Map.Entry<String, String> c : controls.entrySet()) w.outbox.add(new Message(CONTROL, 0, 0, null, c.getKey(), c.getValue()));
+            }
+            w.connected = true;
+        }
+
+        Thread sender = new Thread(() -> send(w, generation, out), "WorkerPool sender " + w.id);
+        Thread receiver = new Thread(() -> receive(w, generation, in), "WorkerPool receiver " + w.id);
+        sender.setDaemon(true);
+        receiver.setDaemon(true);
+        sender.start();
+        receiver.start();
+    }
+
+    /**
+     * Sends queued messages to a worker.
+     */
+    private void send(Worker w, int generation, DataOutputStream out) {
+        byte[] buffer = new byte[0];
+        try {
+            while (true) {
+                Message m = w.outbox.take();
+                if (w.generation != generation) {
+                    if (m.frame != null) m.frame.release();
+                    return;
+                }
+                if (m == WAKE) continue;
+                out.writeByte(m.type);
+                if (m.type == FRAME) {
+                    out.writeLong(m.sequence);
+                    out.writeByte(m.views);
+                    buffer = writeMat(out, m.frame, buffer);
+                    m.frame.release();
+                } else {
+                    out.writeUTF(m.control);
+                    out.writeBoolean(m.value != null);
+                    if (m.value != null) out.writeUTF(m.value);
+                }
+                if (w.outbox.isEmpty()) out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            died(w, generation, e);
+        } catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * Receives results of a worker.
+     */
+    private void receive(Worker w, int generation, DataInputStream in) {
+        byte[] buffer = new byte[0];
+        try {
+            while (true) {
+                byte type = in.readByte();
+                long sequence = in.readLong();
+                Result r;
+                if (type == RESULT) {
+                    Mat main = new Mat(), alpha = new Mat(), beta = new Mat();
+                    buffer = readMat(in, main, buffer);
+                    buffer = readMat(in, alpha, buffer);
+                    buffer = readMat(in, beta, buffer);
+                    r = new Result(sequence, main, alpha, beta, false);
+                } else {
+                    AsyncLog.log("WorkerPool", "ERROR : worker " + w.id + " failed on frame " + sequence + " : " + in.readUTF());
+                    failedFrames.incrementAndGet();
+                    r = failedResult(sequence);
+                }
+                synchronized (w) {
+                    w.inFlight.remove(sequence);
+                }
+                done.put(sequence, r);
+            }
+        } catch (IOException | RuntimeException e) {
+            died(w, generation, e);
+        }
+    }
+
+    /**
+     * Handles a dead worker - its frames fail, it is started again.
+     */
+    private void died(Worker w, int generation, Exception cause) {
+        synchronized (w) {
+            if (w.generation != generation || !w.connected) return; // already handled
+            disconnect(w);
+            if (w.process != null) w.process.destroyForcibly();
+            w.process = null; // restarting, exited of the killed process must not launch another one
+        }
+        if (closed) return;
+        AsyncLog.log("WorkerPool", "ERROR : worker " + w.id + " died ( " + (cause instanceof EOFException ? "connection closed" : cause) + " ), restarting");
+        restarts.incrementAndGet();
+        launch(w);
+    }
+
+    /**
+     * Disconnects a worker, fails its frames and drops its queued messages. Call with the worker locked.
+     */
+    private void disconnect(Worker w) {
+        w.connected = false;
+        w.generation++; // sender and receiver of the old connection stop
+        try {
+            if (w.socket != null) w.socket.close();
+        } catch (IOException ignored) {}
+        for (Long sequence : w.inFlight) {
+            failedFrames.incrementAndGet();
+            done.put(sequence, failedResult(sequence));
+        }
+        w.inFlight.clear();
+        Message m;
+        while ((m = w.outbox.poll()) != null) if (m.frame != null) m.frame.release();
+        w.outbox.add(WAKE); // old sender stops
+    }
+
+    /**
+     * Kills the worker which holds a frame ( it is restarted by its receiver ).
+     */
+    private void killHolder(long sequence) {
+        for (Worker w : workers) {
+            synchronized (w) {
+                if (w.inFlight.contains(sequence) && w.process != null && w.process.isAlive()) {
+                    AsyncLog.log("WorkerPool", "ERROR : worker " + w.id + " timed out on frame " + sequence + ", killing");
+                    w.process.destroyForcibly();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static Result failedResult(long sequence) {
+        return new Result(sequence, new Mat(), new Mat(), new Mat(), true);
+    }
+
+    // METHODS -- PROTOCOL --
+
+    /**
+     * Writes a Mat as rows, cols, type, byte length and pixels ( 0 rows for an empty Mat ).
+     */
+    private static byte[] writeMat(DataOutputStream out, Mat mat, byte[] buffer) throws IOException {
+        if (mat.empty()) {
+            out.writeInt(0);
+            return buffer;
+        }
+        if (CvType.depth(mat.type()) != CvType.CV_8U) throw new IOException("Only 8 bit frames can be sent to workers, got " + mat);
+        int length = (int)(mat.total() * mat.elemSize());
+        if (buffer.length < length) buffer = new byte[length];
+        mat.get(0, 0, buffer);
+        out.writeInt(mat.rows());
+        out.writeInt(mat.cols());
+        out.writeInt(mat.type());
+        out.writeInt(length);
+        out.write(buffer, 0, length);
+        return buffer;
+    }
+
+    /**
+     * Reads a Mat written by writeMat.
+     */
+    private static byte[] readMat(DataInputStream in, Mat mat, byte[] buffer) throws IOException {
+        int rows = in.readInt();
+        if (rows == 0) {
+            mat.release();
+            return buffer;
+        }
+        int cols = in.readInt(), type = in.readInt(), length = in.readInt();
+        if (buffer.length < length) buffer = new byte[length];
+        in.readFully(buffer, 0, length);
+        mat.create(rows, cols, type);
+        mat.put(0, 0, buffer);
+        return buffer;
+    }
+
+    // METHODS -- WORKER PROCESS --
+
+    /**
+     * Worker process entry, started by the pool : controllerClass port id token.
+     * @param args arguments
+     * @throws Exception if the controller cannot be created or the pool cannot be reached
+     */
+    public static void main(String[] args) throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        CVFXController controller = Class.forName(args[0]).asSubclass(CVFXController.class).getDeclaredConstructor().newInstance();
+        controller.initHeadlessController();
+        ParameterScript input = new ParameterScript();
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]));
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        out.writeInt(Integer.parseInt(args[2]));
+        out.writeLong(Long.parseLong(args[3]));
+        out.flush();
+
+        byte[] buffer = new byte[0];
+        Mat main = new Mat(), alpha = new Mat(), beta = new Mat(), empty = new Mat();
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type == CONTROL) {
+                    String control = in.readUTF();
+                    String value = in.readBoolean() ? in.readUTF() : null;
+                    try {
+                        input.fire(controller, control, value);
+                    } catch (RuntimeException e) {
+                        AsyncLog.log("WorkerPool", "ERROR : worker input " + control + " failed : " + e.getCause());
+                    }
+                    continue;
+                }
+
+                long sequence = in.readLong();
+                int views = in.readByte();
+                buffer = readMat(in, main, buffer);
+                alpha.release();
+                beta.release();
+                try {
+                    controller.runProcessing(main, alpha, beta, (views & 1) != 0, (views & 2) != 0, (views & 4) != 0);
+                    controller.burnOverlays(main, alpha, beta);
+                } catch (RuntimeException e) {
+                    out.writeByte(ERROR);
+                    out.writeLong(sequence);
+                    out.writeUTF(String.valueOf(e));
+                    out.flush();
+                    continue;
+                }
+                Mat[] outputs = {main, (views & 2) != 0 ? alpha : empty, (views & 4) != 0 ? beta : empty};
+                String unsendable = null;
+                for (Mat m : outputs) {
+                    if (!m.empty() && CvType.depth(m.type()) != CvType.CV_8U) unsendable = "only 8 bit views can be sent, got " + CvType.typeToString(m.type());
+                }
+                if (unsendable != null) { // checked before RESULT, a half written result would kill the worker
+                    out.writeByte(ERROR);
+                    out.writeLong(sequence);
+                    out.writeUTF(unsendable);
+                    out.flush();
+                    continue;
+                }
+                out.writeByte(RESULT);
+                out.writeLong(sequence);
+                for (Mat m : outputs) buffer = writeMat(out, m, buffer);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            System.exit(0); // pool closed
+        }
+    }
+}
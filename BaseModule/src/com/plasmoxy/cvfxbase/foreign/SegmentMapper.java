@@ -0,0 +1,59 @@
+package com.plasmoxy.cvfxbase.foreign;
+
+import com.plasmoxy.cvfxbase.MatView;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maps Mat memory for MatView with jdk.incubator.foreign, every view gets its own scope, closing the view closes it.
+ * Compile and run with --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED,
+ * MatView loads it automatically then.
+ *
+ * <p>
+ * The MemorySegment of a view is available too :
+ * <pre>
+ * MemorySegment pixels = SegmentMapper.segment(CVUtility.viewOf(frame));
+ * </pre>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class SegmentMapper implements MatView.Mapper {
+
+    /**
+     * Region over a segment in a shared scope ( any thread can use it, any thread can close it ).
+     */
+    private static class SegmentRegion implements MatView.Region {
+        private final ResourceScope scope = ResourceScope.newSharedScope();
+        private final MemorySegment segment;
+        private final ByteBuffer buffer;
+
+        SegmentRegion(long address, int length) {
+            segment = MemoryAddress.ofLong(address).asSegment(length, scope);
+            buffer = segment.asByteBuffer();
+        }
+
+        @Override
+        public ByteBuffer buffer() { return buffer; }
+
+        @Override
+        public void close() { scope.close(); }
+    }
+
+    @Override
+    public MatView.Region map(long address, int length) {
+        return new SegmentRegion(address, length);
+    }
+
+    /**
+     * Segment of a view over a Mat, it is closed with the view.
+     * @param view view from CVUtility.viewOf
+     * @return the segment
+     */
+    public static MemorySegment segment(MatView view) {
+        if (!(view.region() instanceof SegmentRegion)) throw new IllegalArgumentException("View isn't over Mat memory");
+        return ((SegmentRegion)view.region()).segment;
+    }
+}
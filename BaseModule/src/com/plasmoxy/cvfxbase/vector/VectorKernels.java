@@ -0,0 +1,194 @@
+package com.plasmoxy.cvfxbase.vector;
+
+import com.plasmoxy.cvfxbase.PixelKernels;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * SIMD backend of PixelKernels on jdk.incubator.vector, in the widest vectors of the cpu.
+ * Compile and run with --add-modules jdk.incubator.vector, PixelKernels loads it automatically then.
+ * Results are the same as of the scalar backend.
+ *
+ * <p>
+ * Own vector lane kernels can be run with map, for example a kernel which inverts and halves :
+ * <pre>
+ * VectorKernels.map(src, dst, length, v -&gt; v.not().lanewise(VectorOperators.LSHR, 1));
+ * </pre>
+ *
+ * @author <a target="_blank" href="http://github.com/Plasmoxy">Plasmoxy</a>
+ */
+public class VectorKernels implements PixelKernels.Backend {
+
+    /**
+     * User kernel on a vector of unsigned bytes ( lanes are signed Java bytes, use unsigned comparisons ).
+     */
+    public interface ByteLaneKernel {
+        /**
+         * @param v vector of channel values
+         * @return vector of new values
+         */
+        ByteVector apply(ByteVector v);
+    }
+
+    private static final VectorSpecies<Byte> B = ByteVector.SPECIES_PREFERRED;
+    // widening kernels load fewer bytes, so that the wider lanes fill exactly one vector ( parts of a conversion
+    // aren't compiled into vector instructions on JDK 17 )
+    private static final VectorSpecies<Short> S = VectorSpecies.of(short.class, VectorShape.forBitSize(Math.max(128, B.vectorBitSize())));
+    private static final VectorSpecies<Byte> BS = VectorSpecies.of(byte.class, VectorShape.forBitSize(S.vectorBitSize() / 2));
+    private static final VectorSpecies<Integer> I = VectorSpecies.of(int.class, VectorShape.forBitSize(Math.max(256, B.vectorBitSize())));
+    private static final VectorSpecies<Byte> BI = VectorSpecies.of(byte.class, VectorShape.forBitSize(I.vectorBitSize() / 4));
+
+    /**
+     * Runs a vector kernel over length bytes.
+     * @param src source bytes
+     * @param dst destination bytes ( can be src )
+     * @param length number of bytes
+     * @param kernel the kernel
+     */
+    public static void map(byte[] src, byte[] dst, int length, ByteLaneKernel kernel) {
+        int i = 0;
+        for (int upper = B.loopBound(length); i < upper; i += B.length()) {
+            kernel.apply(ByteVector.fromArray(B, src, i)).intoArray(dst, i);
+        }
+        if (i < length) {
+            VectorMask<Byte> tail = B.indexInRange(i, length);
+            kernel.apply(ByteVector.fromArray(B, src, i, tail)).intoArray(dst, i, tail);
+        }
+    }
+
+    @Override
+    public String getName() { return "vector " + B.vectorBitSize() + " bit"; }
+
+    @Override
+    public void threshold(byte[] src, byte[] dst, int length, int thresh, int maxVal, boolean inverse) {
+        byte aboveValue = (byte)(inverse ? 0 : maxVal), belowValue = (byte)(inverse ? maxVal : 0);
+        if (thresh < 0 || thresh >= 255) { // everything on one side, unsigned byte compare can't express it
+            Arrays.fill(dst, 0, length, thresh < 0 ? aboveValue : belowValue);
+            return;
+        }
+        ByteVector above = ByteVector.broadcast(B, aboveValue), below = ByteVector.broadcast(B, belowValue);
+        byte t = (byte)thresh;
+        int i = 0;
+        for (int upper = B.loopBound(length); i < upper; i += B.length()) {
+            ByteVector v = ByteVector.fromArray(B, src, i);
+            below.blend(above, v.compare(VectorOperators.UNSIGNED_GT, t)).intoArray(dst, i);
+        }
+        if (i < length) {
+            VectorMask<Byte> tail = B.indexInRange(i, length);
+            ByteVector v = ByteVector.fromArray(B, src, i, tail);
+            below.blend(above, v.compare(VectorOperators.UNSIGNED_GT, t)).intoArray(dst, i, tail);
+        }
+    }
+
+    @Override
+    public void lut(byte[] src, byte[] dst, int length, byte[] table) {
+        // 256 entry tables don't fit vector shuffles, gathers are slower than this loop
+        for (int i = 0; i < length; i++) dst[i] = table[src[i] & 0xFF];
+    }
+
+    @Override
+    public void add(byte[] a, byte[] b, byte[] dst, int length) {
+        int i = 0;
+        for (int upper = B.loopBound(length); i < upper; i += B.length()) {
+            add(ByteVector.fromArray(B, a, i), ByteVector.fromArray(B, b, i)).intoArray(dst, i);
+        }
+        if (i < length) {
+            VectorMask<Byte> tail = B.indexInRange(i, length);
+            add(ByteVector.fromArray(B, a, i, tail), ByteVector.fromArray(B, b, i, tail)).intoArray(dst, i, tail);
+        }
+    }
+
+    private static ByteVector add(ByteVector x, ByteVector y) {
+        ByteVector sum = x.add(y);
+        return sum.blend((byte)-1, sum.compare(VectorOperators.UNSIGNED_LT, x)); // wrapped around -> 255
+    }
+
+    @Override
+    public void subtract(byte[] a, byte[] b, byte[] dst, int length) {
+        int i = 0;
+        for (int upper = B.loopBound(length); i < upper; i += B.length()) {
+            subtract(ByteVector.fromArray(B, a, i), ByteVector.fromArray(B, b, i)).intoArray(dst, i);
+        }
+        if (i < length) {
+            VectorMask<Byte> tail = B.indexInRange(i, length);
+            subtract(ByteVector.fromArray(B, a, i, tail), ByteVector.fromArray(B, b, i, tail)).intoArray(dst, i, tail);
+        }
+    }
+
+    private static ByteVector subtract(ByteVector x, ByteVector y) {
+        return x.sub(y).blend((byte)0, x.compare(VectorOperators.UNSIGNED_LT, y));
+    }
+
+    @Override
+    public void absdiff(byte[] a, byte[] b, byte[] dst, int length) {
+        int i = 0;
+        for (int upper = B.loopBound(length); i < upper; i += B.length()) {
+            absdiff(ByteVector.fromArray(B, a, i), ByteVector.fromArray(B, b, i)).intoArray(dst, i);
+        }
+        if (i < length) {
+            VectorMask<Byte> tail = B.indexInRange(i, length);
+            absdiff(ByteVector.fromArray(B, a, i, tail), ByteVector.fromArray(B, b, i, tail)).intoArray(dst, i, tail);
+        }
+    }
+
+    private static ByteVector absdiff(ByteVector x, ByteVector y) {
+        return x.sub(y).blend(y.sub(x), x.compare(VectorOperators.UNSIGNED_LT, y));
+    }
+
+    @Override
+    public void scale(byte[] src, byte[] dst, int length, float alpha, float beta) {
+        // 16.16 fixed point like the scalar backend, float conversions aren't compiled into vector instructions on JDK 17
+        long gain = Math.round(alpha * 65536.0), offset = Math.round((beta + 0.5) * 65536.0);
+        if (Math.abs(gain) * 255 + Math.abs(offset) > Integer.MAX_VALUE) { // doesn't fit int lanes
+            for (int i = 0; i < length; i++) {
+                long v = ((src[i] & 0xFF) * gain + offset) >> 16;
+                dst[i] = (byte)(v < 0 ? 0 : v > 255 ? 255 : v);
+            }
+            return;
+        }
+        int g = (int)gain, o = (int)offset;
+        int i = 0;
+        for (int upper = BI.loopBound(length); i < upper; i += BI.length()) {
+            scale(ByteVector.fromArray(BI, src, i), g, o).intoArray(dst, i);
+        }
+        if (i < length) {
+            VectorMask<Byte> tail = BI.indexInRange(i, length);
+            scale(ByteVector.fromArray(BI, src, i, tail), g, o).intoArray(dst, i, tail);
+        }
+    }
+
+    private static ByteVector scale(ByteVector v, int gain, int offset) {
+        // sign extend and mask, ZERO_EXTEND_B2I fails on some JDK 17 builds
+        IntVector ints = ((IntVector)v.convertShape(VectorOperators.B2I, I, 0)).and(0xFF);
+        IntVector scaled = ints.mul(gain).add(offset).lanewise(VectorOperators.ASHR, 16).max(0).min(255);
+        return (ByteVector)scaled.convertShape(VectorOperators.I2B, BI, 0);
+    }
+
+    @Override
+    public void blend(byte[] a, byte[] b, byte[] dst, int length, int weight) {
+        short wa = (short)weight, wb = (short)(256 - weight);
+        int i = 0;
+        for (int upper = BS.loopBound(length); i < upper; i += BS.length()) {
+            blend(ByteVector.fromArray(BS, a, i), ByteVector.fromArray(BS, b, i), wa, wb).intoArray(dst, i);
+        }
+        if (i < length) {
+            VectorMask<Byte> tail = BS.indexInRange(i, length);
+            blend(ByteVector.fromArray(BS, a, i, tail), ByteVector.fromArray(BS, b, i, tail), wa, wb).intoArray(dst, i, tail);
+        }
+    }
+
+    private static ByteVector blend(ByteVector x, ByteVector y, short wa, short wb) {
+        ShortVector xs = ((ShortVector)x.convertShape(VectorOperators.B2S, S, 0)).and((short)0xFF);
+        ShortVector ys = ((ShortVector)y.convertShape(VectorOperators.B2S, S, 0)).and((short)0xFF);
+        // sum fits 16 bits unsigned, logical shift keeps it unsigned
+        ShortVector mixed = xs.mul(wa).add(ys.mul(wb)).add((short)128).lanewise(VectorOperators.LSHR, 8);
+        return (ByteVector)mixed.convertShape(VectorOperators.S2B, BS, 0);
+    }
+}
@@ -1,15 +1,18 @@
 package com.plasmoxy.cvfxexamples.circle;
 
 import com.plasmoxy.cvfxbase.CVFXController;
+import com.plasmoxy.cvfxbase.CVFXView;
+import com.plasmoxy.cvfxbase.Hud;
+import com.plasmoxy.cvfxbase.Overlay;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
 
 public class Controller extends CVFXController {
     
-    private boolean showSliderState, drawCircle;
+    private boolean drawCircle;
     private double sliderVal;
+    private final Hud.Gauge radiusGauge = getHud().gauge("Slider =", 1, ""); // shown while the slider is
     
     @Override
     protected void init() {
@@ -24,36 +27,30 @@ public class Controller extends CVFXController {
         toggleA.setText("Draw Circle");
         sliderALabel.setText("Circle Radius");
         sliderA.setValue(0);
+        radiusGauge.setVisible(false);
     }
     
     // SECTION logic
     
     @Override
     protected void process(Mat f, Mat a, Mat b) {
-        if(drawCircle) Imgproc.circle(f, new Point(640/2, 480/2), (int)sliderVal, new Scalar(0, 255, 0), 2);
+        Overlay overlay = beginOverlay(CVFXView.MAIN);
+        if(drawCircle) overlay.circle(new Point(f.width()/2, f.height()/2), (int)sliderVal, new Scalar(0, 255, 0), 2);
     }
     
     private void setCircleOn(boolean state) { // circle on or off
         drawCircle = state;
-        if (state) {
-            show(sliderA);
-            showSliderState = true;
-            sliderVal = sliderA.valueProperty().get(); // update value from slider
-        } else {
-            hide(sliderA);
-            showSliderState = false;
-        }
+        if (state) show(sliderA);
+        else hide(sliderA);
+        radiusGauge.setVisible(state);
     }
     
     // SECTION handling
     
     @Override
     protected void sliderAChanged(Number oldVal, Number newVal) {
-        if (showSliderState) {
-            sliderVal = newVal.doubleValue();
-            setInfoText(0, "Slider = " + newVal.toString());
-            updateInfoLabel();
-        }
+        sliderVal = newVal.doubleValue(); // always track, so it is right when circle is enabled ( also in headless replay )
+        radiusGauge.set(sliderVal);
     }
     
     @Override
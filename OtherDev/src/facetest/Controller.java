@@ -1,6 +1,8 @@
 package facetest;
 
 import com.plasmoxy.cvfxbase.CVFXController;
+import com.plasmoxy.cvfxbase.CVFXView;
+import com.plasmoxy.cvfxbase.Overlay;
 import javafx.application.Platform;
 import javafx.geometry.Rectangle2D;
 import javafx.stage.Screen;
@@ -29,7 +31,8 @@ public class Controller extends CVFXController {
 	@Override
 	protected void process(Mat f, Mat a, Mat b) {
 		Core.flip(f,f,1);
-		if(faceDetectActive) detectAndDisplay(f);
+		Overlay overlay = beginOverlay(CVFXView.MAIN);
+		if(faceDetectActive) detectAndDisplay(f, overlay);
 	}
 
 	@Override
@@ -37,16 +40,13 @@ public class Controller extends CVFXController {
 		faceDetectActive = active;
 	}
 
-	private void detectAndDisplay(Mat frame)
+	private void detectAndDisplay(Mat frame, Overlay overlay)
 	{
 		MatOfRect faces = new MatOfRect();
-		Mat grayFrame = new Mat();
 		MatOfRect eyes = new MatOfRect();
 
-		// convert the frame in gray scale
-		Imgproc.cvtColor(frame, grayFrame, Imgproc.COLOR_BGR2GRAY);
-		// equalize the frame histogram to improve the result
-		Imgproc.equalizeHist(grayFrame, grayFrame);
+		// gray scale frame with equalized histogram, cached in frame context
+		Mat grayFrame = getFrameContext().equalized();
 
 		// compute minimum face size (20% of the frame height, in our case)
 		if (this.absoluteFaceSize == 0)
@@ -70,7 +70,7 @@ public class Controller extends CVFXController {
 
 			for (Rect eye : eyes.toArray()) {
 				if (eye.tl().y < (face.tl().y + face.br().y)*0.5 && eye.tl().x < face.br().x && eye.tl().y > face.tl().y && eye.tl().x > face.tl().x) {
-					Imgproc.circle(frame, new Point(eye.x + eye.width*0.5, eye.y + eye.height*0.5), 40, new Scalar(0, 0, 0), 2);
+					overlay.circle(new Point(eye.x + eye.width*0.5, eye.y + eye.height*0.5), 40, new Scalar(0, 0, 0), 2);
 					//Imgproc.rectangle(frame, new Point(eye.x, eye.y), new Point(eye.x + eye.width, eye.y + eye.height), new Scalar(200, 200, 100),2);
 				}
 			}